@@ -0,0 +1,120 @@
+/*
+ * Copyright 2013 Kagilum SAS.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Author(s):
+ *
+ * Vincent Barrier (vbarrier@kagilum.com)
+ */
+package com.kagilum.plugins.icescrum;
+
+import hudson.MarkupText;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Bounded LRU cache of the links added by {@link IceScrumLinkAnnotator} to changelog entries, so that
+ * changes pages and feeds rendered again and again only re-apply the markup.
+ *
+ * An entry computed for another project url or text is ignored and replaced, so changing the url of
+ * a job invalidates its cached links.
+ *
+ * Entries are weighted by the size of the text and markup they hold, the total weight can be set with the
+ * <code>com.kagilum.plugins.icescrum.IceScrumAnnotationCache.maxWeight</code> system property (in chars).
+ */
+final class IceScrumAnnotationCache {
+
+    static final long MAX_WEIGHT = Long.getLong(IceScrumAnnotationCache.class.getName() + ".maxWeight", 4 * 1024 * 1024);
+
+    private final long maxWeight;
+    private final LinkedHashMap<String, Annotation> entries = new LinkedHashMap<String, Annotation>(256, 0.75f, true);
+    private long weight;
+
+    IceScrumAnnotationCache(long maxWeight) {
+        this.maxWeight = maxWeight;
+    }
+
+    /**
+     * @return the cached annotation, or null if missing or computed for another project url or text
+     */
+    synchronized Annotation get(String key, String url, String text) {
+        Annotation annotation = entries.get(key);
+        if (annotation == null || !annotation.url.equals(url) || !annotation.text.equals(text)) {
+            return null;
+        }
+        return annotation;
+    }
+
+    synchronized void put(String key, Annotation annotation) {
+        Annotation previous = entries.put(key, annotation);
+        if (previous != null) {
+            weight -= previous.weight();
+        }
+        weight += annotation.weight();
+        Iterator<Map.Entry<String, Annotation>> eldest = entries.entrySet().iterator();
+        while (weight > maxWeight && eldest.hasNext()) {
+            weight -= eldest.next().getValue().weight();
+            eldest.remove();
+        }
+    }
+
+    synchronized void clear() {
+        entries.clear();
+        weight = 0;
+    }
+
+    synchronized int size() {
+        return entries.size();
+    }
+
+    /**
+     * Links found in a text, as markup spans over the original text.
+     */
+    static final class Annotation {
+
+        private static final int[] NONE = new int[0];
+
+        private final String url;
+        private final String text;
+        private final int[] starts;
+        private final int[] ends;
+        private final String[] startTags;
+        private final int weight;
+
+        Annotation(String url, String text, int[] starts, int[] ends, String[] startTags) {
+            this.url = url;
+            this.text = text;
+            this.starts = starts != null ? starts : NONE;
+            this.ends = ends != null ? ends : NONE;
+            this.startTags = startTags != null ? startTags : new String[0];
+            int w = url.length() + text.length() + 64;
+            for (String tag : this.startTags) {
+                w += tag.length() + 8;
+            }
+            this.weight = w;
+        }
+
+        void applyTo(MarkupText markupText) {
+            for (int i = 0; i < starts.length; i++) {
+                markupText.addMarkup(starts[i], ends[i], startTags[i], "</a>");
+            }
+        }
+
+        int weight() {
+            return weight;
+        }
+    }
+}
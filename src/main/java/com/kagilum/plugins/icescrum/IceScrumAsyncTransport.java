@@ -0,0 +1,157 @@
+/*
+ * Copyright 2013 Kagilum SAS.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Author(s):
+ *
+ * Vincent Barrier (vbarrier@kagilum.com)
+ */
+package com.kagilum.plugins.icescrum;
+
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import com.ning.http.client.AsyncCompletionHandler;
+import com.ning.http.client.AsyncHttpClient;
+import com.ning.http.client.AsyncHttpClientConfig;
+import com.ning.http.client.Body;
+import com.ning.http.client.BodyGenerator;
+import com.ning.http.client.Realm;
+import com.ning.http.client.Response;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Sends requests with async-http-client: the calling thread returns as soon as the request is written, and
+ * responses are read by a few I/O threads, however many requests are in flight.
+ *
+ * Connections are pooled per host up to {@link IceScrumSession#MAX_CONNECTIONS_PER_HOST}, with the same
+ * timeouts as the blocking transport.
+ */
+final class IceScrumAsyncTransport extends IceScrumTransport {
+
+    private final AsyncHttpClient client;
+
+    IceScrumAsyncTransport() {
+        AsyncHttpClientConfig config = new AsyncHttpClientConfig.Builder()
+                .setConnectionTimeoutInMs(IceScrumSession.CONNECT_TIMEOUT)
+                .setRequestTimeoutInMs(IceScrumSession.READ_TIMEOUT)
+                .setIdleConnectionInPoolTimeoutInMs(60 * 1000)
+                .setMaximumConnectionsPerHost(IceScrumSession.MAX_CONNECTIONS_PER_HOST)
+                .setAllowPoolingConnection(true)
+                .setFollowRedirects(false)
+                .build();
+        client = new AsyncHttpClient(config);
+    }
+
+    @Override
+    public ListenableFuture<IceScrumResponse> execute(IceScrumRequest request) {
+        IceScrumProjectSettings settings = request.getSettings();
+        AsyncHttpClient.BoundRequestBuilder builder;
+        switch (request.getMethod()) {
+            case HEAD:
+                builder = client.prepareHead(request.getUrl());
+                break;
+            case POST:
+                builder = client.preparePost(request.getUrl());
+                break;
+            default:
+                builder = client.prepareGet(request.getUrl());
+        }
+        final SettableFuture<IceScrumResponse> response = SettableFuture.create();
+        try {
+            if (settings.isTokenAuth()) {
+                builder.addHeader("content-type", "application/json");
+                builder.addHeader("x-icescrum-token", settings.getAccessToken());
+            } else {
+                builder.setRealm(new Realm.RealmBuilder()
+                        .setPrincipal(settings.getUsername())
+                        .setPassword(settings.getPassword().getPlainText())
+                        .setScheme(Realm.AuthScheme.BASIC)
+                        .setUsePreemptiveAuth(true)
+                        .build());
+            }
+            if (request.getMethod() == IceScrumRequest.Method.POST) {
+                IceScrumRequest.Body body = request.getBody();
+                builder.setHeader("content-type", body.getContentType());
+                builder.setBody(new StreamingBodyGenerator(body));
+            } else {
+                builder.addHeader("accept", "application/json");
+            }
+            builder.execute(new AsyncCompletionHandler<Void>() {
+                @Override
+                public Void onCompleted(Response r) throws Exception {
+                    response.set(new IceScrumResponse(r.getStatusCode(), r.getResponseBody("UTF-8")));
+                    return null;
+                }
+
+                @Override
+                public void onThrowable(Throwable t) {
+                    response.setException(t);
+                }
+            });
+        } catch (IOException e) {
+            return Futures.immediateFailedFuture(e);
+        }
+        return response;
+    }
+
+    /**
+     * Reads the body as the I/O thread writes it, rather than copying it in memory first.
+     */
+    private static final class StreamingBodyGenerator implements BodyGenerator {
+
+        private final IceScrumRequest.Body body;
+
+        StreamingBodyGenerator(IceScrumRequest.Body body) {
+            this.body = body;
+        }
+
+        public Body createBody() throws IOException {
+            final InputStream in = body.openStream();
+            final long length = body.getContentLength();
+            return new Body() {
+                private final byte[] chunk = new byte[8192];
+
+                public long getContentLength() {
+                    return length;
+                }
+
+                public long read(ByteBuffer buffer) throws IOException {
+                    int n = in.read(chunk, 0, Math.min(chunk.length, buffer.remaining()));
+                    if (n > 0) {
+                        buffer.put(chunk, 0, n);
+                    }
+                    return n;
+                }
+
+                public void close() throws IOException {
+                    in.close();
+                }
+            };
+        }
+    }
+
+    @Override
+    public boolean isBlocking() {
+        return false;
+    }
+
+    @Override
+    public void close() {
+        client.close();
+    }
+}
@@ -0,0 +1,355 @@
+/*
+ * Copyright 2013 Kagilum SAS.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Author(s):
+ *
+ * Vincent Barrier (vbarrier@kagilum.com)
+ */
+package com.kagilum.plugins.icescrum;
+
+import hudson.model.Job;
+import hudson.model.Result;
+import hudson.model.Run;
+import hudson.util.DaemonThreadFactory;
+import hudson.util.LogTaskListener;
+import hudson.util.NamingThreadFactory;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Sends the statuses of the past builds of a job, oldest first.
+ *
+ * Payloads are built by one thread and handed through a bounded queue to a few sender threads.
+ * Every backfill shares the same {@link IceScrumRateLimiter}. The last build number up to which every status
+ * has been handled is saved in the job directory, so that a cancelled or failed backfill resumes from there.
+ *
+ * Thread count, queue size and requests per second can be tuned with the
+ * <code>com.kagilum.plugins.icescrum.IceScrumBackfill.threads</code>, <code>.queueSize</code> and <code>.rate</code>
+ * system properties.
+ */
+public final class IceScrumBackfill implements Runnable {
+
+    static final int THREADS = Math.max(1, Integer.getInteger(IceScrumBackfill.class.getName() + ".threads", 4));
+    static final int QUEUE_SIZE = Math.max(1, Integer.getInteger(IceScrumBackfill.class.getName() + ".queueSize", 100));
+    static final double RATE = Double.parseDouble(System.getProperty(IceScrumBackfill.class.getName() + ".rate", "10"));
+
+    private static final IceScrumRateLimiter RATE_LIMITER = new IceScrumRateLimiter(RATE);
+    private static final ConcurrentMap<String, IceScrumBackfill> BACKFILLS = new ConcurrentHashMap<String, IceScrumBackfill>();
+    private static final String PROGRESS_FILE = "icescrum-backfill.properties";
+    private static final String LAST_BUILD = "lastBuild";
+    private static final Item END = new Item(-1, null);
+
+    public enum State { RUNNING, COMPLETED, CANCELLED, FAILED }
+
+    private final Job<?, ?> job;
+    private final IceScrumProjectSettings settings;
+    private final int resumeAfter;
+
+    private volatile State state = State.RUNNING;
+    private volatile String error;
+    private volatile int total;
+    private final AtomicInteger sent = new AtomicInteger();
+    private final AtomicInteger failed = new AtomicInteger();
+    private final long startedAt = System.currentTimeMillis();
+    private volatile long finishedAt;
+    private volatile Thread thread;
+
+    // build numbers oldest first, and which ones are handled
+    private int[] numbers = new int[0];
+    private boolean[] done = new boolean[0];
+    private int watermark;
+    private int lastSaved;
+
+    private IceScrumBackfill(Job<?, ?> job, IceScrumProjectSettings settings, int resumeAfter) {
+        this.job = job;
+        this.settings = settings;
+        this.resumeAfter = resumeAfter;
+        this.lastSaved = resumeAfter;
+    }
+
+    /**
+     * Starts the backfill of a job, unless one is already running.
+     *
+     * @param restart true to send every build again, false to resume after the last one handled
+     * @return the running backfill
+     */
+    public static IceScrumBackfill start(Job<?, ?> job, IceScrumProjectSettings settings, boolean restart) {
+        synchronized (BACKFILLS) {
+            IceScrumBackfill current = BACKFILLS.get(job.getFullName());
+            if (current != null && current.state == State.RUNNING) {
+                return current;
+            }
+            IceScrumBackfill backfill = new IceScrumBackfill(job, settings, restart ? 0 : readProgress(job));
+            BACKFILLS.put(job.getFullName(), backfill);
+            Thread thread = new Thread(backfill, "IceScrumBackfill " + job.getFullName());
+            thread.setDaemon(true);
+            backfill.thread = thread;
+            thread.start();
+            return backfill;
+        }
+    }
+
+    /**
+     * @return the running or last backfill of the job since Jenkins started, null if none
+     */
+    public static IceScrumBackfill get(Job<?, ?> job) {
+        return BACKFILLS.get(job.getFullName());
+    }
+
+    public void cancel() {
+        if (state == State.RUNNING) {
+            state = State.CANCELLED;
+            Thread t = thread;
+            if (t != null) {
+                t.interrupt();
+            }
+        }
+    }
+
+    public State getState() {
+        return state;
+    }
+
+    public boolean isRunning() {
+        return state == State.RUNNING;
+    }
+
+    public String getError() {
+        return error;
+    }
+
+    public int getTotal() {
+        return total;
+    }
+
+    public int getSent() {
+        return sent.get();
+    }
+
+    public int getFailed() {
+        return failed.get();
+    }
+
+    public int getResumeAfter() {
+        return resumeAfter;
+    }
+
+    public long getStartedAt() {
+        return startedAt;
+    }
+
+    /**
+     * @return statuses sent per second since the backfill started
+     */
+    public double getThroughput() {
+        long end = finishedAt != 0 ? finishedAt : System.currentTimeMillis();
+        long elapsed = Math.max(1, end - startedAt);
+        return sent.get() * 1000d / elapsed;
+    }
+
+    /**
+     * @return the last build number up to which every status has been handled, 0 if none
+     */
+    public static int readProgress(Job<?, ?> job) {
+        File file = new File(job.getRootDir(), PROGRESS_FILE);
+        if (!file.exists()) {
+            return 0;
+        }
+        Properties properties = new Properties();
+        try {
+            InputStream in = new FileInputStream(file);
+            try {
+                properties.load(in);
+            } finally {
+                in.close();
+            }
+            return Integer.parseInt(properties.getProperty(LAST_BUILD, "0"));
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Unable to read the iceScrum backfill progress of " + job.getFullName(), e);
+        } catch (NumberFormatException e) {
+            LOGGER.log(Level.WARNING, "Invalid iceScrum backfill progress for {0}", job.getFullName());
+        }
+        return 0;
+    }
+
+    public static void resetProgress(Job<?, ?> job) {
+        File file = new File(job.getRootDir(), PROGRESS_FILE);
+        if (file.exists() && !file.delete()) {
+            LOGGER.log(Level.WARNING, "Unable to delete {0}", file);
+        }
+    }
+
+    public void run() {
+        ExecutorService senders = Executors.newFixedThreadPool(THREADS,
+                new NamingThreadFactory(new DaemonThreadFactory(), "IceScrumBackfillSender"));
+        final BlockingQueue<Item> queue = new ArrayBlockingQueue<Item>(QUEUE_SIZE);
+        try {
+            List<Integer> pending = new ArrayList<Integer>();
+            for (Run<?, ?> run : job.getBuilds()) {
+                if (run.getNumber() > resumeAfter && !run.isBuilding()) {
+                    pending.add(run.getNumber());
+                }
+            }
+            Collections.reverse(pending);
+            synchronized (this) {
+                numbers = new int[pending.size()];
+                for (int i = 0; i < numbers.length; i++) {
+                    numbers[i] = pending.get(i);
+                }
+                done = new boolean[numbers.length];
+            }
+            total = numbers.length;
+
+            for (int i = 0; i < THREADS; i++) {
+                senders.execute(new Runnable() {
+                    public void run() {
+                        send(queue);
+                    }
+                });
+            }
+            for (int i = 0; i < numbers.length && state == State.RUNNING; i++) {
+                Run<?, ?> run = job.getBuildByNumber(numbers[i]);
+                if (run == null) {
+                    // deleted meanwhile
+                    handled(i);
+                    continue;
+                }
+                Result result = run.getResult() != null ? run.getResult() : Result.NOT_BUILT;
+                //only the job project is replayed, so the tasks routed to the other projects are kept in its payload
+                IceScrumBuildPayload payload = IceScrumBuildNotifier.createIceScrumBuildPayload(run, result,
+                        IceScrumTaskIndex.changeSetsOf(run), new LogTaskListener(LOGGER, Level.FINEST), !settings.isTokenAuth(), null);
+                queue.put(new Item(i, payload));
+            }
+            for (int i = 0; i < THREADS; i++) {
+                queue.put(END);
+            }
+            senders.shutdown();
+            senders.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+            if (state == State.RUNNING) {
+                state = State.COMPLETED;
+            }
+        } catch (InterruptedException e) {
+            if (state == State.RUNNING) {
+                state = State.CANCELLED;
+            }
+        } catch (RuntimeException e) {
+            LOGGER.log(Level.WARNING, "iceScrum backfill of " + job.getFullName() + " failed", e);
+            error = e.toString();
+            state = State.FAILED;
+        } finally {
+            senders.shutdownNow();
+            finishedAt = System.currentTimeMillis();
+            saveProgress(true);
+            LOGGER.log(Level.INFO, "iceScrum backfill of {0} {1}: {2} sent, {3} failed",
+                    new Object[]{job.getFullName(), state, sent.get(), failed.get()});
+        }
+    }
+
+    private void send(BlockingQueue<Item> queue) {
+        try {
+            while (true) {
+                Item item = queue.take();
+                if (item == END) {
+                    return;
+                }
+                if (state != State.RUNNING) {
+                    continue;
+                }
+                RATE_LIMITER.acquire();
+                IceScrumSession session = new IceScrumSession(settings);
+                if (session.sendBuildStatut(item.payload)) {
+                    sent.incrementAndGet();
+                    handled(item.index);
+                } else if (session.isRetryable()) {
+                    // iceScrum is down, stop here and resume from the last build handled
+                    error = session.getLastError();
+                    state = State.FAILED;
+                    thread.interrupt();
+                    return;
+                } else {
+                    // this status will never be accepted, don't try it again on resume
+                    LOGGER.log(Level.FINE, "iceScrum refused build {0}: {1}", new Object[]{item.payload.getNumber(), session.getLastError()});
+                    failed.incrementAndGet();
+                    handled(item.index);
+                }
+            }
+        } catch (InterruptedException e) {
+            // cancelled
+        }
+    }
+
+    private synchronized void handled(int index) {
+        done[index] = true;
+        while (watermark < done.length && done[watermark]) {
+            watermark++;
+        }
+        saveProgress(false);
+    }
+
+    /**
+     * Saves the last build up to which every status has been handled, not more than every 20 builds unless forced.
+     */
+    private synchronized void saveProgress(boolean force) {
+        int last = watermark > 0 ? numbers[watermark - 1] : resumeAfter;
+        if (last == lastSaved || (!force && watermark % 20 != 0 && watermark != numbers.length)) {
+            return;
+        }
+        Properties properties = new Properties();
+        properties.setProperty(LAST_BUILD, Integer.toString(last));
+        try {
+            OutputStream out = new FileOutputStream(new File(job.getRootDir(), PROGRESS_FILE));
+            try {
+                properties.store(out, "iceScrum backfill progress");
+            } finally {
+                out.close();
+            }
+            lastSaved = last;
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Unable to save the iceScrum backfill progress of " + job.getFullName(), e);
+        }
+    }
+
+    private static final class Item {
+
+        private final int index;
+        private final IceScrumBuildPayload payload;
+
+        Item(int index, IceScrumBuildPayload payload) {
+            this.index = index;
+            this.payload = payload;
+        }
+    }
+
+    private static final Logger LOGGER = Logger.getLogger(IceScrumBackfill.class.getName());
+}
@@ -0,0 +1,107 @@
+/*
+ * Copyright 2013 Kagilum SAS.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Author(s):
+ *
+ * Vincent Barrier (vbarrier@kagilum.com)
+ */
+package com.kagilum.plugins.icescrum;
+
+import hudson.model.Action;
+import hudson.model.Item;
+import hudson.model.Job;
+import net.sf.json.JSONObject;
+import org.kohsuke.stapler.QueryParameter;
+import org.kohsuke.stapler.StaplerResponse;
+import org.kohsuke.stapler.interceptor.RequirePOST;
+
+import java.io.IOException;
+
+/**
+ * Lets the users allowed to configure a job send the statuses of its past builds, see {@link IceScrumBackfill}.
+ */
+public class IceScrumBackfillAction implements Action {
+
+    private final transient Job<?, ?> job;
+    private final transient IceScrumProjectProperty projectProperty;
+
+    public IceScrumBackfillAction(Job<?, ?> job, IceScrumProjectProperty projectProperty) {
+        this.job = job;
+        this.projectProperty = projectProperty;
+    }
+
+    public String getIconFileName() {
+        return job.hasPermission(Item.CONFIGURE) ? "/plugin/icescrum/logo.png" : null;
+    }
+
+    public String getDisplayName() {
+        return Messages.IceScrumBackfillAction_displayName();
+    }
+
+    public String getUrlName() {
+        return "icescrum-backfill";
+    }
+
+    public Job<?, ?> getJob() {
+        return job;
+    }
+
+    public IceScrumBackfill getBackfill() {
+        return IceScrumBackfill.get(job);
+    }
+
+    public int getProgress() {
+        return IceScrumBackfill.readProgress(job);
+    }
+
+    @RequirePOST
+    public void doStart(@QueryParameter boolean restart, StaplerResponse rsp) throws IOException {
+        job.checkPermission(Item.CONFIGURE);
+        IceScrumProjectSettings settings = projectProperty.getSettings();
+        if (settings == null || !settings.hasAuth()) {
+            rsp.sendError(StaplerResponse.SC_BAD_REQUEST, Messages.IceScrumNotifyStep_notConfigured());
+            return;
+        }
+        IceScrumBackfill.start(job, settings, restart);
+        rsp.sendRedirect(".");
+    }
+
+    @RequirePOST
+    public void doCancel(StaplerResponse rsp) throws IOException {
+        job.checkPermission(Item.CONFIGURE);
+        IceScrumBackfill backfill = getBackfill();
+        if (backfill != null) {
+            backfill.cancel();
+        }
+        rsp.sendRedirect(".");
+    }
+
+    public void doProgress(StaplerResponse rsp) throws IOException {
+        job.checkPermission(Item.CONFIGURE);
+        JSONObject json = new JSONObject();
+        json.element("lastBuild", getProgress());
+        IceScrumBackfill backfill = getBackfill();
+        if (backfill != null) {
+            json.element("state", backfill.getState().name());
+            json.element("total", backfill.getTotal());
+            json.element("sent", backfill.getSent());
+            json.element("failed", backfill.getFailed());
+            json.element("throughput", backfill.getThroughput());
+            json.element("error", backfill.getError());
+        }
+        rsp.setContentType("application/json;charset=UTF-8");
+        json.write(rsp.getWriter());
+    }
+}
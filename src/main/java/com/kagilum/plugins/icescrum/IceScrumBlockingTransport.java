@@ -0,0 +1,108 @@
+/*
+ * Copyright 2013 Kagilum SAS.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Author(s):
+ *
+ * Vincent Barrier (vbarrier@kagilum.com)
+ */
+package com.kagilum.plugins.icescrum;
+
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import hudson.util.IOUtils;
+import org.apache.commons.httpclient.HttpClient;
+import org.apache.commons.httpclient.HttpMethodBase;
+import org.apache.commons.httpclient.methods.GetMethod;
+import org.apache.commons.httpclient.methods.HeadMethod;
+import org.apache.commons.httpclient.methods.PostMethod;
+import org.apache.commons.httpclient.methods.RequestEntity;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Sends requests with commons-httpclient on the calling thread, over the connections pooled per host
+ * by {@link IceScrumSession#getConnectionManager(IceScrumProjectSettings)}.
+ */
+final class IceScrumBlockingTransport extends IceScrumTransport {
+
+    @Override
+    public ListenableFuture<IceScrumResponse> execute(IceScrumRequest request) {
+        IceScrumProjectSettings settings = request.getSettings();
+        HttpClient client = new HttpClient(IceScrumSession.getConnectionManager(settings));
+        client.getParams().setConnectionManagerTimeout(IceScrumSession.POOL_TIMEOUT);
+        HttpMethodBase method = createMethod(request);
+        try {
+            if (settings.isTokenAuth()) {
+                method.setRequestHeader("content-type", "application/json");
+                method.setRequestHeader("x-icescrum-token", settings.getAccessToken());
+            } else {
+                client.getState().setCredentials(settings.getAuthScope(), settings.getCredentials());
+            }
+            if (request.getMethod() != IceScrumRequest.Method.POST) {
+                method.setRequestHeader("accept", "application/json");
+            }
+            int status = client.executeMethod(method);
+            InputStream in = method.getResponseBodyAsStream();
+            return Futures.immediateFuture(new IceScrumResponse(status, in != null ? IOUtils.toString(in) : ""));
+        } catch (IOException e) {
+            return Futures.immediateFailedFuture(e);
+        } finally {
+            method.releaseConnection();
+        }
+    }
+
+    @Override
+    public boolean isBlocking() {
+        return true;
+    }
+
+    private static HttpMethodBase createMethod(IceScrumRequest request) {
+        switch (request.getMethod()) {
+            case HEAD:
+                return new HeadMethod(request.getUrl());
+            case POST:
+                PostMethod post = new PostMethod(request.getUrl());
+                post.setRequestEntity(entity(request.getBody()));
+                return post;
+            default:
+                return new GetMethod(request.getUrl());
+        }
+    }
+
+    private static RequestEntity entity(final IceScrumRequest.Body body) {
+        if (body instanceof RequestEntity) {
+            return (RequestEntity) body;
+        }
+        return new RequestEntity() {
+            public boolean isRepeatable() {
+                return true;
+            }
+
+            public void writeRequest(OutputStream out) throws IOException {
+                body.writeRequest(out);
+            }
+
+            public long getContentLength() {
+                return body.getContentLength();
+            }
+
+            public String getContentType() {
+                return body.getContentType();
+            }
+        };
+    }
+}
@@ -22,6 +22,11 @@ package com.kagilum.plugins.icescrum;
 
 import hudson.Extension;
 import hudson.Launcher;
+import hudson.matrix.MatrixAggregatable;
+import hudson.matrix.MatrixAggregator;
+import hudson.matrix.MatrixBuild;
+import hudson.matrix.MatrixProject;
+import hudson.matrix.MatrixRun;
 import hudson.model.*;
 import hudson.scm.ChangeLogSet;
 import hudson.tasks.BuildStepDescriptor;
@@ -30,94 +35,385 @@ import hudson.tasks.Notifier;
 import hudson.tasks.Publisher;
 import net.sf.json.JSONObject;
 import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.DataBoundSetter;
 
 import java.io.IOException;
+import java.io.PrintStream;
+import java.net.MalformedURLException;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
-public class IceScrumBuildNotifier extends Notifier {
+public class IceScrumBuildNotifier extends Notifier implements MatrixAggregatable {
 
+    private boolean aggregateMatrix;
 
     @DataBoundConstructor
     public IceScrumBuildNotifier() {
     }
 
+    /**
+     * @return true if multi-configuration builds send a single status once every configuration has run
+     */
+    public boolean isAggregateMatrix() {
+        return aggregateMatrix;
+    }
+
+    @DataBoundSetter
+    public void setAggregateMatrix(boolean aggregateMatrix) {
+        this.aggregateMatrix = aggregateMatrix;
+    }
+
     public BuildStepMonitor getRequiredMonitorService() {
         return BuildStepMonitor.NONE;
     }
 
     @Override
     public boolean perform(AbstractBuild<?, ?> build, Launcher launcher, BuildListener listener) throws InterruptedException, IOException {
+        if (aggregateMatrix && build instanceof MatrixRun) {
+            //sent once by the aggregator of the parent build
+            return true;
+        }
 
+        IceScrumTrace trace = new IceScrumTrace(build.getProject().getFullName(), build.getNumber());
+        long lookup = System.nanoTime();
         final IceScrumProjectProperty p = build.getProject().getProperty(IceScrumProjectProperty.class);
         if (null == p || null == p.getSettings() || !p.getSettings().hasAuth()) {
             return true;
         }
 
-        IceScrumSession session = new IceScrumSession(p.getSettings());
-        JSONObject jsonRoot = createIceScrumBuildObject(build, listener, IceScrumSession.TASK_PATTERN, !p.getSettings().isTokenAuth());
+        long start = System.nanoTime();
+        trace.record(IceScrumTrace.Phase.PROPERTY_LOOKUP, lookup, start);
+        //remaining times can only be updated on token authenticated (R7) servers
+        IceScrumRemainingTimes times = p.getSettings().isTokenAuth() ? new IceScrumRemainingTimes() : null;
+        IceScrumBuildPayload payload = createIceScrumBuildPayload(build, build.getResult(),
+                Collections.<ChangeLogSet<? extends ChangeLogSet.Entry>>singletonList(build.getChangeSet()), listener,
+                !p.getSettings().isTokenAuth(), times, IceScrumReferenceScanner.get(), targetScanners(p));
+        dispatch(build, build.getResult(), listener, p, payload, times, start, trace);
+        return true;
+    }
 
-        if (session.sendBuildStatut(jsonRoot)) {
-            listener.getLogger().println(Messages.IceScrumBuildNotifier_icescrum_build_success() + p.getSettings().getProjectUrl() + ")");
-        } else {
-            listener.getLogger().println(Messages.IceScrumBuildNotifier_icescrum_build_error() + p.getSettings().getProjectUrl() + Messages.IceScrumBuildNotifier_icescrum_build_error_check());
+    public MatrixAggregator createAggregator(MatrixBuild build, Launcher launcher, BuildListener listener) {
+        if (!aggregateMatrix) {
+            return null;
+        }
+        return new MatrixAggregator(build, launcher, listener) {
+            @Override
+            public boolean endBuild() throws InterruptedException, IOException {
+                IceScrumTrace trace = new IceScrumTrace(build.getProject().getFullName(), build.getNumber());
+                long lookup = System.nanoTime();
+                final IceScrumProjectProperty p = build.getProject().getProperty(IceScrumProjectProperty.class);
+                if (null == p || null == p.getSettings() || !p.getSettings().hasAuth()) {
+                    return true;
+                }
+
+                long start = System.nanoTime();
+                trace.record(IceScrumTrace.Phase.PROPERTY_LOOKUP, lookup, start);
+                IceScrumRemainingTimes times = p.getSettings().isTokenAuth() ? new IceScrumRemainingTimes() : null;
+                IceScrumBuildPayload payload = createAggregatedPayload(build, listener, !p.getSettings().isTokenAuth(), times, targetScanners(p));
+                dispatch(build, aggregatedResult(build), listener, p, payload, times, start, trace);
+                return true;
+            }
+        };
+    }
+
+    /**
+     * @param result the result sent to the other projects of the job
+     * @param start <code>System.nanoTime()</code> when the payload creation started
+     */
+    private void dispatch(AbstractBuild<?, ?> build, Result result, BuildListener listener, IceScrumProjectProperty p, IceScrumBuildPayload payload,
+                          IceScrumRemainingTimes times, long start, IceScrumTrace trace) {
+        IceScrumProjectSettings settings = p.getSettings();
+        long end = System.nanoTime();
+        trace.record(IceScrumTrace.Phase.CHANGELOG_SCAN, start, end);
+        try {
+            trace.setHost(settings.getHostKey());
+        } catch (MalformedURLException e) {
+            trace.setHost(settings.getUrl());
+        }
+        IceScrumMetrics.get().recordBuildObject(settings, end - start, payload.getTaskCount());
+        IceScrumTaskIndex.get().addLater(settings.getProjectUrl(), build.getProject().getFullName(), build.getNumber(), payload.getTasks());
+
+        listener.getLogger().println(Messages.IceScrumBuildNotifier_icescrum_build_queued() + settings.getProjectUrl() + ")");
+        IceScrumFanOut fanOut = new IceScrumFanOut(listener, IceScrumFanOut.TIMEOUT);
+        fanOut.add(new IceScrumNotification(build.getProject().getFullName(), settings, payload,
+                times != null && !times.isEmpty() ? times : null, new ConsoleCallback(build, listener), trace));
+        if (!p.getTargets().isEmpty()) {
+            List<ChangeLogSet<? extends ChangeLogSet.Entry>> changeSets = new ArrayList<ChangeLogSet<? extends ChangeLogSet.Entry>>();
+            changeSets.add(build.getChangeSet());
+            if (build instanceof MatrixBuild) {
+                for (MatrixRun run : ((MatrixBuild) build).getExactRuns()) {
+                    changeSets.add(run.getChangeSet());
+                }
+            }
+            addTargets(fanOut, build, result, changeSets, listener, p, payload, times);
+        }
+        fanOut.dispatch(null);
+    }
+
+    /**
+     * @return the scanners of the other projects of the job routing tasks by prefix, whose references are left out
+     * of the job project payload
+     */
+    static List<IceScrumReferenceScanner> targetScanners(IceScrumProjectProperty p) {
+        List<IceScrumReferenceScanner> scanners = new ArrayList<IceScrumReferenceScanner>();
+        if (p != null) {
+            for (IceScrumProjectTarget target : p.getTargets()) {
+                if (target.getScanner() != null) {
+                    scanners.add(target.getScanner());
+                }
+            }
+        }
+        return scanners;
+    }
+
+    /**
+     * Adds the notifications of the other projects of the job, see {@link IceScrumProjectTarget}.
+     *
+     * @param payload sent as is to the projects without task prefixes using the same authentication as the job project
+     * @param times remaining times of the job project, sent along with its payload
+     */
+    static void addTargets(IceScrumFanOut fanOut, Run<?, ?> run, Result result, Iterable<? extends ChangeLogSet<? extends ChangeLogSet.Entry>> changeSets,
+                           TaskListener listener, IceScrumProjectProperty p, IceScrumBuildPayload payload, IceScrumRemainingTimes times) {
+        for (IceScrumProjectTarget target : p.getTargets()) {
+            IceScrumProjectSettings settings = target.getSettings();
+            if (settings == null || !settings.hasAuth()) {
+                listener.getLogger().println(Messages.IceScrumBuildNotifier_icescrum_target_missing(target.getServerId(), target.getPkey()));
+                continue;
+            }
+            IceScrumBuildPayload targetPayload = payload;
+            IceScrumRemainingTimes targetTimes = times;
+            //builtOn is only sent to old servers, the payload is built again when the authentication differs
+            if (target.getScanner() != null || settings.isTokenAuth() != p.getSettings().isTokenAuth()) {
+                IceScrumReferenceScanner scanner = target.getScanner() != null ? target.getScanner() : IceScrumReferenceScanner.get();
+                targetTimes = settings.isTokenAuth() ? new IceScrumRemainingTimes() : null;
+                targetPayload = createIceScrumBuildPayload(run, result, changeSets, TaskListener.NULL, !settings.isTokenAuth(), targetTimes, scanner);
+            }
+            IceScrumTaskIndex.get().addLater(settings.getProjectUrl(), run.getParent().getFullName(), run.getNumber(), targetPayload.getTasks());
+            listener.getLogger().println(Messages.IceScrumBuildNotifier_icescrum_build_queued() + settings.getProjectUrl() + ")");
+            fanOut.add(new IceScrumNotification(run.getParent().getFullName(), settings, targetPayload,
+                    targetTimes != null && !targetTimes.isEmpty() ? targetTimes : null, new ConsoleCallback(run, listener)));
         }
-        return true;
     }
 
     public JSONObject createIceScrumBuildObject(AbstractBuild<?, ?> build, BuildListener listener, String pattern, boolean includeBuiltOn) {
+        return createIceScrumBuildPayload(build, listener, pattern, includeBuiltOn).toJSON();
+    }
+
+    public IceScrumBuildPayload createIceScrumBuildPayload(AbstractBuild<?, ?> build, BuildListener listener, String pattern, boolean includeBuiltOn) {
+        return createIceScrumBuildPayload(build, listener, pattern, includeBuiltOn, null);
+    }
+
+    /**
+     * @param times receives the latest remaining time of each task, null if not wanted
+     */
+    public IceScrumBuildPayload createIceScrumBuildPayload(AbstractBuild<?, ?> build, BuildListener listener, String pattern, boolean includeBuiltOn,
+                                                          IceScrumRemainingTimes times) {
         Hudson instance = Hudson.getInstance();
 
         String jobUrl = instance != null ? instance.getRootUrl() + build.getUrl() : "";
 
-        JSONObject jsonData = new JSONObject();
-        JSONObject jsonBuild = new JSONObject();
+        IceScrumBuildPayload payload = createIceScrumBuildPayload(build.getProject().getDisplayName(), build.getDisplayName(),
+                build.getNumber(), build.getTimeInMillis(), jobUrl,
+                //only for old icescrum server
+                includeBuiltOn ? "Jenkins: " + build.getHudsonVersion() : null,
+                build.getResult(), build.getChangeSet().isEmptySet() ? null : build.getChangeSet(), pattern, times);
 
-        jsonBuild.element("jobName", build.getProject().getDisplayName());
-        jsonBuild.element("name", build.getDisplayName());
-        jsonBuild.element("number", build.getNumber());
-        jsonBuild.element("date", build.getTimeInMillis());
-        jsonBuild.element("url", jobUrl);
+        if (payload.getTaskCount() == 0) {
+            listener.getLogger().println(Messages.IceScrumBuildNotifier_icescrum_build_empty());
+        }
+        return payload;
+    }
 
-        //only for old icescrum server
-        if (includeBuiltOn) {
-            jsonBuild.element("builtOn", "Jenkins: " + build.getHudsonVersion());
+    /**
+     * Builds a single payload for a multi-configuration build: the worst result of the configurations
+     * and the tasks referenced by any of their changesets, each once.
+     *
+     * @param excluded scanners of the references going to other projects, see {@link #targetScanners(IceScrumProjectProperty)}
+     */
+    IceScrumBuildPayload createAggregatedPayload(MatrixBuild build, BuildListener listener, boolean includeBuiltOn, IceScrumRemainingTimes times,
+                                                 List<IceScrumReferenceScanner> excluded) {
+        List<ChangeLogSet<? extends ChangeLogSet.Entry>> changeSets = new ArrayList<ChangeLogSet<? extends ChangeLogSet.Entry>>();
+        changeSets.add(build.getChangeSet());
+        for (MatrixRun run : build.getExactRuns()) {
+            //configurations usually check out the same revisions as the parent, ids are only added once
+            changeSets.add(run.getChangeSet());
         }
+        return createIceScrumBuildPayload(build, aggregatedResult(build), changeSets, listener, includeBuiltOn, times,
+                IceScrumReferenceScanner.get(), excluded);
+    }
 
+    /**
+     * The parent result isn't final yet when the configurations end, the worst one wins.
+     */
+    static Result aggregatedResult(MatrixBuild build) {
         Result result = build.getResult();
-        if (result != null) {
-            if (result.isBetterOrEqualTo(Result.SUCCESS)) {
-                jsonBuild.element("status", IceScrumSession.BUILD_SUCCESS);
-            } else if (result.isBetterOrEqualTo(Result.UNSTABLE)) {
-                jsonBuild.element("status", IceScrumSession.BUILD_FAILURE);
-            } else {
-                jsonBuild.element("status", IceScrumSession.BUILD_ERROR);
+        for (MatrixRun run : build.getExactRuns()) {
+            if (run.getResult() != null) {
+                result = result != null ? result.combine(run.getResult()) : run.getResult();
             }
-        } else {
-            jsonBuild.element("status", IceScrumSession.BUILD_ERROR);
         }
+        return result;
+    }
 
-        ArrayList<Integer> ids = new ArrayList<Integer>();
-        if (!build.getChangeSet().isEmptySet()) {
-            for (ChangeLogSet.Entry change : build.getChangeSet()) {
-                Matcher m = Pattern.compile(pattern).matcher(change.getMsg());
-                while (m.find()) {
-                    if (m.groupCount() >= 1) {
-                        ids.add(Integer.parseInt(m.group(1)));
-                    }
-                }
+    /**
+     * Builds the payload of any kind of run, with the tasks referenced by all its changesets.
+     *
+     * @param result the result to send, the run one being null while it is still building
+     * @param times receives the latest remaining time of each task, null if not wanted
+     */
+    static IceScrumBuildPayload createIceScrumBuildPayload(Run<?, ?> run, Result result, Iterable<? extends ChangeLogSet<? extends ChangeLogSet.Entry>> changeSets,
+                                                          TaskListener listener, boolean includeBuiltOn, IceScrumRemainingTimes times) {
+        return createIceScrumBuildPayload(run, result, changeSets, listener, includeBuiltOn, times, IceScrumReferenceScanner.get());
+    }
+
+    /**
+     * Same as {@link #createIceScrumBuildPayload(Run, Result, Iterable, TaskListener, boolean, IceScrumRemainingTimes)}
+     * with the references found by <code>scanner</code>.
+     */
+    static IceScrumBuildPayload createIceScrumBuildPayload(Run<?, ?> run, Result result, Iterable<? extends ChangeLogSet<? extends ChangeLogSet.Entry>> changeSets,
+                                                          TaskListener listener, boolean includeBuiltOn, IceScrumRemainingTimes times,
+                                                          IceScrumReferenceScanner scanner) {
+        return createIceScrumBuildPayload(run, result, changeSets, listener, includeBuiltOn, times, scanner,
+                Collections.<IceScrumReferenceScanner>emptyList());
+    }
+
+    /**
+     * Same as {@link #createIceScrumBuildPayload(Run, Result, Iterable, TaskListener, boolean, IceScrumRemainingTimes, IceScrumReferenceScanner)}
+     * without the references found by the <code>excluded</code> scanners.
+     */
+    static IceScrumBuildPayload createIceScrumBuildPayload(Run<?, ?> run, Result result, Iterable<? extends ChangeLogSet<? extends ChangeLogSet.Entry>> changeSets,
+                                                          TaskListener listener, boolean includeBuiltOn, IceScrumRemainingTimes times,
+                                                          IceScrumReferenceScanner scanner, List<IceScrumReferenceScanner> excluded) {
+        Hudson instance = Hudson.getInstance();
+
+        String jobUrl = instance != null ? instance.getRootUrl() + run.getUrl() : "";
 
+        IceScrumReferences references = new IceScrumReferences();
+        boolean hasChanges = false;
+        for (ChangeLogSet<? extends ChangeLogSet.Entry> changeSet : changeSets) {
+            if (!changeSet.isEmptySet()) {
+                collectReferences(changeSet, scanner, references, times, excluded);
+                hasChanges = true;
             }
-            jsonBuild.element("tasks", ids);
         }
 
-        if (ids.size() == 0) {
+        IceScrumBuildPayload payload = new IceScrumBuildPayload(run.getParent().getDisplayName(), run.getDisplayName(),
+                run.getNumber(), run.getTimeInMillis(), jobUrl,
+                //only for old icescrum server
+                includeBuiltOn ? "Jenkins: " + run.getHudsonVersion() : null,
+                IceScrumBuildPayload.status(result), hasChanges ? references.getTasks().toArray() : null,
+                references.toArray(IceScrumReferenceScanner.Type.STORY), references.toArray(IceScrumReferenceScanner.Type.FEATURE));
+
+        if (payload.getTaskCount() == 0) {
             listener.getLogger().println(Messages.IceScrumBuildNotifier_icescrum_build_empty());
         }
+        return payload;
+    }
 
-        jsonData.element("build", jsonBuild);
-        return jsonData;
+    /**
+     * Builds the payload from plain build values.
+     *
+     * @param builtOn only sent when not null
+     * @param changes null if the build has no changeset, in which case no task list is sent
+     * @param times receives the latest remaining time of each task, null if not wanted
+     */
+    static IceScrumBuildPayload createIceScrumBuildPayload(String jobName, String name, int number, long date, String url, String builtOn,
+                                                          Result result, Iterable<? extends ChangeLogSet.Entry> changes, String pattern,
+                                                          IceScrumRemainingTimes times) {
+        if (changes == null) {
+            return new IceScrumBuildPayload(jobName, name, number, date, url, builtOn, IceScrumBuildPayload.status(result), null);
+        }
+        IceScrumReferences references = new IceScrumReferences();
+        collectReferences(changes, pattern, references, times);
+        return new IceScrumBuildPayload(jobName, name, number, date, url, builtOn, IceScrumBuildPayload.status(result),
+                references.getTasks().toArray(), references.toArray(IceScrumReferenceScanner.Type.STORY),
+                references.toArray(IceScrumReferenceScanner.Type.FEATURE));
+    }
+
+    /**
+     * Prints the outcome in the build console, or in the system log if the console is already closed.
+     */
+    static class ConsoleCallback implements IceScrumNotification.Callback {
+
+        private final String buildName;
+        private final TaskListener listener;
+
+        ConsoleCallback(Run<?, ?> build, TaskListener listener) {
+            this.buildName = build.getFullDisplayName();
+            this.listener = listener;
+        }
+
+        public void onSuccess(IceScrumProjectSettings settings) {
+            print(Level.INFO, Messages.IceScrumBuildNotifier_icescrum_build_success() + settings.getProjectUrl() + ")");
+        }
+
+        public void onFailure(IceScrumProjectSettings settings, String error) {
+            print(Level.WARNING, Messages.IceScrumBuildNotifier_icescrum_build_error() + settings.getProjectUrl() + Messages.IceScrumBuildNotifier_icescrum_build_error_check()
+                    + (error != null ? ": " + error : ""));
+        }
+
+        public void onDeferred(IceScrumProjectSettings settings, String error) {
+            print(Level.INFO, Messages.IceScrumBuildNotifier_icescrum_build_deferred() + settings.getProjectUrl() + ") " + error);
+        }
+
+        private void print(Level level, String message) {
+            PrintStream logger = listener.getLogger();
+            logger.println(message);
+            if (logger.checkError()) {
+                LOGGER.log(level, "{0}: {1}", new Object[]{buildName, message});
+            }
+        }
+    }
+
+    private static final Logger LOGGER = Logger.getLogger(IceScrumBuildNotifier.class.getName());
+
+    /**
+     * Adds the references found in the changes, each id once, and the remaining time of the tasks.
+     * With {@link IceScrumSession#TASK_PATTERN}, the prefixes of the global configuration are recognized.
+     * Any other pattern only finds tasks, with their remaining time when the pattern has a second group.
+     *
+     * @param times null if remaining times are not wanted
+     */
+    static void collectReferences(Iterable<? extends ChangeLogSet.Entry> changes, String pattern, IceScrumReferences references,
+                                  IceScrumRemainingTimes times) {
+        if (IceScrumSession.TASK_PATTERN.equals(pattern)) {
+            collectReferences(changes, IceScrumReferenceScanner.get(), references, times);
+            return;
+        }
+        IceScrumTaskIds ids = references.getTasks();
+        Matcher m = Pattern.compile(pattern).matcher("");
+        for (ChangeLogSet.Entry change : changes) {
+            m.reset(change.getMsg());
+            while (m.find()) {
+                if (m.groupCount() >= 1) {
+                    int id = Integer.parseInt(m.group(1));
+                    ids.add(id);
+                    if (times != null && m.groupCount() >= 2 && m.group(2) != null) {
+                        times.put(id, Float.parseFloat(m.group(2).replace(',', '.')), change.getTimestamp());
+                    }
+                }
+            }
+        }
+    }
+
+    static void collectReferences(Iterable<? extends ChangeLogSet.Entry> changes, IceScrumReferenceScanner scanner, IceScrumReferences references,
+                                  IceScrumRemainingTimes times) {
+        collectReferences(changes, scanner, references, times, Collections.<IceScrumReferenceScanner>emptyList());
+    }
+
+    /**
+     * @param excluded scanners of the references going to other projects, left out
+     */
+    static void collectReferences(Iterable<? extends ChangeLogSet.Entry> changes, IceScrumReferenceScanner scanner, IceScrumReferences references,
+                                  IceScrumRemainingTimes times, List<IceScrumReferenceScanner> excluded) {
+        for (ChangeLogSet.Entry change : changes) {
+            scanner.extract(change.getMsg(), references, times, times != null ? change.getTimestamp() : -1, excluded);
+        }
     }
 
     @Extension
@@ -130,5 +426,9 @@ public class IceScrumBuildNotifier extends Notifier {
         public String getDisplayName() {
             return Messages.IceScrumBuildNotifier_icescrum_notifier_displayName();
         }
+
+        public boolean isMatrixProject(Object job) {
+            return job instanceof MatrixProject;
+        }
     }
 }
\ No newline at end of file
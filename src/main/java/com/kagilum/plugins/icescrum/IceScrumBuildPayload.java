@@ -0,0 +1,379 @@
+/*
+ * Copyright 2013 Kagilum SAS.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Author(s):
+ *
+ * Vincent Barrier (vbarrier@kagilum.com)
+ */
+package com.kagilum.plugins.icescrum;
+
+import hudson.model.Result;
+import net.sf.json.JSONArray;
+import net.sf.json.JSONObject;
+import net.sf.json.util.JSONUtils;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * The status of a build as sent to iceScrum.
+ *
+ * {@link #writeTo(Writer)} streams the same JSON as {@link #toJSON()}<code>.toString()</code>, without building
+ * the object tree nor holding the whole document in memory.
+ */
+public final class IceScrumBuildPayload {
+
+    static final String[] ID_KEYS = {"tasks", "stories", "features"};
+    static final String TAIL = "}}";
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final String jobName;
+    private final String name;
+    private final int number;
+    private final long date;
+    private final String url;
+    private final String builtOn;
+    private final int status;
+    private final int[] tasks;
+    private final int[] stories;
+    private final int[] features;
+
+    /**
+     * @param builtOn only sent when not null, for old iceScrum servers
+     * @param tasks null when the build has no changeset, in which case no task list is sent
+     */
+    public IceScrumBuildPayload(String jobName, String name, int number, long date, String url, String builtOn, int status, int[] tasks) {
+        this(jobName, name, number, date, url, builtOn, status, tasks, null, null);
+    }
+
+    /**
+     * @param stories only sent when not null, as are <code>features</code>
+     */
+    public IceScrumBuildPayload(String jobName, String name, int number, long date, String url, String builtOn, int status, int[] tasks,
+                                int[] stories, int[] features) {
+        this.jobName = jobName;
+        this.name = name;
+        this.number = number;
+        this.date = date;
+        this.url = url;
+        this.builtOn = builtOn;
+        this.status = status;
+        this.tasks = tasks;
+        this.stories = stories;
+        this.features = features;
+    }
+
+    public static int status(Result result) {
+        if (result != null) {
+            if (result.isBetterOrEqualTo(Result.SUCCESS)) {
+                return IceScrumSession.BUILD_SUCCESS;
+            } else if (result.isBetterOrEqualTo(Result.UNSTABLE)) {
+                return IceScrumSession.BUILD_FAILURE;
+            }
+        }
+        return IceScrumSession.BUILD_ERROR;
+    }
+
+    /**
+     * Reads back a payload written by {@link #writeTo(Writer)} or {@link #toJSON()}.
+     */
+    public static IceScrumBuildPayload fromJSON(JSONObject json) {
+        JSONObject build = json.getJSONObject("build");
+        return new IceScrumBuildPayload(build.optString("jobName", null), build.optString("name", null), build.optInt("number"),
+                build.optLong("date"), build.optString("url", null), build.optString("builtOn", null),
+                build.optInt("status", IceScrumSession.BUILD_ERROR), readIds(build, "tasks"), readIds(build, "stories"), readIds(build, "features"));
+    }
+
+    private static int[] readIds(JSONObject build, String key) {
+        JSONArray json = build.optJSONArray(key);
+        if (json == null) {
+            return null;
+        }
+        int[] ids = new int[json.size()];
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = json.getInt(i);
+        }
+        return ids;
+    }
+
+    public String getJobName() {
+        return jobName;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public int getNumber() {
+        return number;
+    }
+
+    public long getDate() {
+        return date;
+    }
+
+    public String getUrl() {
+        return url;
+    }
+
+    public String getBuiltOn() {
+        return builtOn;
+    }
+
+    public int getStatus() {
+        return status;
+    }
+
+    /**
+     * @return the task ids, null when the build has no changeset
+     */
+    public int[] getTasks() {
+        return tasks;
+    }
+
+    public int getTaskCount() {
+        return tasks != null ? tasks.length : 0;
+    }
+
+    /**
+     * @return the number of requests needed to send the tasks by chunks of at most <code>maxTasks</code>
+     */
+    public int getChunkCount(int maxTasks) {
+        int count = getTaskCount();
+        return count <= maxTasks ? 1 : (count + maxTasks - 1) / maxTasks;
+    }
+
+    /**
+     * @return the same build with the tasks of the chunk <code>index</code> only, stories and features going
+     * with the first chunk. The payload itself when it fits in one chunk.
+     */
+    public IceScrumBuildPayload chunk(int index, int maxTasks) {
+        if (getChunkCount(maxTasks) == 1) {
+            return this;
+        }
+        int from = index * maxTasks;
+        return new IceScrumBuildPayload(jobName, name, number, date, url, builtOn, status,
+                Arrays.copyOfRange(tasks, from, Math.min(tasks.length, from + maxTasks)),
+                index == 0 ? stories : null, index == 0 ? features : null);
+    }
+
+    /**
+     * @return the story ids, null when none is referenced
+     */
+    public int[] getStories() {
+        return stories;
+    }
+
+    /**
+     * @return the feature ids, null when none is referenced
+     */
+    public int[] getFeatures() {
+        return features;
+    }
+
+    public JSONObject toJSON() {
+        JSONObject jsonData = new JSONObject();
+        JSONObject jsonBuild = new JSONObject();
+
+        jsonBuild.element("jobName", jobName);
+        jsonBuild.element("name", name);
+        jsonBuild.element("number", number);
+        jsonBuild.element("date", date);
+        jsonBuild.element("url", url);
+
+        if (builtOn != null) {
+            jsonBuild.element("builtOn", builtOn);
+        }
+        jsonBuild.element("status", status);
+
+        if (tasks != null) {
+            jsonBuild.element("tasks", tasks);
+        }
+        if (stories != null) {
+            jsonBuild.element("stories", stories);
+        }
+        if (features != null) {
+            jsonBuild.element("features", features);
+        }
+
+        jsonData.element("build", jsonBuild);
+        return jsonData;
+    }
+
+    public void writeTo(Writer out) throws IOException {
+        writeHead(out);
+        writeIds(out, ID_KEYS[0], tasks);
+        writeIds(out, ID_KEYS[1], stories);
+        writeIds(out, ID_KEYS[2], features);
+        out.write(TAIL);
+    }
+
+    /**
+     * @return the number of UTF-8 bytes written by {@link #writeTo(Writer)}, the ids being counted without being written
+     */
+    public long getJsonLength() {
+        StringWriter head = new StringWriter(256);
+        try {
+            writeHead(head);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        long length = head.toString().getBytes(UTF_8).length + TAIL.length();
+        for (int k = 0; k < ID_KEYS.length; k++) {
+            int[] ids = getIds(k);
+            if (ids != null) {
+                // ,"key":[ ... ]
+                length += ID_KEYS[k].length() + 6 + Math.max(0, ids.length - 1);
+                for (int id : ids) {
+                    length += digits(id);
+                }
+            }
+        }
+        return length;
+    }
+
+    /**
+     * @return the tasks, stories or features, in the order of {@link #ID_KEYS}
+     */
+    int[] getIds(int k) {
+        return k == 0 ? tasks : k == 1 ? stories : features;
+    }
+
+    /**
+     * Writes the build fields before the ids, see {@link #writeTo(Writer)}.
+     */
+    void writeHead(Writer out) throws IOException {
+        out.write("{\"build\":{");
+        boolean first = writeField(out, true, "jobName", jobName);
+        first = writeField(out, first, "name", name);
+        out.write(first ? "\"number\":" : ",\"number\":");
+        out.write(Integer.toString(number));
+        out.write(",\"date\":");
+        out.write(Long.toString(date));
+        writeField(out, false, "url", url);
+        writeField(out, false, "builtOn", builtOn);
+        out.write(",\"status\":");
+        out.write(Integer.toString(status));
+    }
+
+    private static void writeIds(Writer out, String key, int[] ids) throws IOException {
+        if (ids == null) {
+            return;
+        }
+        openIds(out, key);
+        writeIds(out, ids, 0, ids.length);
+        out.write(']');
+    }
+
+    static void openIds(Writer out, String key) throws IOException {
+        out.write(",\"");
+        out.write(key);
+        out.write("\":[");
+    }
+
+    /**
+     * Writes <code>ids[from]</code> to <code>ids[to - 1]</code>, comma separated.
+     */
+    static void writeIds(Writer out, int[] ids, int from, int to) throws IOException {
+        for (int i = from; i < to; i++) {
+            if (i > 0) {
+                out.write(',');
+            }
+            out.write(Integer.toString(ids[i]));
+        }
+    }
+
+    private static int digits(int value) {
+        if (value < 0) {
+            return Integer.toString(value).length();
+        }
+        int n = 1;
+        while (value >= 10) {
+            value /= 10;
+            n++;
+        }
+        return n;
+    }
+
+    /**
+     * Writes payloads as a JSON array, like {@link JSONArray#fromObject(Object)} of their {@link #toJSON()}.
+     */
+    public static void writeTo(Writer out, List<IceScrumBuildPayload> payloads) throws IOException {
+        out.write('[');
+        for (int i = 0; i < payloads.size(); i++) {
+            if (i > 0) {
+                out.write(',');
+            }
+            payloads.get(i).writeTo(out);
+        }
+        out.write(']');
+    }
+
+    @Override
+    public String toString() {
+        StringWriter out = new StringWriter(256 + getTaskCount() * 6);
+        try {
+            writeTo(out);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        return out.toString();
+    }
+
+    /**
+     * Writes a string field, skipped like json-lib does for null values.
+     *
+     * @return true if nothing has been written, so the next field is still the first one
+     */
+    private static boolean writeField(Writer out, boolean first, String key, String value) throws IOException {
+        if (value == null) {
+            return first;
+        }
+        String json;
+        if (isPlain(value)) {
+            json = JSONUtils.quote(value);
+        } else {
+            // json-lib interprets some strings (keywords, functions, nested JSON), let it decide
+            String element = new JSONObject().element(key, value).toString();
+            int start = key.length() + 4;
+            if (element.length() <= start) {
+                return first;
+            }
+            json = element.substring(start, element.length() - 1);
+        }
+        if (!first) {
+            out.write(',');
+        }
+        out.write('"');
+        out.write(key);
+        out.write("\":");
+        out.write(json);
+        return false;
+    }
+
+    private static boolean isPlain(String value) {
+        if (value.isEmpty()) {
+            return true;
+        }
+        char c = value.charAt(0);
+        return c != '[' && c != '{' && c != '"' && c != '\'' && !value.startsWith("function")
+                && !value.equals("null") && !value.equals("true") && !value.equals("false") && !value.equals("undefined");
+    }
+}
@@ -0,0 +1,225 @@
+/*
+ * Copyright 2013 Kagilum SAS.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Author(s):
+ *
+ * Vincent Barrier (vbarrier@kagilum.com)
+ */
+package com.kagilum.plugins.icescrum;
+
+import hudson.Extension;
+import hudson.model.AsyncPeriodicWork;
+import hudson.model.TaskListener;
+
+import java.io.IOException;
+import java.net.MalformedURLException;
+import java.util.Collection;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Stops talking to an iceScrum host after consecutive failures, so that builds fail fast (and statuses go to the
+ * {@link IceScrumOutbox}) instead of waiting for timeouts.
+ *
+ * The breaker opens after <code>com.kagilum.plugins.icescrum.IceScrumCircuitBreaker.failureThreshold</code>
+ * consecutive failures or 503 answers. It closes again when the {@link HealthProbe} gets an answer on
+ * <code>/version/</code>, or when a single trial request let through every
+ * <code>com.kagilum.plugins.icescrum.IceScrumCircuitBreaker.retryInterval</code> ms succeeds. A trial request that is
+ * not made gives its slot back with {@link #release()}, one that never reports is replaced by another one after
+ * <code>.trialTimeout</code> ms (2 minutes by default).
+ */
+public final class IceScrumCircuitBreaker {
+
+    static final int FAILURE_THRESHOLD = Math.max(1, Integer.getInteger(IceScrumCircuitBreaker.class.getName() + ".failureThreshold", 5));
+    static final long RETRY_INTERVAL = Long.getLong(IceScrumCircuitBreaker.class.getName() + ".retryInterval", 60 * 1000);
+    static final long TRIAL_TIMEOUT = Long.getLong(IceScrumCircuitBreaker.class.getName() + ".trialTimeout", 2 * 60 * 1000);
+    static final long PROBE_INTERVAL = Long.getLong(IceScrumCircuitBreaker.class.getName() + ".probeInterval", 30 * 1000);
+
+    private static final ConcurrentMap<String, IceScrumCircuitBreaker> BREAKERS = new ConcurrentHashMap<String, IceScrumCircuitBreaker>();
+
+    public enum State {
+        CLOSED, OPEN, HALF_OPEN
+    }
+
+    private final String hostKey;
+    private final String url;
+    private final int failureThreshold;
+    private final long retryInterval;
+    private final long trialTimeout;
+    private State state = State.CLOSED;
+    private int consecutiveFailures;
+    private long openedAt;
+    private long trialAt;
+
+    IceScrumCircuitBreaker(String hostKey, String url, int failureThreshold, long retryInterval) {
+        this(hostKey, url, failureThreshold, retryInterval, TRIAL_TIMEOUT);
+    }
+
+    IceScrumCircuitBreaker(String hostKey, String url, int failureThreshold, long retryInterval, long trialTimeout) {
+        this.hostKey = hostKey;
+        this.url = url;
+        this.failureThreshold = failureThreshold;
+        this.retryInterval = retryInterval;
+        this.trialTimeout = trialTimeout;
+    }
+
+    /**
+     * @return the breaker of the settings host, null if the url is malformed
+     */
+    public static IceScrumCircuitBreaker of(IceScrumProjectSettings settings) {
+        String key;
+        try {
+            key = settings.getHostKey();
+        } catch (MalformedURLException e) {
+            return null;
+        }
+        IceScrumCircuitBreaker breaker = BREAKERS.get(key);
+        if (breaker == null) {
+            IceScrumCircuitBreaker created = new IceScrumCircuitBreaker(key, settings.getUrl(), FAILURE_THRESHOLD, RETRY_INTERVAL);
+            breaker = BREAKERS.putIfAbsent(key, created);
+            if (breaker == null) {
+                breaker = created;
+            }
+        }
+        return breaker;
+    }
+
+    /**
+     * @return the breaker of the settings host if a request was already made to it
+     */
+    public static IceScrumCircuitBreaker getIfPresent(IceScrumProjectSettings settings) {
+        try {
+            return BREAKERS.get(settings.getHostKey());
+        } catch (MalformedURLException e) {
+            return null;
+        }
+    }
+
+    static Collection<IceScrumCircuitBreaker> all() {
+        return BREAKERS.values();
+    }
+
+    /**
+     * @return false if the request must not be made. A request allowed must report with {@link #onSuccess()},
+     * {@link #onFailure()}, or {@link #release()} if it is finally not made.
+     */
+    public synchronized boolean allowRequest() {
+        long now = System.currentTimeMillis();
+        switch (state) {
+            case CLOSED:
+                return true;
+            case OPEN:
+                if (now - openedAt >= retryInterval) {
+                    // let a single trial request through
+                    state = State.HALF_OPEN;
+                    trialAt = now;
+                    return true;
+                }
+                return false;
+            default:
+                if (now - trialAt >= trialTimeout) {
+                    // the trial request never reported, let another one through
+                    trialAt = now;
+                    return true;
+                }
+                return false;
+        }
+    }
+
+    /**
+     * Gives back the trial slot of a request allowed by {@link #allowRequest()} but not made, so that the next
+     * request is the trial.
+     */
+    public synchronized void release() {
+        if (state == State.HALF_OPEN) {
+            state = State.OPEN;
+        }
+    }
+
+    public synchronized void onSuccess() {
+        if (state != State.CLOSED) {
+            LOGGER.log(Level.INFO, "iceScrum server {0} is reachable again", url);
+        }
+        state = State.CLOSED;
+        consecutiveFailures = 0;
+    }
+
+    public synchronized void onFailure() {
+        consecutiveFailures++;
+        if (state == State.HALF_OPEN || (state == State.CLOSED && consecutiveFailures >= failureThreshold)) {
+            if (state == State.CLOSED) {
+                LOGGER.log(Level.WARNING, "iceScrum server {0} failed {1} times in a row, suspending requests", new Object[]{url, consecutiveFailures});
+            }
+            state = State.OPEN;
+            openedAt = System.currentTimeMillis();
+        }
+    }
+
+    public synchronized State getState() {
+        return state;
+    }
+
+    public synchronized boolean isClosed() {
+        return state == State.CLOSED;
+    }
+
+    /**
+     * @return when the breaker last opened, 0 if it never did
+     */
+    public synchronized long getOpenedAt() {
+        return openedAt;
+    }
+
+    public synchronized int getConsecutiveFailures() {
+        return consecutiveFailures;
+    }
+
+    public String getHostKey() {
+        return hostKey;
+    }
+
+    public String getUrl() {
+        return url;
+    }
+
+    /**
+     * Asks <code>/version/</code> to the hosts whose breaker is open, and closes it when they answer.
+     */
+    @Extension
+    public static class HealthProbe extends AsyncPeriodicWork {
+
+        public HealthProbe() {
+            super("iceScrum health probe");
+        }
+
+        @Override
+        public long getRecurrencePeriod() {
+            return PROBE_INTERVAL;
+        }
+
+        @Override
+        protected void execute(TaskListener listener) throws IOException, InterruptedException {
+            for (IceScrumCircuitBreaker breaker : all()) {
+                if (!breaker.isClosed() && IceScrumSession.probe(breaker.getHostKey(), breaker.getUrl())) {
+                    breaker.onSuccess();
+                }
+            }
+        }
+    }
+
+    private static final Logger LOGGER = Logger.getLogger(IceScrumCircuitBreaker.class.getName());
+}
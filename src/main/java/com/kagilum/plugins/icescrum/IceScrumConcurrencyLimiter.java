@@ -0,0 +1,389 @@
+/*
+ * Copyright 2013 Kagilum SAS.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Author(s):
+ *
+ * Vincent Barrier (vbarrier@kagilum.com)
+ */
+package com.kagilum.plugins.icescrum;
+
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
+
+import java.net.MalformedURLException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Bounds the requests in flight to an iceScrum host, the bound adapting to what the server can take.
+ *
+ * The limit grows by one every time a full window of requests completes without sign of saturation
+ * (additive increase), and is multiplied by
+ * <code>com.kagilum.plugins.icescrum.IceScrumConcurrencyLimiter.backoffRatio</code> when the server answers
+ * 503 or 429, when no answer comes back, or when a request takes more than
+ * <code>.latencyTolerance</code> times the shortest recent round trip of requests of the same kind, see
+ * {@link #kind(IceScrumRequest)} (multiplicative decrease).
+ * It stays between <code>.minLimit</code> and the size of the connection pool, starting at <code>.initialLimit</code>.
+ *
+ * On top of this, a {@link IceScrumRateLimiter} of <code>.rate</code> requests per second, bursting up to
+ * <code>.burst</code>, keeps a busy controller from flooding the server when latency alone does not show it. A request
+ * given up because of either wait doesn't hold its token, so that a burst of refused requests doesn't delay the next ones.
+ *
+ * Waiting takes no thread: {@link #acquireAsync(long, String)} queues the request, and its permit is handed over by a
+ * timer once the rate allows it, or by the request in flight completing first.
+ */
+public final class IceScrumConcurrencyLimiter {
+
+    static final int INITIAL_LIMIT = Math.max(1, Integer.getInteger(IceScrumConcurrencyLimiter.class.getName() + ".initialLimit", 4));
+    static final int MIN_LIMIT = Math.max(1, Integer.getInteger(IceScrumConcurrencyLimiter.class.getName() + ".minLimit", 1));
+    static final double BACKOFF_RATIO = Double.parseDouble(System.getProperty(IceScrumConcurrencyLimiter.class.getName() + ".backoffRatio", "0.5"));
+    static final double LATENCY_TOLERANCE = Double.parseDouble(System.getProperty(IceScrumConcurrencyLimiter.class.getName() + ".latencyTolerance", "2.0"));
+    static final double RATE = Double.parseDouble(System.getProperty(IceScrumConcurrencyLimiter.class.getName() + ".rate", "25"));
+    static final int BURST = Integer.getInteger(IceScrumConcurrencyLimiter.class.getName() + ".burst", 50);
+
+    // the shortest round trip is forgotten after a while, so that a server permanently slower is not mistaken for an overloaded one
+    private static final long MIN_RTT_WINDOW = TimeUnit.MINUTES.toNanos(1);
+
+    private static final ConcurrentMap<String, IceScrumConcurrencyLimiter> LIMITERS = new ConcurrentHashMap<String, IceScrumConcurrencyLimiter>();
+
+    private static final ScheduledExecutorService TIMER = Executors.newSingleThreadScheduledExecutor(
+            new NamingThreadFactory(new DaemonThreadFactory(), "IceScrumConcurrencyLimiterTimer"));
+
+    public enum Outcome {
+        /** the server answered in time */
+        SUCCESS,
+        /** the server is saturated: 503, 429 or no answer */
+        DROPPED,
+        /** the request says nothing about the server load, the limit is left as it is */
+        IGNORED
+    }
+
+    private final String hostKey;
+    private final int minLimit;
+    private final int maxLimit;
+    private final double backoffRatio;
+    private final double latencyTolerance;
+    private final IceScrumRateLimiter rateLimiter;
+
+    private double limit;
+    private int inFlight;
+    // shortest recent round trip and when it started being measured, by kind of request
+    private final Map<String, long[]> minRtts = new HashMap<String, long[]>();
+    // requests started before the last decrease are not allowed to decrease the limit again
+    private long generation;
+    // requests waiting for one in flight to complete, first come first served
+    private final Queue<Waiter> waiters = new ArrayDeque<Waiter>();
+
+    IceScrumConcurrencyLimiter(String hostKey, int initialLimit, int minLimit, int maxLimit,
+                               double backoffRatio, double latencyTolerance, IceScrumRateLimiter rateLimiter) {
+        this.hostKey = hostKey;
+        this.minLimit = Math.max(1, minLimit);
+        this.maxLimit = Math.max(this.minLimit, maxLimit);
+        this.backoffRatio = backoffRatio;
+        this.latencyTolerance = latencyTolerance;
+        this.rateLimiter = rateLimiter;
+        this.limit = Math.min(this.maxLimit, Math.max(this.minLimit, initialLimit));
+    }
+
+    /**
+     * @return the limiter of the settings host, null if the url is malformed
+     */
+    public static IceScrumConcurrencyLimiter of(IceScrumProjectSettings settings) {
+        String key;
+        try {
+            key = settings.getHostKey();
+        } catch (MalformedURLException e) {
+            return null;
+        }
+        IceScrumConcurrencyLimiter limiter = LIMITERS.get(key);
+        if (limiter == null) {
+            IceScrumConcurrencyLimiter created = new IceScrumConcurrencyLimiter(key, INITIAL_LIMIT, MIN_LIMIT,
+                    IceScrumSession.MAX_CONNECTIONS_PER_HOST, BACKOFF_RATIO, LATENCY_TOLERANCE, new IceScrumRateLimiter(RATE, BURST));
+            limiter = LIMITERS.putIfAbsent(key, created);
+            if (limiter == null) {
+                limiter = created;
+            }
+        }
+        return limiter;
+    }
+
+    /**
+     * @return the kind of a request, as compared by latency: its method and the order of magnitude of its body,
+     * a chunk of thousands of tasks being expected to take longer than a status check
+     */
+    static String kind(IceScrumRequest request) {
+        long bytes = request.getBody() != null ? request.getBody().getContentLength() : 0;
+        // powers of 4 KB
+        return request.getMethod() + " " + (64 - Long.numberOfLeadingZeros(Math.max(0, bytes) >> 12)) / 2;
+    }
+
+    /**
+     * Same as {@link #acquire(long, String)} for requests all of the same kind.
+     */
+    public Permit acquire(long timeoutMillis) throws InterruptedException {
+        return acquire(timeoutMillis, "");
+    }
+
+    /**
+     * Waits for the rate limiter, then for a request in flight to complete if the limit is reached.
+     *
+     * @param kind of the request, see {@link #kind(IceScrumRequest)}
+     * @return a permit to give back to {@link #release(Permit, Outcome)}, null if none was available in time
+     */
+    public Permit acquire(long timeoutMillis, String kind) throws InterruptedException {
+        ListenableFuture<Permit> permit = acquireAsync(timeoutMillis, kind);
+        try {
+            return permit.get();
+        } catch (InterruptedException e) {
+            permit.cancel(false);
+            throw e;
+        } catch (ExecutionException e) {
+            throw new IllegalStateException(e.getCause());
+        }
+    }
+
+    /**
+     * Same as {@link #acquire(long, String)} without blocking the calling thread.
+     *
+     * @return completes with the permit, or with null if none was available in time, on the thread handing it over:
+     * the caller, the timer of the limiters or the one releasing a permit
+     */
+    public ListenableFuture<Permit> acquireAsync(long timeoutMillis, String kind) {
+        long timeout = TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        final Waiter waiter = new Waiter(kind, System.nanoTime() + timeout);
+        long wait = rateLimiter != null ? rateLimiter.reserve(timeout) : 0;
+        if (wait < 0) {
+            return Futures.immediateFuture(null);
+        }
+        if (wait == 0) {
+            enqueue(waiter);
+            return waiter.permit;
+        }
+        try {
+            TIMER.schedule(new Runnable() {
+                public void run() {
+                    enqueue(waiter);
+                }
+            }, wait, TimeUnit.NANOSECONDS);
+        } catch (RejectedExecutionException e) {
+            giveUp(waiter);
+        }
+        return waiter.permit;
+    }
+
+    /**
+     * Hands a permit over at once if the limit allows it, queues the waiter until its deadline otherwise.
+     */
+    private void enqueue(final Waiter waiter) {
+        long remaining;
+        synchronized (this) {
+            remaining = waiter.deadline - System.nanoTime();
+            if (waiters.isEmpty() && inFlight < (int) limit) {
+                waiter.granted = take(waiter.kind);
+            } else if (remaining > 0) {
+                waiters.add(waiter);
+            }
+        }
+        if (waiter.granted != null) {
+            hand(waiter);
+        } else if (remaining <= 0) {
+            giveUp(waiter);
+        } else {
+            try {
+                waiter.timeout = TIMER.schedule(new Runnable() {
+                    public void run() {
+                        expire(waiter);
+                    }
+                }, remaining, TimeUnit.NANOSECONDS);
+            } catch (RejectedExecutionException e) {
+                expire(waiter);
+            }
+        }
+    }
+
+    private void expire(Waiter waiter) {
+        synchronized (this) {
+            if (!waiters.remove(waiter)) {
+                // handed a permit meanwhile
+                return;
+            }
+        }
+        giveUp(waiter);
+    }
+
+    /**
+     * Called with the lock held.
+     */
+    private Permit take(String kind) {
+        inFlight++;
+        return new Permit(generation, inFlight, System.nanoTime(), kind);
+    }
+
+    /**
+     * Called without the lock, the permit listeners may start their request at once.
+     */
+    private void hand(Waiter waiter) {
+        ScheduledFuture<?> timeout = waiter.timeout;
+        if (timeout != null) {
+            timeout.cancel(false);
+        }
+        if (!waiter.permit.set(waiter.granted)) {
+            // given up by a caller of acquire
+            release(waiter.granted, Outcome.IGNORED);
+            cancelToken();
+        }
+    }
+
+    private void giveUp(Waiter waiter) {
+        cancelToken();
+        waiter.permit.set(null);
+    }
+
+    private void cancelToken() {
+        if (rateLimiter != null) {
+            rateLimiter.cancel();
+        }
+    }
+
+    /**
+     * Gives the permit back, adapts the limit to the way the request went, and hands the permits now available to
+     * the requests waiting for them.
+     */
+    public void release(Permit permit, Outcome outcome) {
+        List<Waiter> handed = new ArrayList<Waiter>();
+        synchronized (this) {
+            adapt(permit, outcome);
+            while (inFlight < (int) limit && !waiters.isEmpty()) {
+                Waiter waiter = waiters.poll();
+                if (waiter.permit.isCancelled()) {
+                    cancelToken();
+                    continue;
+                }
+                waiter.granted = take(waiter.kind);
+                handed.add(waiter);
+            }
+        }
+        for (Waiter waiter : handed) {
+            hand(waiter);
+        }
+    }
+
+    /**
+     * Called with the lock held.
+     */
+    private void adapt(Permit permit, Outcome outcome) {
+        inFlight--;
+        long now = System.nanoTime();
+        long rtt = now - permit.start;
+        switch (outcome) {
+            case SUCCESS:
+                long[] minRtt = minRtts.get(permit.kind);
+                if (minRtt == null || now - minRtt[1] > MIN_RTT_WINDOW) {
+                    minRtt = new long[]{Long.MAX_VALUE, now};
+                    minRtts.put(permit.kind, minRtt);
+                }
+                if (rtt < minRtt[0]) {
+                    minRtt[0] = rtt;
+                }
+                if (rtt > minRtt[0] * latencyTolerance) {
+                    decrease(permit, "latency");
+                } else if (permit.inFlight * 2 >= (int) limit) {
+                    // only grow a limit which is actually used
+                    limit = Math.min(maxLimit, limit + 1 / limit);
+                }
+                break;
+            case DROPPED:
+                decrease(permit, "dropped request");
+                break;
+            default:
+                break;
+        }
+    }
+
+    private void decrease(Permit permit, String reason) {
+        if (permit.generation != generation) {
+            return;
+        }
+        generation++;
+        double previous = limit;
+        limit = Math.max(minLimit, Math.floor(limit * backoffRatio));
+        if ((int) previous != (int) limit) {
+            LOGGER.log(Level.FINE, "Concurrency limit of iceScrum host {0} lowered from {1} to {2} ({3})",
+                    new Object[]{hostKey, (int) previous, (int) limit, reason});
+        }
+    }
+
+    public synchronized int getLimit() {
+        return (int) limit;
+    }
+
+    public synchronized int getInFlight() {
+        return inFlight;
+    }
+
+    /**
+     * Right to send one request, remembers when it started.
+     */
+    public static final class Permit {
+
+        private final long generation;
+        private final int inFlight;
+        private final long start;
+        private final String kind;
+
+        Permit(long generation, int inFlight, long start, String kind) {
+            this.generation = generation;
+            this.inFlight = inFlight;
+            this.start = start;
+            this.kind = kind;
+        }
+    }
+
+    /**
+     * A request waiting for its permit.
+     */
+    private static final class Waiter {
+
+        private final String kind;
+        private final long deadline;
+        private final SettableFuture<Permit> permit = SettableFuture.create();
+        private volatile Permit granted;
+        private volatile ScheduledFuture<?> timeout;
+
+        Waiter(String kind, long deadline) {
+            this.kind = kind;
+            this.deadline = deadline;
+        }
+    }
+
+    private static final Logger LOGGER = Logger.getLogger(IceScrumConcurrencyLimiter.class.getName());
+}
@@ -0,0 +1,183 @@
+/*
+ * Copyright 2013 Kagilum SAS.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Author(s):
+ *
+ * Vincent Barrier (vbarrier@kagilum.com)
+ */
+package com.kagilum.plugins.icescrum;
+
+import hudson.model.TaskListener;
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * The notifications of one build to the project of its job and to the other projects of the job, see
+ * {@link IceScrumProjectTarget}.
+ *
+ * Every project gets its own notification, all queued at once on the {@link IceScrumNotificationDispatcher}, so that
+ * the projects are sent to in parallel and a failing or slow project doesn't hold the others. The caller is told once
+ * every project has answered, or once the timeout (<code>com.kagilum.plugins.icescrum.IceScrumFanOut.timeout</code> ms,
+ * 60 s by default) has elapsed: the projects still pending are then reported in the console and carry on in the background.
+ */
+final class IceScrumFanOut {
+
+    static final long TIMEOUT = Long.getLong(IceScrumFanOut.class.getName() + ".timeout", 60 * 1000);
+
+    private static final ScheduledExecutorService TIMER = Executors.newSingleThreadScheduledExecutor(
+            new NamingThreadFactory(new DaemonThreadFactory(), "IceScrumFanOutTimer"));
+
+    private final TaskListener listener;
+    private final long timeout;
+    private final List<IceScrumNotification> notifications = new ArrayList<IceScrumNotification>();
+    // callbacks of the notifications still waiting for their outcome, a project may be notified more than once
+    private final Set<IceScrumNotification.Callback> pending =
+            Collections.newSetFromMap(new IdentityHashMap<IceScrumNotification.Callback, Boolean>());
+    private Runnable onDone;
+    private ScheduledFuture<?> timer;
+    private boolean done;
+
+    IceScrumFanOut(TaskListener listener, long timeout) {
+        this.listener = listener;
+        this.timeout = timeout;
+    }
+
+    /**
+     * Adds a project, its callback being told about its outcome as usual.
+     */
+    void add(IceScrumNotification notification) {
+        final IceScrumNotification.Callback callback = notification.getCallback();
+        notifications.add(new IceScrumNotification(notification.getJobName(), notification.getSettings(), notification.getBuild(),
+                notification.getRemainingTimes(), new IceScrumNotification.Callback() {
+            public void onSuccess(IceScrumProjectSettings settings) {
+                try {
+                    callback.onSuccess(settings);
+                } finally {
+                    arrived(this);
+                }
+            }
+
+            public void onFailure(IceScrumProjectSettings settings, String error) {
+                try {
+                    callback.onFailure(settings, error);
+                } finally {
+                    arrived(this);
+                }
+            }
+
+            public void onDeferred(IceScrumProjectSettings settings, String error) {
+                try {
+                    callback.onDeferred(settings, error);
+                } finally {
+                    arrived(this);
+                }
+            }
+        }, notification.getTrace()));
+    }
+
+    int size() {
+        return notifications.size();
+    }
+
+    /**
+     * Queues every notification.
+     *
+     * @param onDone run once, when every project has answered or on timeout, null if nobody waits
+     */
+    void dispatch(Runnable onDone) {
+        dispatch(onDone, true);
+    }
+
+    /**
+     * @param inline false if the calling thread must never send, see {@link IceScrumNotificationDispatcher#dispatch(IceScrumNotification, boolean)}
+     */
+    void dispatch(Runnable onDone, boolean inline) {
+        synchronized (this) {
+            this.onDone = onDone;
+            for (IceScrumNotification notification : notifications) {
+                pending.add(notification.getCallback());
+            }
+            if (pending.isEmpty()) {
+                finish();
+                return;
+            }
+            try {
+                timer = TIMER.schedule(new Runnable() {
+                    public void run() {
+                        timeout();
+                    }
+                }, timeout, TimeUnit.MILLISECONDS);
+            } catch (RejectedExecutionException e) {
+                // no timeout, every project still answers through the dispatcher
+            }
+        }
+        for (IceScrumNotification notification : notifications) {
+            IceScrumNotificationDispatcher.get().dispatch(notification, inline);
+        }
+    }
+
+    private void arrived(IceScrumNotification.Callback callback) {
+        synchronized (this) {
+            if (!pending.remove(callback) || !pending.isEmpty() || done) {
+                return;
+            }
+            if (timer != null) {
+                timer.cancel(false);
+            }
+            finish();
+        }
+    }
+
+    private synchronized void timeout() {
+        if (done) {
+            return;
+        }
+        for (IceScrumNotification notification : notifications) {
+            if (pending.contains(notification.getCallback())) {
+                listener.getLogger().println(Messages.IceScrumFanOut_timeout(notification.getSettings().getProjectUrl(), timeout / 1000));
+            }
+        }
+        finish();
+    }
+
+    /**
+     * Called with the lock held.
+     */
+    private void finish() {
+        done = true;
+        if (onDone != null) {
+            try {
+                onDone.run();
+            } catch (RuntimeException e) {
+                LOGGER.log(Level.WARNING, "iceScrum notification callback failed", e);
+            }
+        }
+    }
+
+    private static final Logger LOGGER = Logger.getLogger(IceScrumFanOut.class.getName());
+}
@@ -0,0 +1,143 @@
+/*
+ * Copyright 2013 Kagilum SAS.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Author(s):
+ *
+ * Vincent Barrier (vbarrier@kagilum.com)
+ */
+package com.kagilum.plugins.icescrum;
+
+import hudson.Extension;
+import hudson.util.FormValidation;
+import jenkins.model.GlobalConfiguration;
+import net.sf.json.JSONObject;
+import org.kohsuke.stapler.DataBoundSetter;
+import org.kohsuke.stapler.QueryParameter;
+import org.kohsuke.stapler.StaplerRequest;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * iceScrum servers shared by the jobs, and the prefixes of the references recognized in commit messages.
+ */
+@Extension
+public final class IceScrumGlobalConfiguration extends GlobalConfiguration {
+
+    private List<IceScrumServer> servers = new ArrayList<IceScrumServer>();
+
+    private String taskPrefixes = IceScrumReferenceScanner.DEFAULT_TASK_PREFIXES;
+    private String storyPrefixes;
+    private String featurePrefixes;
+
+    private transient volatile Map<String, IceScrumServer> serversById;
+
+    public IceScrumGlobalConfiguration() {
+        load();
+        updateScanner();
+    }
+
+    public static IceScrumGlobalConfiguration get() {
+        return GlobalConfiguration.all().get(IceScrumGlobalConfiguration.class);
+    }
+
+    public List<IceScrumServer> getServers() {
+        return servers != null ? Collections.unmodifiableList(servers) : Collections.<IceScrumServer>emptyList();
+    }
+
+    @DataBoundSetter
+    public void setServers(List<IceScrumServer> servers) {
+        this.servers = servers != null ? new ArrayList<IceScrumServer>(servers) : new ArrayList<IceScrumServer>();
+        this.serversById = null;
+    }
+
+    /**
+     * @return the server with this id, null if there is none
+     */
+    public IceScrumServer getServer(String id) {
+        Map<String, IceScrumServer> map = serversById;
+        if (map == null) {
+            map = new HashMap<String, IceScrumServer>();
+            for (IceScrumServer server : getServers()) {
+                map.put(server.getId(), server);
+            }
+            serversById = map;
+        }
+        return id != null ? map.get(id) : null;
+    }
+
+    public String getTaskPrefixes() {
+        return taskPrefixes;
+    }
+
+    @DataBoundSetter
+    public void setTaskPrefixes(String taskPrefixes) {
+        this.taskPrefixes = taskPrefixes;
+    }
+
+    public String getStoryPrefixes() {
+        return storyPrefixes;
+    }
+
+    @DataBoundSetter
+    public void setStoryPrefixes(String storyPrefixes) {
+        this.storyPrefixes = storyPrefixes;
+    }
+
+    public String getFeaturePrefixes() {
+        return featurePrefixes;
+    }
+
+    @DataBoundSetter
+    public void setFeaturePrefixes(String featurePrefixes) {
+        this.featurePrefixes = featurePrefixes;
+    }
+
+    public FormValidation doCheckTaskPrefixes(@QueryParameter String value) {
+        return checkPrefixes(value);
+    }
+
+    public FormValidation doCheckStoryPrefixes(@QueryParameter String value) {
+        return checkPrefixes(value);
+    }
+
+    public FormValidation doCheckFeaturePrefixes(@QueryParameter String value) {
+        return checkPrefixes(value);
+    }
+
+    private static FormValidation checkPrefixes(String value) {
+        return IceScrumReferenceScanner.isValidPrefixes(value) ? FormValidation.ok() : FormValidation.error(Messages.IceScrumGlobalConfiguration_error_prefixes());
+    }
+
+    @Override
+    public boolean configure(StaplerRequest req, JSONObject json) throws FormException {
+        setServers(null);
+        req.bindJSON(this, json);
+        save();
+        updateScanner();
+        return true;
+    }
+
+    /**
+     * Compiles the prefixes once for every changelog to scan, links annotated with the previous ones are dropped.
+     */
+    private void updateScanner() {
+        IceScrumReferenceScanner.set(new IceScrumReferenceScanner(taskPrefixes, storyPrefixes, featurePrefixes));
+        IceScrumLinkAnnotator.CACHE.clear();
+    }
+}
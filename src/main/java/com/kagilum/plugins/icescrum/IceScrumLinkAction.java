@@ -21,13 +21,22 @@ package com.kagilum.plugins.icescrum;
 
 
 import hudson.model.Action;
+import hudson.model.Job;
+
+import java.util.Date;
 
 public class IceScrumLinkAction implements Action {
 
     private final transient IceScrumProjectProperty projectProperty;
+    private final transient String jobName;
 
     public IceScrumLinkAction(IceScrumProjectProperty iceScrumProjectProperty) {
+        this(iceScrumProjectProperty, null);
+    }
+
+    public IceScrumLinkAction(IceScrumProjectProperty iceScrumProjectProperty, Job<?, ?> job) {
         this.projectProperty = iceScrumProjectProperty;
+        this.jobName = job != null ? job.getFullName() : null;
     }
 
     public String getDisplayName() {
@@ -41,4 +50,29 @@ public class IceScrumLinkAction implements Action {
     public String getUrlName() {
         return projectProperty.getSettings().getProjectUrl();
     }
+
+    /**
+     * @return full name of the job, to restrict {@link IceScrumTaskIndexAction} lookups to it
+     */
+    public String getJobName() {
+        return jobName;
+    }
+
+    /**
+     * @return a warning shown on the job page while the iceScrum server is considered down, null otherwise
+     */
+    public String getServerStatus() {
+        IceScrumCircuitBreaker breaker = IceScrumCircuitBreaker.getIfPresent(projectProperty.getSettings());
+        if (breaker == null) {
+            return null;
+        }
+        switch (breaker.getState()) {
+            case OPEN:
+                return Messages.IceScrumLinkAction_circuit_open(breaker.getUrl(), new Date(breaker.getOpenedAt()));
+            case HALF_OPEN:
+                return Messages.IceScrumLinkAction_circuit_halfOpen(breaker.getUrl());
+            default:
+                return null;
+        }
+    }
 }
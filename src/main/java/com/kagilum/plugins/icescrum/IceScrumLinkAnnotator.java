@@ -24,27 +24,151 @@ import hudson.MarkupText;
 import hudson.model.AbstractBuild;
 import hudson.scm.ChangeLogAnnotator;
 import hudson.scm.ChangeLogSet;
-import java.util.regex.Pattern;
+import org.jvnet.localizer.LocaleProvider;
 
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Links the tasks, stories and features referenced in changelog entries to iceScrum, see {@link IceScrumReferenceScanner}
+ * for the recognized references.
+ *
+ * Task links show the name and state of the task when {@link IceScrumTaskCache} knows them, rendering never waits for them.
+ */
 @Extension
 public class IceScrumLinkAnnotator extends ChangeLogAnnotator {
+
+    static final IceScrumAnnotationCache CACHE = new IceScrumAnnotationCache(IceScrumAnnotationCache.MAX_WEIGHT);
+
+    private static final ConcurrentMap<Locale, Titles> TITLES = new ConcurrentHashMap<Locale, Titles>();
+
     @Override
     public void annotate(AbstractBuild<?, ?> abstractBuild, ChangeLogSet.Entry change, MarkupText markupText) {
         final IceScrumProjectProperty p = abstractBuild.getProject().getProperty(IceScrumProjectProperty.class);
         if (null == p || null == p.getSettings()) {
             return;
         }
-        annotate(p.getSettings().getProjectUrl(), markupText);
+        String url = p.getSettings().getProjectUrl();
+        String text = markupText.getText();
+        IceScrumTaskCache.Tasks tasks = IceScrumTaskCache.get().lookup(p.getSettings());
+        // link titles are localized and show the tasks fetched, so is the cached markup
+        String key = abstractBuild.getParent().getFullName() + "#" + abstractBuild.getNumber() + "#"
+                + LocaleProvider.getLocale() + "#" + (tasks != null ? tasks.getGeneration() : 0) + "#"
+                + (change.getCommitId() != null ? change.getCommitId() : text);
+        IceScrumAnnotationCache.Annotation annotation = CACHE.get(key, url, text);
+        if (annotation == null) {
+            annotation = annotation(IceScrumReferenceScanner.get(), url, text, tasks);
+            CACHE.put(key, annotation);
+        }
+        annotation.applyTo(markupText);
     }
 
     public void annotate(String url, final MarkupText text) {
-        for (MarkupText.SubText st : text.findTokens(Pattern.compile(IceScrumSession.TASK_PATTERN))) {
-            if (st.group(2) == null){
-                String detailsI18n = Messages.IceScrumLinkAnnotator_icescrum_link_details();
-                st.surroundWith("<a href='" + url + "-T$1' title='"+detailsI18n+"'>", "</a>");
-            } else {
-                String detailsI18n = Messages.IceScrumLinkAnnotator_icescrum_link_details_time();
-                st.surroundWith("<a href='" + url + "-T$1' title='"+detailsI18n+"'>", "</a>");
+        annotation(url, text.getText()).applyTo(text);
+    }
+
+    static IceScrumAnnotationCache.Annotation annotation(String url, String text) {
+        return annotation(IceScrumReferenceScanner.get(), url, text);
+    }
+
+    static IceScrumAnnotationCache.Annotation annotation(IceScrumReferenceScanner scanner, String url, String text) {
+        return annotation(scanner, url, text, null);
+    }
+
+    /**
+     * @param tasks null if the tasks of the project are not known
+     */
+    static IceScrumAnnotationCache.Annotation annotation(IceScrumReferenceScanner scanner, final String url, String text,
+                                                         final IceScrumTaskCache.Tasks tasks) {
+        final Titles titles = Titles.current();
+        final Links links = new Links();
+        scanner.scan(text, new IceScrumReferenceScanner.Visitor() {
+            public void visit(IceScrumReferenceScanner.Type type, int id, int start, int end, String remainingTime) {
+                links.add(start, end, "<a href='" + url + type.getPermalink() + id + "' title='" + titles.of(type, id, remainingTime, tasks) + "'>");
+            }
+        });
+        if (links.count == 0) {
+            return new IceScrumAnnotationCache.Annotation(url, text, null, null, null);
+        }
+        return new IceScrumAnnotationCache.Annotation(url, text, Arrays.copyOf(links.starts, links.count),
+                Arrays.copyOf(links.ends, links.count), Arrays.copyOf(links.startTags, links.count));
+    }
+
+    /**
+     * Link spans found in a text, in order.
+     */
+    private static final class Links {
+
+        private int count;
+        private int[] starts;
+        private int[] ends;
+        private String[] startTags;
+
+        void add(int start, int end, String startTag) {
+            if (starts == null) {
+                starts = new int[4];
+                ends = new int[4];
+                startTags = new String[4];
+            } else if (count == starts.length) {
+                starts = Arrays.copyOf(starts, count * 2);
+                ends = Arrays.copyOf(ends, count * 2);
+                startTags = Arrays.copyOf(startTags, count * 2);
+            }
+            starts[count] = start;
+            ends[count] = end;
+            startTags[count] = startTag;
+            count++;
+        }
+    }
+
+    /**
+     * Link titles of a locale, resolved once.
+     */
+    private static final class Titles {
+
+        private final String task;
+        private final String taskTime;
+        private final String story;
+        private final String feature;
+        private final String[] states;
+
+        private Titles() {
+            task = Messages.IceScrumLinkAnnotator_icescrum_link_details();
+            taskTime = Messages.IceScrumLinkAnnotator_icescrum_link_details_time();
+            story = Messages.IceScrumLinkAnnotator_icescrum_link_story();
+            feature = Messages.IceScrumLinkAnnotator_icescrum_link_feature();
+            states = new String[]{Messages.IceScrumLinkAnnotator_icescrum_task_todo(),
+                    Messages.IceScrumLinkAnnotator_icescrum_task_inProgress(), Messages.IceScrumLinkAnnotator_icescrum_task_done()};
+        }
+
+        static Titles current() {
+            Locale locale = LocaleProvider.getLocale();
+            Titles titles = TITLES.get(locale);
+            if (titles == null) {
+                titles = new Titles();
+                TITLES.putIfAbsent(locale, titles);
+            }
+            return titles;
+        }
+
+        String of(IceScrumReferenceScanner.Type type, int id, String remainingTime, IceScrumTaskCache.Tasks tasks) {
+            switch (type) {
+                case STORY:
+                    return story.replace("$1", Integer.toString(id));
+                case FEATURE:
+                    return feature.replace("$1", Integer.toString(id));
+                default:
+                    String title = remainingTime == null ? task.replace("$1", Integer.toString(id))
+                            : taskTime.replace("$1", Integer.toString(id)).replace("$2", remainingTime);
+                    String name = tasks != null ? tasks.getName(id) : null;
+                    if (name == null) {
+                        return title;
+                    }
+                    // the name comes escaped, and is not given to replace() where it could hold placeholders
+                    int state = tasks.getState(id);
+                    return title + " - " + name + (state >= 0 && state < states.length ? " (" + states[state] + ")" : "");
             }
         }
     }
@@ -0,0 +1,263 @@
+/*
+ * Copyright 2013 Kagilum SAS.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Author(s):
+ *
+ * Vincent Barrier (vbarrier@kagilum.com)
+ */
+package com.kagilum.plugins.icescrum;
+
+import hudson.init.Terminator;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.net.MalformedURLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Counters and histograms of the notifier, per iceScrum host and per project.
+ *
+ * Every scope is registered as an MXBean named
+ * <code>com.kagilum.plugins.icescrum:type=Metrics,scope=host|project,name=...</code>
+ * and listed on the {@link IceScrumMetricsManagementLink} page.
+ */
+public final class IceScrumMetrics {
+
+    private static final IceScrumMetrics INSTANCE = new IceScrumMetrics();
+
+    private final ConcurrentMap<String, Scope> hosts = new ConcurrentHashMap<String, Scope>();
+    private final ConcurrentMap<String, Scope> projects = new ConcurrentHashMap<String, Scope>();
+
+    public static IceScrumMetrics get() {
+        return INSTANCE;
+    }
+
+    /**
+     * Records the payload creation of a build.
+     */
+    public void recordBuildObject(IceScrumProjectSettings settings, long nanos, int tasks) {
+        for (Scope scope : scopesOf(settings)) {
+            scope.builds.incrementAndGet();
+            scope.buildObjectTime.record(TimeUnit.NANOSECONDS.toMicros(nanos));
+            scope.tasksPerBuild.record(tasks);
+        }
+    }
+
+    /**
+     * Records a request sending build statuses.
+     *
+     * @param status HTTP status, 0 when no response was received
+     */
+    public void recordSend(IceScrumProjectSettings settings, long nanos, long payloadBytes, int status, boolean success) {
+        for (Scope scope : scopesOf(settings)) {
+            scope.sendAttempts.incrementAndGet();
+            scope.sendLatency.record(TimeUnit.NANOSECONDS.toMicros(nanos));
+            scope.payloadSize.record(payloadBytes);
+            if (success) {
+                scope.sendSuccesses.incrementAndGet();
+            } else {
+                scope.failure(status);
+            }
+        }
+    }
+
+    public List<Scope> getHosts() {
+        return sorted(hosts);
+    }
+
+    public List<Scope> getProjects() {
+        return sorted(projects);
+    }
+
+    private List<Scope> scopesOf(IceScrumProjectSettings settings) {
+        List<Scope> scopes = new ArrayList<Scope>(2);
+        try {
+            scopes.add(scope(hosts, "host", settings.getHostKey()));
+        } catch (MalformedURLException e) {
+            // no host to account it to
+        }
+        scopes.add(scope(projects, "project", settings.getProjectUrl()));
+        return scopes;
+    }
+
+    private static Scope scope(ConcurrentMap<String, Scope> scopes, String type, String name) {
+        Scope scope = scopes.get(name);
+        if (scope == null) {
+            Scope created = new Scope(type, name);
+            scope = scopes.putIfAbsent(name, created);
+            if (scope == null) {
+                scope = created;
+                scope.register();
+            }
+        }
+        return scope;
+    }
+
+    private static List<Scope> sorted(Map<String, Scope> scopes) {
+        return Collections.unmodifiableList(new ArrayList<Scope>(new TreeMap<String, Scope>(scopes).values()));
+    }
+
+    @Terminator
+    public static void unregister() {
+        for (Scope scope : INSTANCE.hosts.values()) {
+            scope.unregister();
+        }
+        for (Scope scope : INSTANCE.projects.values()) {
+            scope.unregister();
+        }
+    }
+
+    public static final class Scope implements IceScrumMetricsMXBean {
+
+        private final String type;
+        private final String name;
+        private final AtomicLong sendAttempts = new AtomicLong();
+        private final AtomicLong sendSuccesses = new AtomicLong();
+        private final ConcurrentMap<Integer, AtomicLong> failuresByStatus = new ConcurrentHashMap<Integer, AtomicLong>();
+        private final AtomicLong builds = new AtomicLong();
+        // micro seconds
+        private final IceScrumHistogram sendLatency = new IceScrumHistogram();
+        private final IceScrumHistogram buildObjectTime = new IceScrumHistogram();
+        private final IceScrumHistogram payloadSize = new IceScrumHistogram();
+        private final IceScrumHistogram tasksPerBuild = new IceScrumHistogram();
+        private ObjectName objectName;
+
+        Scope(String type, String name) {
+            this.type = type;
+            this.name = name;
+        }
+
+        private void failure(int status) {
+            AtomicLong counter = failuresByStatus.get(status);
+            if (counter == null) {
+                AtomicLong created = new AtomicLong();
+                counter = failuresByStatus.putIfAbsent(status, created);
+                if (counter == null) {
+                    counter = created;
+                }
+            }
+            counter.incrementAndGet();
+        }
+
+        private void register() {
+            try {
+                MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+                objectName = new ObjectName("com.kagilum.plugins.icescrum:type=Metrics,scope=" + type + ",name=" + ObjectName.quote(name));
+                if (!server.isRegistered(objectName)) {
+                    server.registerMBean(this, objectName);
+                }
+            } catch (JMException e) {
+                LOGGER.log(Level.WARNING, "Unable to register iceScrum metrics of " + name + " in JMX", e);
+            }
+        }
+
+        private void unregister() {
+            if (objectName == null) {
+                return;
+            }
+            try {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+            } catch (JMException e) {
+                LOGGER.log(Level.FINE, "Unable to unregister " + objectName, e);
+            }
+        }
+
+        public String getType() {
+            return type;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public long getSendAttempts() {
+            return sendAttempts.get();
+        }
+
+        public long getSendSuccesses() {
+            return sendSuccesses.get();
+        }
+
+        public long getSendFailures() {
+            long failures = 0;
+            for (AtomicLong counter : failuresByStatus.values()) {
+                failures += counter.get();
+            }
+            return failures;
+        }
+
+        public Map<String, Long> getFailuresByStatus() {
+            Map<String, Long> failures = new TreeMap<String, Long>();
+            for (Map.Entry<Integer, AtomicLong> entry : failuresByStatus.entrySet()) {
+                failures.put(String.valueOf(entry.getKey()), entry.getValue().get());
+            }
+            return failures;
+        }
+
+        public double getSendLatencyMeanMillis() {
+            return sendLatency.getMean() / 1000;
+        }
+
+        public long getSendLatency99thPercentileMillis() {
+            return sendLatency.getPercentile(0.99) / 1000;
+        }
+
+        public long getSendLatencyMaxMillis() {
+            return sendLatency.getMax() / 1000;
+        }
+
+        public double getPayloadSizeMeanBytes() {
+            return payloadSize.getMean();
+        }
+
+        public long getPayloadSizeMaxBytes() {
+            return payloadSize.getMax();
+        }
+
+        public long getBuilds() {
+            return builds.get();
+        }
+
+        public double getTasksPerBuildMean() {
+            return tasksPerBuild.getMean();
+        }
+
+        public long getTasksPerBuildMax() {
+            return tasksPerBuild.getMax();
+        }
+
+        public double getBuildObjectTimeMeanMillis() {
+            return buildObjectTime.getMean() / 1000;
+        }
+
+        public long getBuildObjectTimeMaxMillis() {
+            return buildObjectTime.getMax() / 1000;
+        }
+    }
+
+    private static final Logger LOGGER = Logger.getLogger(IceScrumMetrics.class.getName());
+}
@@ -0,0 +1,61 @@
+/*
+ * Copyright 2013 Kagilum SAS.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Author(s):
+ *
+ * Vincent Barrier (vbarrier@kagilum.com)
+ */
+package com.kagilum.plugins.icescrum;
+
+import java.util.Map;
+
+/**
+ * Notifier activity of an iceScrum host or project, as seen through JMX.
+ */
+public interface IceScrumMetricsMXBean {
+
+    String getName();
+
+    long getSendAttempts();
+
+    long getSendSuccesses();
+
+    long getSendFailures();
+
+    /**
+     * @return failures by HTTP status, "0" when no response was received
+     */
+    Map<String, Long> getFailuresByStatus();
+
+    double getSendLatencyMeanMillis();
+
+    long getSendLatency99thPercentileMillis();
+
+    long getSendLatencyMaxMillis();
+
+    double getPayloadSizeMeanBytes();
+
+    long getPayloadSizeMaxBytes();
+
+    long getBuilds();
+
+    double getTasksPerBuildMean();
+
+    long getTasksPerBuildMax();
+
+    double getBuildObjectTimeMeanMillis();
+
+    long getBuildObjectTimeMaxMillis();
+}
@@ -0,0 +1,51 @@
+/*
+ * Copyright 2013 Kagilum SAS.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Author(s):
+ *
+ * Vincent Barrier (vbarrier@kagilum.com)
+ */
+package com.kagilum.plugins.icescrum;
+
+import hudson.Extension;
+import hudson.model.ManagementLink;
+
+/**
+ * Shows {@link IceScrumMetrics} in Manage Jenkins.
+ */
+@Extension
+public class IceScrumMetricsManagementLink extends ManagementLink {
+
+    public String getIconFileName() {
+        return "/plugin/icescrum/logo.png";
+    }
+
+    public String getDisplayName() {
+        return Messages.IceScrumMetricsManagementLink_displayName();
+    }
+
+    @Override
+    public String getDescription() {
+        return Messages.IceScrumMetricsManagementLink_description();
+    }
+
+    public String getUrlName() {
+        return "icescrum-metrics";
+    }
+
+    public IceScrumMetrics getMetrics() {
+        return IceScrumMetrics.get();
+    }
+}
@@ -0,0 +1,114 @@
+/*
+ * Copyright 2013 Kagilum SAS.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Author(s):
+ *
+ * Vincent Barrier (vbarrier@kagilum.com)
+ */
+package com.kagilum.plugins.icescrum;
+
+/**
+ * A build status waiting to be sent to an iceScrum project.
+ */
+public class IceScrumNotification {
+
+    private final String jobName;
+    private final IceScrumProjectSettings settings;
+    private final IceScrumBuildPayload build;
+    private final IceScrumRemainingTimes remainingTimes;
+    private final Callback callback;
+    private final IceScrumTrace trace;
+
+    /**
+     * @param jobName full name of the job the settings come from, used to replay the status from the outbox
+     */
+    public IceScrumNotification(String jobName, IceScrumProjectSettings settings, IceScrumBuildPayload build, Callback callback) {
+        this(jobName, settings, build, null, callback);
+    }
+
+    /**
+     * @param remainingTimes sent once the build status has been accepted, null if there are none
+     */
+    public IceScrumNotification(String jobName, IceScrumProjectSettings settings, IceScrumBuildPayload build,
+                                IceScrumRemainingTimes remainingTimes, Callback callback) {
+        this(jobName, settings, build, remainingTimes, callback, null);
+    }
+
+    /**
+     * @param trace receives the time spent sending the notification, null if not traced
+     */
+    public IceScrumNotification(String jobName, IceScrumProjectSettings settings, IceScrumBuildPayload build,
+                                IceScrumRemainingTimes remainingTimes, Callback callback, IceScrumTrace trace) {
+        this.jobName = jobName;
+        this.settings = settings;
+        this.build = build;
+        this.remainingTimes = remainingTimes;
+        this.callback = callback != null ? callback : Callback.NONE;
+        this.trace = trace;
+    }
+
+    public String getJobName() {
+        return jobName;
+    }
+
+    public IceScrumProjectSettings getSettings() {
+        return settings;
+    }
+
+    public IceScrumBuildPayload getBuild() {
+        return build;
+    }
+
+    public IceScrumRemainingTimes getRemainingTimes() {
+        return remainingTimes;
+    }
+
+    public Callback getCallback() {
+        return callback;
+    }
+
+    /**
+     * @return null if the notification is not traced
+     */
+    public IceScrumTrace getTrace() {
+        return trace;
+    }
+
+    /**
+     * Told about the outcome once the notification has been sent (or has failed).
+     */
+    public interface Callback {
+
+        Callback NONE = new Callback() {
+            public void onSuccess(IceScrumProjectSettings settings) {
+            }
+
+            public void onFailure(IceScrumProjectSettings settings, String error) {
+            }
+
+            public void onDeferred(IceScrumProjectSettings settings, String error) {
+            }
+        };
+
+        void onSuccess(IceScrumProjectSettings settings);
+
+        void onFailure(IceScrumProjectSettings settings, String error);
+
+        /**
+         * The status could not be sent now and has been written to the {@link IceScrumOutbox} to be retried.
+         */
+        void onDeferred(IceScrumProjectSettings settings, String error);
+    }
+}
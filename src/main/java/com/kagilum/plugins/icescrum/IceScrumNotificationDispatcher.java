@@ -0,0 +1,441 @@
+/*
+ * Copyright 2013 Kagilum SAS.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Author(s):
+ *
+ * Vincent Barrier (vbarrier@kagilum.com)
+ */
+package com.kagilum.plugins.icescrum;
+
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import hudson.init.Terminator;
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
+import org.apache.commons.httpclient.HttpStatus;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Controller-wide queue sending build statuses to iceScrum out of the build executors.
+ *
+ * Statuses sent to the same project with the same credentials are coalesced for a short window
+ * and posted as a single request to servers accepting several builds at once. Old servers
+ * (<code>/ws/p/</code>) get one request per build. A batch answered with any error not worth retrying is sent
+ * again one build per request, and the server isn't sent batches until its capabilities are refreshed.
+ * Remaining times found in the commit messages of a build are sent in one more request
+ * once its status has been accepted, to the servers accepting them (see {@link IceScrumServerCapabilities}).
+ *
+ * Worker count, queue size, batch window (ms) and batch size can be tuned with the
+ * <code>com.kagilum.plugins.icescrum.IceScrumNotificationDispatcher.workers</code>,
+ * <code>.queueSize</code>, <code>.batchWindow</code> and <code>.batchSize</code> system properties.
+ * A batch window of 0 disables batching. Builds referencing more tasks than a session sends in one request
+ * (see {@link IceScrumSession#sendBuildStatutAsync(IceScrumBuildPayload)}) are never batched, and a batch
+ * is sent as soon as its builds reach that many tasks.
+ *
+ * With an asynchronous {@link IceScrumTransport} the workers only hand the requests over, the
+ * responses are handled on a separate completion pool, so that many statuses can be in flight
+ * at once, within the limit of the {@link IceScrumConcurrencyLimiter} of each host. The workers never wait
+ * for that limit nor for the capabilities of a server: the requests held back by the limiter are sent from
+ * the completion pool, and so are batches once the capabilities of their server are known.
+ */
+public final class IceScrumNotificationDispatcher {
+
+    static final int WORKERS = Math.max(1, Integer.getInteger(IceScrumNotificationDispatcher.class.getName() + ".workers", 2));
+    static final int QUEUE_SIZE = Math.max(1, Integer.getInteger(IceScrumNotificationDispatcher.class.getName() + ".queueSize", 1000));
+    static final long BATCH_WINDOW = Long.getLong(IceScrumNotificationDispatcher.class.getName() + ".batchWindow", 500);
+    static final int BATCH_SIZE = Math.max(1, Integer.getInteger(IceScrumNotificationDispatcher.class.getName() + ".batchSize", 50));
+
+    private static final IceScrumNotificationDispatcher INSTANCE = new IceScrumNotificationDispatcher(WORKERS, QUEUE_SIZE, BATCH_WINDOW, BATCH_SIZE);
+
+    private final ThreadPoolExecutor executor;
+    private final ScheduledExecutorService timer;
+    private final ExecutorService completions;
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final long batchWindow;
+    private final int batchSize;
+    private final Map<String, Batch> batches = new HashMap<String, Batch>();
+
+    IceScrumNotificationDispatcher(int workers, int queueSize, long batchWindow, int batchSize) {
+        executor = new ThreadPoolExecutor(workers, workers, 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<Runnable>(queueSize),
+                new NamingThreadFactory(new DaemonThreadFactory(), "IceScrumNotificationDispatcher"));
+        executor.allowCoreThreadTimeOut(true);
+        timer = Executors.newSingleThreadScheduledExecutor(new NamingThreadFactory(new DaemonThreadFactory(), "IceScrumNotificationBatcher"));
+        // unbounded: a completion must never be refused once its request has been sent
+        completions = Executors.newFixedThreadPool(workers, new NamingThreadFactory(new DaemonThreadFactory(), "IceScrumNotificationCompletion"));
+        this.batchWindow = batchWindow;
+        this.batchSize = batchSize;
+    }
+
+    public static IceScrumNotificationDispatcher get() {
+        return INSTANCE;
+    }
+
+    /**
+     * Queues the notification and returns at once. When the queue is full the notification
+     * goes to the {@link IceScrumOutbox}, or is sent on the calling thread if it cannot be journaled.
+     */
+    public void dispatch(IceScrumNotification notification) {
+        dispatch(notification, true);
+    }
+
+    /**
+     * Same as {@link #dispatch(IceScrumNotification)}.
+     *
+     * @param inline false if the calling thread must never send, a notification that can't be queued nor
+     * journaled then fails at once
+     */
+    public void dispatch(IceScrumNotification notification, boolean inline) {
+        IceScrumProjectSettings settings = notification.getSettings();
+        int tasks = notification.getBuild().getTaskCount();
+        if (batchWindow <= 0 || batchSize <= 1 || tasks >= IceScrumSession.CHUNK_SIZE
+                || !settings.isTokenAuth() || !isBatchSupported(settings)) {
+            submit(Collections.singletonList(notification), inline);
+            return;
+        }
+        String key = settings.getProjectUrl() + "#" + settings.getAccessToken();
+        List<IceScrumNotification> full = null;
+        synchronized (batches) {
+            Batch batch = batches.get(key);
+            if (batch == null) {
+                batch = new Batch(key);
+                try {
+                    batch.flush = timer.schedule(batch, batchWindow, TimeUnit.MILLISECONDS);
+                } catch (RejectedExecutionException e) {
+                    // shutting down, no more batching
+                    full = Collections.singletonList(notification);
+                }
+                if (full == null) {
+                    batches.put(key, batch);
+                }
+            }
+            if (full == null) {
+                batch.notifications.add(notification);
+                batch.tasks += tasks;
+                if (batch.notifications.size() >= batchSize || batch.tasks >= IceScrumSession.CHUNK_SIZE) {
+                    batches.remove(key);
+                    batch.flush.cancel(false);
+                    full = batch.notifications;
+                }
+            }
+        }
+        if (full != null) {
+            submit(full, inline);
+        }
+    }
+
+    public int getQueueLength() {
+        return executor.getQueue().size();
+    }
+
+    /**
+     * @return the number of requests sent and waiting for their response
+     */
+    public int getInFlight() {
+        return inFlight.get();
+    }
+
+    private void submit(final List<IceScrumNotification> notifications, boolean inline) {
+        try {
+            executor.execute(new Runnable() {
+                public void run() {
+                    send(notifications);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            LOGGER.log(Level.FINE, "iceScrum notification queue is full");
+            for (IceScrumNotification notification : notifications) {
+                if (!defer(notification, Messages.IceScrumNotificationDispatcher_queue_full())) {
+                    if (inline) {
+                        send(notification);
+                        continue;
+                    }
+                    notification.getCallback().onFailure(notification.getSettings(), Messages.IceScrumNotificationDispatcher_queue_full());
+                }
+                if (notification.getTrace() != null) {
+                    notification.getTrace().finish();
+                }
+            }
+        }
+    }
+
+    void send(final List<IceScrumNotification> notifications) {
+        if (notifications.size() > 1) {
+            final IceScrumSession session = new IceScrumSession(notifications.get(0).getSettings());
+            session.setExecutor(completions);
+            final ListenableFuture<IceScrumServerCapabilities> capabilities = session.getCapabilitiesAsync();
+            onCompletion(capabilities, new Runnable() {
+                public void run() {
+                    send(notifications, session, Futures.getUnchecked(capabilities));
+                }
+            });
+            return;
+        }
+        for (IceScrumNotification notification : notifications) {
+            send(notification);
+        }
+    }
+
+    /**
+     * Sends the notifications as a batch if the server accepts it, one by one otherwise.
+     *
+     * @param capabilities null if the server couldn't be reached
+     */
+    private void send(final List<IceScrumNotification> notifications, final IceScrumSession session,
+                      final IceScrumServerCapabilities capabilities) {
+        final IceScrumProjectSettings settings = notifications.get(0).getSettings();
+        if (capabilities != null && capabilities.isBatchSupported()) {
+            List<IceScrumBuildPayload> builds = new ArrayList<IceScrumBuildPayload>(notifications.size());
+            for (IceScrumNotification notification : notifications) {
+                builds.add(notification.getBuild());
+                session.trace(notification.getTrace());
+            }
+            final ListenableFuture<Boolean> result = session.sendBuildStatutsAsync(builds);
+            onCompletion(result, new Runnable() {
+                public void run() {
+                    boolean sent = isSent(result);
+                    if (sent || !session.isBatchRejected()) {
+                        if (sent) {
+                            capabilities.setBatchSupported(true);
+                        }
+                        for (IceScrumNotification notification : notifications) {
+                            complete(notification, sent, session);
+                        }
+                        return;
+                    }
+                    LOGGER.log(Level.INFO, "iceScrum server {0} refused batched build statuses ({1}), sending them one by one",
+                            new Object[]{settings.getUrl(), session.getLastStatusCode()});
+                    capabilities.setBatchSupported(false);
+                    for (IceScrumNotification notification : notifications) {
+                        send(notification);
+                    }
+                }
+            });
+            return;
+        }
+        for (IceScrumNotification notification : notifications) {
+            send(notification);
+        }
+    }
+
+    void send(final IceScrumNotification notification) {
+        final IceScrumSession session = new IceScrumSession(notification.getSettings());
+        session.trace(notification.getTrace());
+        // the chunks of a large build and the requests held back by the limiter are sent from there, not from the I/O threads
+        session.setExecutor(completions);
+        final ListenableFuture<Boolean> result = session.sendBuildStatutAsync(notification.getBuild());
+        onCompletion(result, new Runnable() {
+            public void run() {
+                complete(notification, isSent(result), session);
+            }
+        });
+    }
+
+    /**
+     * Runs the completion on the calling thread with a blocking transport, on the completion pool otherwise,
+     * the I/O threads of the asynchronous transport must not wait for the outbox nor the callbacks.
+     */
+    private void onCompletion(ListenableFuture<?> result, final Runnable completion) {
+        Executor target = result.isDone() ? MoreExecutors.sameThreadExecutor() : completions;
+        inFlight.incrementAndGet();
+        result.addListener(new Runnable() {
+            public void run() {
+                try {
+                    completion.run();
+                } finally {
+                    inFlight.decrementAndGet();
+                }
+            }
+        }, target);
+    }
+
+    private static boolean isSent(ListenableFuture<Boolean> result) {
+        try {
+            return result.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        } catch (ExecutionException e) {
+            // sessions never fail their futures
+            return false;
+        }
+    }
+
+    private void complete(IceScrumNotification notification, boolean sent, IceScrumSession session) {
+        IceScrumTrace trace = notification.getTrace();
+        long start = System.nanoTime();
+        try {
+            handle(notification, sent, session);
+        } finally {
+            if (trace != null) {
+                trace.record(IceScrumTrace.Phase.RESPONSE, start, System.nanoTime());
+                trace.finish();
+            }
+        }
+    }
+
+    private void handle(IceScrumNotification notification, boolean sent, IceScrumSession session) {
+        if (!sent && session.isRetryable() && defer(notification, session.getLastError())) {
+            return;
+        }
+        if (sent && notification.getRemainingTimes() != null) {
+            sendRemainingTimes(notification);
+        }
+        try {
+            if (sent) {
+                notification.getCallback().onSuccess(notification.getSettings());
+            } else {
+                notification.getCallback().onFailure(notification.getSettings(), session.getLastError());
+            }
+        } catch (RuntimeException e) {
+            LOGGER.log(Level.WARNING, "iceScrum notification callback failed", e);
+        }
+    }
+
+    /**
+     * Updates the remaining times in a single request, unless the server is known not to accept it.
+     * Failures are only logged, the next build mentioning the tasks updates them again.
+     */
+    private void sendRemainingTimes(IceScrumNotification notification) {
+        IceScrumRemainingTimes times = notification.getRemainingTimes();
+        IceScrumProjectSettings settings = notification.getSettings();
+        IceScrumSession session = new IceScrumSession(settings);
+        IceScrumServerCapabilities capabilities = session.getCapabilities();
+        if (capabilities == null || !capabilities.isRemainingTimeSupported()) {
+            return;
+        }
+        if (session.sendRemainingTimes(times)) {
+            capabilities.setRemainingTimeSupported(true);
+            LOGGER.log(Level.FINE, "Updated the remaining time of {0} iceScrum tasks of {1}", new Object[]{times.size(), notification.getJobName()});
+        } else if (session.isUnsupported() || session.getLastStatusCode() == HttpStatus.SC_NOT_FOUND) {
+            LOGGER.log(Level.INFO, "iceScrum server {0} does not accept remaining time updates", settings.getUrl());
+            capabilities.setRemainingTimeSupported(false);
+        } else {
+            LOGGER.log(Level.WARNING, "Unable to update the remaining time of iceScrum tasks of {0}: {1}",
+                    new Object[]{notification.getJobName(), session.getLastError()});
+        }
+    }
+
+    /**
+     * @return true if the notification has been written to the outbox
+     */
+    private boolean defer(IceScrumNotification notification, String error) {
+        if (notification.getJobName() == null) {
+            return false;
+        }
+        try {
+            IceScrumOutbox.get().append(notification.getJobName(), notification.getSettings().getProjectUrl(), notification.getBuild());
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Unable to write iceScrum build status to the outbox", e);
+            return false;
+        }
+        try {
+            notification.getCallback().onDeferred(notification.getSettings(), error);
+        } catch (RuntimeException e) {
+            LOGGER.log(Level.WARNING, "iceScrum notification callback failed", e);
+        }
+        return true;
+    }
+
+    /**
+     * Reads the cached capabilities only, unknown servers are assumed to accept batches until they refuse one.
+     */
+    private boolean isBatchSupported(IceScrumProjectSettings settings) {
+        IceScrumServerCapabilities capabilities = IceScrumServerCapabilities.getCached(settings.getUrl());
+        return capabilities == null || capabilities.isBatchSupported();
+    }
+
+    /**
+     * Sends the pending batches and waits for the queued notifications.
+     */
+    void shutdown(long timeout, TimeUnit unit) throws InterruptedException {
+        timer.shutdownNow();
+        List<Batch> pending;
+        synchronized (batches) {
+            pending = new ArrayList<Batch>(batches.values());
+            batches.clear();
+        }
+        for (Batch batch : pending) {
+            submit(batch.notifications, true);
+        }
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        executor.shutdown();
+        if (!executor.awaitTermination(timeout, unit)) {
+            LOGGER.log(Level.WARNING, "{0} iceScrum notifications still pending at shutdown", executor.getQueue().size());
+            executor.shutdownNow();
+        }
+        // completions may queue more completions (batch refused, remaining times), wait for the requests to settle
+        while (inFlight.get() > 0 && System.nanoTime() < deadline) {
+            Thread.sleep(50);
+        }
+        if (inFlight.get() > 0) {
+            LOGGER.log(Level.WARNING, "{0} iceScrum notifications still in flight at shutdown", inFlight.get());
+        }
+        completions.shutdown();
+    }
+
+    @Terminator
+    public static void terminate() throws InterruptedException {
+        INSTANCE.shutdown(10, TimeUnit.SECONDS);
+        IceScrumTransport.terminate();
+    }
+
+    /**
+     * Notifications waiting for the same project, flushed when the window elapses.
+     */
+    private final class Batch implements Runnable {
+
+        private final String key;
+        private final List<IceScrumNotification> notifications = new ArrayList<IceScrumNotification>();
+        private int tasks;
+        private ScheduledFuture<?> flush;
+
+        Batch(String key) {
+            this.key = key;
+        }
+
+        public void run() {
+            synchronized (batches) {
+                if (batches.get(key) != this) {
+                    return;
+                }
+                batches.remove(key);
+            }
+            submit(notifications, true);
+        }
+    }
+
+    private static final Logger LOGGER = Logger.getLogger(IceScrumNotificationDispatcher.class.getName());
+}
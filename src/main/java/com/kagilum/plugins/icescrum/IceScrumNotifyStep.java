@@ -0,0 +1,173 @@
+/*
+ * Copyright 2013 Kagilum SAS.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Author(s):
+ *
+ * Vincent Barrier (vbarrier@kagilum.com)
+ */
+package com.kagilum.plugins.icescrum;
+
+import com.google.common.collect.ImmutableSet;
+import hudson.Extension;
+import hudson.model.Result;
+import hudson.model.Run;
+import hudson.model.TaskListener;
+import hudson.scm.ChangeLogSet;
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
+import org.jenkinsci.plugins.workflow.job.WorkflowRun;
+import org.jenkinsci.plugins.workflow.steps.Step;
+import org.jenkinsci.plugins.workflow.steps.StepContext;
+import org.jenkinsci.plugins.workflow.steps.StepDescriptor;
+import org.jenkinsci.plugins.workflow.steps.StepExecution;
+import org.kohsuke.stapler.DataBoundConstructor;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * <code>icescrumNotify</code> Pipeline step, sending the status of the run with the settings of the job
+ * {@link IceScrumProjectProperty}.
+ *
+ * The changelog is scanned on a pool of <code>com.kagilum.plugins.icescrum.IceScrumNotifyStep.workers</code> threads
+ * (2 by default), then the status is sent by the {@link IceScrumNotificationDispatcher} to every project of the job.
+ * The step completes once they have all answered or timed out, see {@link IceScrumFanOut}: the CPS VM thread never scans
+ * nor sends, and neither it nor an executor is held while the requests are in flight.
+ */
+public final class IceScrumNotifyStep extends Step {
+
+    static final int WORKERS = Math.max(1, Integer.getInteger(IceScrumNotifyStep.class.getName() + ".workers", 2));
+
+    private static final ExecutorService EXECUTOR = Executors.newFixedThreadPool(WORKERS,
+            new NamingThreadFactory(new DaemonThreadFactory(), "IceScrumNotifyStep"));
+
+    @DataBoundConstructor
+    public IceScrumNotifyStep() {
+    }
+
+    @Override
+    public StepExecution start(StepContext context) throws Exception {
+        return new Execution(context);
+    }
+
+    static List<ChangeLogSet<? extends ChangeLogSet.Entry>> changeSetsOf(Run<?, ?> run) {
+        if (run instanceof WorkflowRun) {
+            return ((WorkflowRun) run).getChangeSets();
+        }
+        return Collections.emptyList();
+    }
+
+    static final class Execution extends StepExecution {
+
+        private static final long serialVersionUID = 1L;
+
+        private transient volatile Future<?> task;
+
+        Execution(StepContext context) {
+            super(context);
+        }
+
+        @Override
+        public boolean start() throws Exception {
+            final StepContext context = getContext();
+            task = EXECUTOR.submit(new Runnable() {
+                public void run() {
+                    try {
+                        send(context);
+                    } catch (Exception e) {
+                        context.onFailure(e);
+                    }
+                }
+            });
+            return false;
+        }
+
+        private static void send(final StepContext context) throws Exception {
+            Run<?, ?> run = context.get(Run.class);
+            TaskListener listener = context.get(TaskListener.class);
+
+            IceScrumProjectProperty p = run.getParent().getProperty(IceScrumProjectProperty.class);
+            if (null == p || null == p.getSettings() || !p.getSettings().hasAuth()) {
+                listener.getLogger().println(Messages.IceScrumNotifyStep_notConfigured());
+                context.onSuccess(null);
+                return;
+            }
+            IceScrumProjectSettings settings = p.getSettings();
+
+            List<ChangeLogSet<? extends ChangeLogSet.Entry>> changeSets = changeSetsOf(run);
+            //a run still building has no result yet, it hasn't failed so far
+            Result result = run.getResult() != null ? run.getResult() : Result.SUCCESS;
+
+            long start = System.nanoTime();
+            IceScrumRemainingTimes times = settings.isTokenAuth() ? new IceScrumRemainingTimes() : null;
+            IceScrumBuildPayload payload = IceScrumBuildNotifier.createIceScrumBuildPayload(run, result, changeSets, listener,
+                    !settings.isTokenAuth(), times, IceScrumReferenceScanner.get(), IceScrumBuildNotifier.targetScanners(p));
+            IceScrumMetrics.get().recordBuildObject(settings, System.nanoTime() - start, payload.getTaskCount());
+            IceScrumTaskIndex.get().addLater(settings.getProjectUrl(), run.getParent().getFullName(), run.getNumber(), payload.getTasks());
+
+            listener.getLogger().println(Messages.IceScrumBuildNotifier_icescrum_build_queued() + settings.getProjectUrl() + ")");
+            IceScrumFanOut fanOut = new IceScrumFanOut(listener, IceScrumFanOut.TIMEOUT);
+            fanOut.add(new IceScrumNotification(run.getParent().getFullName(), settings, payload,
+                    times != null && !times.isEmpty() ? times : null, new IceScrumBuildNotifier.ConsoleCallback(run, listener)));
+            IceScrumBuildNotifier.addTargets(fanOut, run, result, changeSets, listener, p, payload, times);
+            // as with the notifier, a status that could not be sent doesn't fail the run
+            fanOut.dispatch(new Runnable() {
+                public void run() {
+                    context.onSuccess(null);
+                }
+            }, false);
+        }
+
+        @Override
+        public void stop(Throwable cause) throws Exception {
+            Future<?> t = task;
+            if (t != null) {
+                t.cancel(true);
+            }
+            getContext().onFailure(cause);
+        }
+
+        /**
+         * The notification did not survive the restart unless it was written to the outbox, don't wait for it.
+         */
+        @Override
+        public void onResume() {
+            getContext().onSuccess(null);
+        }
+    }
+
+    @Extension(optional = true)
+    public static final class DescriptorImpl extends StepDescriptor {
+
+        @Override
+        public Set<? extends Class<?>> getRequiredContext() {
+            return ImmutableSet.of(Run.class, TaskListener.class);
+        }
+
+        @Override
+        public String getFunctionName() {
+            return "icescrumNotify";
+        }
+
+        @Override
+        public String getDisplayName() {
+            return Messages.IceScrumNotifyStep_displayName();
+        }
+    }
+}
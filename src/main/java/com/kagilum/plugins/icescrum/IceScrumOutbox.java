@@ -0,0 +1,310 @@
+/*
+ * Copyright 2013 Kagilum SAS.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Author(s):
+ *
+ * Vincent Barrier (vbarrier@kagilum.com)
+ */
+package com.kagilum.plugins.icescrum;
+
+import hudson.Extension;
+import hudson.model.Job;
+import hudson.model.AsyncPeriodicWork;
+import hudson.model.TaskListener;
+import jenkins.model.Jenkins;
+import net.sf.json.JSONException;
+import net.sf.json.JSONObject;
+import net.sf.json.util.JSONUtils;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.util.Arrays;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Journal of build statuses that could not be delivered, kept under <code>JENKINS_HOME/icescrum-outbox</code>.
+ *
+ * Records are appended as JSON lines to numbered segment files. The {@link Replayer} seals the segment being
+ * written, drains sealed segments in order and deletes them once every record has been acknowledged.
+ * The number of acknowledged records of a segment is kept in a <code>.ack</code> file next to it, so that
+ * a restart resumes where the previous replay stopped.
+ */
+public final class IceScrumOutbox {
+
+    static final long SEGMENT_SIZE = Long.getLong(IceScrumOutbox.class.getName() + ".segmentSize", 1024 * 1024);
+    static final long MIN_BACKOFF = Long.getLong(IceScrumOutbox.class.getName() + ".minBackoff", 10 * 1000);
+    static final long MAX_BACKOFF = Long.getLong(IceScrumOutbox.class.getName() + ".maxBackoff", 60 * 60 * 1000);
+
+    private static final String SEGMENT_PREFIX = "segment-";
+    private static final String SEGMENT_SUFFIX = ".log";
+    private static final String ACK_SUFFIX = ".ack";
+
+    private static IceScrumOutbox instance;
+
+    private final File directory;
+    private final Object writeLock = new Object();
+    private OutputStream out;
+    private File activeSegment;
+    private long activeSize;
+    private long nextSequence = -1;
+
+    private long backoff = 0;
+    private long nextAttempt = 0;
+
+    IceScrumOutbox(File directory) {
+        this.directory = directory;
+    }
+
+    public static synchronized IceScrumOutbox get() {
+        if (instance == null) {
+            instance = new IceScrumOutbox(new File(Jenkins.getInstance().getRootDir(), "icescrum-outbox"));
+        }
+        return instance;
+    }
+
+    /**
+     * Appends a build status to the journal. Only the job name is recorded, credentials are read
+     * again from the job configuration when the status is replayed.
+     */
+    public void append(String jobName, IceScrumBuildPayload build) throws IOException {
+        append(jobName, null, build);
+    }
+
+    /**
+     * Same as {@link #append(String, IceScrumBuildPayload)} for one of the projects of the job.
+     *
+     * @param projectUrl null for the project of the job, see {@link IceScrumProjectProperty#getSettings(String)}
+     */
+    public void append(String jobName, String projectUrl, IceScrumBuildPayload build) throws IOException {
+        StringWriter record = new StringWriter(256 + build.getTaskCount() * 6);
+        record.write("{\"job\":");
+        record.write(JSONUtils.quote(jobName));
+        if (projectUrl != null) {
+            record.write(",\"project\":");
+            record.write(JSONUtils.quote(projectUrl));
+        }
+        record.write(",\"build\":");
+        build.writeTo(record);
+        record.write("}\n");
+        // the segment size is counted in bytes, like the length of the file it starts from
+        byte[] bytes = record.toString().getBytes("UTF-8");
+        synchronized (writeLock) {
+            if (out == null) {
+                openSegment();
+            }
+            out.write(bytes);
+            out.flush();
+            activeSize += bytes.length;
+            if (activeSize >= SEGMENT_SIZE) {
+                seal();
+            }
+        }
+    }
+
+    public boolean isEmpty() {
+        return listSegments().length == 0;
+    }
+
+    private void openSegment() throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Unable to create " + directory);
+        }
+        initSequence();
+        activeSegment = new File(directory, String.format("%s%020d%s", SEGMENT_PREFIX, nextSequence++, SEGMENT_SUFFIX));
+        out = new FileOutputStream(activeSegment, true);
+        activeSize = activeSegment.length();
+    }
+
+    private void initSequence() {
+        if (nextSequence < 0) {
+            File[] segments = listSegments();
+            nextSequence = segments.length == 0 ? 0 : sequenceOf(segments[segments.length - 1]) + 1;
+        }
+    }
+
+    /**
+     * Seals the segment being written.
+     *
+     * @return the sequence of the next segment, every segment below it is sealed and no longer written
+     */
+    private long seal() throws IOException {
+        synchronized (writeLock) {
+            if (out != null) {
+                out.close();
+                out = null;
+                activeSegment = null;
+            }
+            initSequence();
+            return nextSequence;
+        }
+    }
+
+    /**
+     * Replays pending records, oldest first, unless the previous attempt asked to back off.
+     */
+    void replay() throws IOException {
+        if (System.currentTimeMillis() < nextAttempt) {
+            return;
+        }
+        long sealed = seal();
+        for (File segment : listSegments()) {
+            if (sequenceOf(segment) >= sealed) {
+                // opened by an append since the segments were sealed, replayed next time
+                break;
+            }
+            if (!replaySegment(segment)) {
+                backoff = backoff == 0 ? MIN_BACKOFF : Math.min(backoff * 2, MAX_BACKOFF);
+                nextAttempt = System.currentTimeMillis() + backoff;
+                LOGGER.log(Level.FINE, "iceScrum still unreachable, next outbox replay in {0} ms", backoff);
+                return;
+            }
+        }
+        backoff = 0;
+        nextAttempt = 0;
+    }
+
+    /**
+     * @return true if the whole segment has been acknowledged and deleted
+     */
+    private boolean replaySegment(File segment) throws IOException {
+        File ackFile = new File(directory, segment.getName().replace(SEGMENT_SUFFIX, ACK_SUFFIX));
+        long acked = readAck(ackFile);
+        long index = 0;
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(segment), "UTF-8"));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (index++ < acked) {
+                    continue;
+                }
+                if (!deliver(line)) {
+                    return false;
+                }
+                writeAck(ackFile, ++acked);
+            }
+        } finally {
+            reader.close();
+        }
+        if (!segment.delete() || (ackFile.exists() && !ackFile.delete())) {
+            LOGGER.log(Level.WARNING, "Unable to delete acknowledged iceScrum outbox segment {0}", segment);
+        }
+        return true;
+    }
+
+    /**
+     * @return false if the record should be tried again later, true if it was sent or can never be sent
+     */
+    private boolean deliver(String line) {
+        JSONObject record;
+        try {
+            record = JSONObject.fromObject(line);
+        } catch (JSONException e) {
+            LOGGER.log(Level.WARNING, "Dropping unreadable iceScrum outbox record", e);
+            return true;
+        }
+        String jobName = record.optString("job");
+        Jenkins jenkins = Jenkins.getInstance();
+        Job<?, ?> job = jenkins != null ? jenkins.getItemByFullName(jobName, Job.class) : null;
+        IceScrumProjectProperty p = job != null ? job.getProperty(IceScrumProjectProperty.class) : null;
+        // records written before jobs had several projects are for the project of the job
+        IceScrumProjectSettings settings = p != null ? p.getSettings(record.optString("project", null)) : null;
+        if (settings == null || !settings.hasAuth()) {
+            LOGGER.log(Level.INFO, "Dropping iceScrum outbox record of {0}, the job is no longer configured for this iceScrum project", jobName);
+            return true;
+        }
+        IceScrumSession session = new IceScrumSession(settings);
+        if (session.sendBuildStatut(IceScrumBuildPayload.fromJSON(record.getJSONObject("build")))) {
+            return true;
+        }
+        if (session.isRetryable()) {
+            return false;
+        }
+        LOGGER.log(Level.WARNING, "Dropping iceScrum outbox record of {0}: {1}", new Object[]{jobName, session.getLastError()});
+        return true;
+    }
+
+    private File[] listSegments() {
+        File[] segments = directory.listFiles(new FilenameFilter() {
+            public boolean accept(File dir, String name) {
+                return name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX);
+            }
+        });
+        if (segments == null) {
+            return new File[0];
+        }
+        // zero-padded sequence numbers sort by name
+        Arrays.sort(segments);
+        return segments;
+    }
+
+    private static long sequenceOf(File segment) {
+        String name = segment.getName();
+        return Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+    }
+
+    private static long readAck(File ackFile) throws IOException {
+        if (!ackFile.exists()) {
+            return 0;
+        }
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(ackFile), "UTF-8"));
+        try {
+            String line = reader.readLine();
+            return line != null ? Long.parseLong(line.trim()) : 0;
+        } catch (NumberFormatException e) {
+            return 0;
+        } finally {
+            reader.close();
+        }
+    }
+
+    private static void writeAck(File ackFile, long acked) throws IOException {
+        Writer w = new OutputStreamWriter(new FileOutputStream(ackFile), "UTF-8");
+        try {
+            w.write(Long.toString(acked));
+        } finally {
+            w.close();
+        }
+    }
+
+    @Extension
+    public static class Replayer extends AsyncPeriodicWork {
+
+        public Replayer() {
+            super("iceScrum outbox replay");
+        }
+
+        @Override
+        public long getRecurrencePeriod() {
+            return MIN_BACKOFF;
+        }
+
+        @Override
+        protected void execute(TaskListener listener) throws IOException, InterruptedException {
+            IceScrumOutbox.get().replay();
+        }
+    }
+
+    private static final Logger LOGGER = Logger.getLogger(IceScrumOutbox.class.getName());
+}
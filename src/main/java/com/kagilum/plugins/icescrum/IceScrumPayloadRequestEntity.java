@@ -0,0 +1,83 @@
+/*
+ * Copyright 2013 Kagilum SAS.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Author(s):
+ *
+ * Vincent Barrier (vbarrier@kagilum.com)
+ */
+package com.kagilum.plugins.icescrum;
+
+import org.apache.commons.httpclient.methods.RequestEntity;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Streams build payloads into the HTTP request, either a single build or a JSON array of builds.
+ */
+class IceScrumPayloadRequestEntity implements RequestEntity, IceScrumRequest.Body {
+
+    private final List<IceScrumBuildPayload> payloads;
+    private final boolean array;
+
+    IceScrumPayloadRequestEntity(IceScrumBuildPayload payload) {
+        this.payloads = Collections.singletonList(payload);
+        this.array = false;
+    }
+
+    IceScrumPayloadRequestEntity(List<IceScrumBuildPayload> payloads) {
+        this.payloads = payloads;
+        this.array = true;
+    }
+
+    public boolean isRepeatable() {
+        return true;
+    }
+
+    public void writeRequest(OutputStream out) throws IOException {
+        Writer writer = new BufferedWriter(new OutputStreamWriter(out, "UTF-8"), 8192);
+        if (array) {
+            IceScrumBuildPayload.writeTo(writer, payloads);
+        } else {
+            payloads.get(0).writeTo(writer);
+        }
+        writer.flush();
+    }
+
+    public InputStream openStream() {
+        return new IceScrumPayloadStream(payloads, array);
+    }
+
+    /**
+     * Computed from the payloads without writing them, so that no chunked encoding is needed.
+     */
+    public long getContentLength() {
+        long length = array ? 2 + Math.max(0, payloads.size() - 1) : 0;
+        for (IceScrumBuildPayload payload : payloads) {
+            length += payload.getJsonLength();
+        }
+        return length;
+    }
+
+    public String getContentType() {
+        return "application/json; charset=UTF-8";
+    }
+}
@@ -0,0 +1,152 @@
+/*
+ * Copyright 2013 Kagilum SAS.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Author(s):
+ *
+ * Vincent Barrier (vbarrier@kagilum.com)
+ */
+package com.kagilum.plugins.icescrum;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.StringWriter;
+import java.util.List;
+
+/**
+ * Reads the JSON of build payloads a few ids at a time, for transports pulling the body as they send it: the
+ * same bytes as {@link IceScrumPayloadRequestEntity#writeRequest(java.io.OutputStream)} without holding them all.
+ */
+final class IceScrumPayloadStream extends InputStream {
+
+    /**
+     * Ids written per piece.
+     */
+    static final int IDS_PER_PIECE = 512;
+
+    private static final int HEAD = -1;
+    private static final int END = IceScrumBuildPayload.ID_KEYS.length;
+
+    private final List<IceScrumBuildPayload> payloads;
+    private final boolean array;
+    private final StringWriter piece = new StringWriter(8192);
+    private byte[] buffer = new byte[0];
+    private int position;
+    private int payload = -1;
+    private int phase = END;
+    private int from;
+    private boolean closed;
+
+    IceScrumPayloadStream(List<IceScrumBuildPayload> payloads, boolean array) {
+        this.payloads = payloads;
+        this.array = array;
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (position == buffer.length && !fill()) {
+            return -1;
+        }
+        return buffer[position++] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        if (position == buffer.length && !fill()) {
+            return -1;
+        }
+        int n = Math.min(len, buffer.length - position);
+        System.arraycopy(buffer, position, b, off, n);
+        position += n;
+        return n;
+    }
+
+    @Override
+    public int available() {
+        return buffer.length - position;
+    }
+
+    /**
+     * @return false once the whole document has been read
+     */
+    private boolean fill() throws IOException {
+        piece.getBuffer().setLength(0);
+        while (piece.getBuffer().length() == 0) {
+            if (closed) {
+                return false;
+            }
+            next();
+        }
+        buffer = piece.toString().getBytes("UTF-8");
+        position = 0;
+        return true;
+    }
+
+    /**
+     * Writes the next piece of the document, possibly nothing when a payload has no such ids.
+     */
+    private void next() throws IOException {
+        if (phase == END) {
+            payload++;
+            if (payload == 0 && array) {
+                piece.write('[');
+            }
+            if (payload == payloads.size()) {
+                if (array) {
+                    piece.write(']');
+                }
+                closed = true;
+                return;
+            }
+            if (payload > 0) {
+                piece.write(',');
+            }
+            payloads.get(payload).writeHead(piece);
+            phase = HEAD;
+            return;
+        }
+        IceScrumBuildPayload current = payloads.get(payload);
+        int[] ids = phase == HEAD ? null : current.getIds(phase);
+        if (ids != null && from < ids.length) {
+            if (from == 0) {
+                IceScrumBuildPayload.openIds(piece, IceScrumBuildPayload.ID_KEYS[phase]);
+            }
+            int to = Math.min(ids.length, from + IDS_PER_PIECE);
+            IceScrumBuildPayload.writeIds(piece, ids, from, to);
+            from = to;
+            return;
+        }
+        if (ids != null) {
+            if (ids.length == 0) {
+                IceScrumBuildPayload.openIds(piece, IceScrumBuildPayload.ID_KEYS[phase]);
+            }
+            piece.write(']');
+        }
+        from = 0;
+        phase++;
+        if (phase == END) {
+            piece.write(IceScrumBuildPayload.TAIL);
+        }
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        buffer = new byte[0];
+        position = 0;
+    }
+}
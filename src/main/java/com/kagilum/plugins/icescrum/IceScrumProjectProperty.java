@@ -22,44 +22,117 @@ package com.kagilum.plugins.icescrum;
 import hudson.Extension;
 import hudson.model.*;
 import hudson.util.FormValidation;
+import hudson.util.ListBoxModel;
 import hudson.util.Secret;
 import jenkins.model.Jenkins;
 import net.sf.json.JSONObject;
+import org.kohsuke.stapler.AncestorInPath;
 import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.DataBoundSetter;
 import org.kohsuke.stapler.QueryParameter;
 import org.kohsuke.stapler.StaplerRequest;
 import org.kohsuke.stapler.interceptor.RequirePOST;
 
 import javax.servlet.ServletException;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.List;
 
 import static org.apache.commons.lang.StringUtils.isEmpty;
 
-public final class IceScrumProjectProperty extends JobProperty<AbstractProject<?, ?>> {
+public final class IceScrumProjectProperty extends JobProperty<Job<?, ?>> {
+
+    public static final String AUTH_TYPE_SERVER = "server";
 
     private IceScrumProjectSettings settings;
+    // set instead of settings when the job uses a server of the global configuration
+    private String serverId;
+    private String pkey;
+    // other projects receiving the statuses of the job, null if none
+    private List<IceScrumProjectTarget> targets;
 
-    @DataBoundConstructor
     public IceScrumProjectProperty(String url, String username, Secret password, String accessToken, String authType) {
-        if (username != null && password != null && authType != null && authType.equals(IceScrumProjectSettings.AUTH_TYPE_BASIC))
-            this.settings = new IceScrumProjectSettings(url, username, password);
+        this(url, username, password, accessToken, authType, null, null);
+    }
+
+    @DataBoundConstructor
+    public IceScrumProjectProperty(String url, String username, Secret password, String accessToken, String authType, String serverId, String pkey) {
+        if (serverId != null && authType != null && authType.equals(AUTH_TYPE_SERVER)) {
+            this.serverId = serverId;
+            this.pkey = pkey;
+        } else if (username != null && password != null && authType != null && authType.equals(IceScrumProjectSettings.AUTH_TYPE_BASIC))
+            this.settings = IceScrumProjectSettings.intern(new IceScrumProjectSettings(url, username, password));
         else if (accessToken != null && authType != null &&  authType.equals(IceScrumProjectSettings.AUTH_TYPE_TOKEN))
-            this.settings = new IceScrumProjectSettings(url, accessToken);
+            this.settings = IceScrumProjectSettings.intern(new IceScrumProjectSettings(url, accessToken));
         else {
-            this.settings = new IceScrumProjectSettings(url);
+            this.settings = IceScrumProjectSettings.intern(new IceScrumProjectSettings(url));
         }
     }
 
+    /**
+     * @return the settings of the job, or the shared ones of its global server, null if that server no longer exists
+     */
     public IceScrumProjectSettings getSettings() {
+        if (serverId != null) {
+            IceScrumGlobalConfiguration config = IceScrumGlobalConfiguration.get();
+            IceScrumServer server = config != null ? config.getServer(serverId) : null;
+            return server != null ? server.getSettings(pkey) : null;
+        }
         return this.settings;
     }
 
+    public String getServerId() {
+        return serverId;
+    }
+
+    public String getPkey() {
+        return pkey;
+    }
+
+    /**
+     * @return the other projects receiving the statuses of the job
+     */
+    public List<IceScrumProjectTarget> getTargets() {
+        return targets != null ? Collections.unmodifiableList(targets) : Collections.<IceScrumProjectTarget>emptyList();
+    }
+
+    @DataBoundSetter
+    public void setTargets(List<IceScrumProjectTarget> targets) {
+        this.targets = targets == null || targets.isEmpty() ? null : new ArrayList<IceScrumProjectTarget>(targets);
+    }
+
+    /**
+     * @return the settings of the project of the job or of one of its other projects, null if none has this url
+     */
+    public IceScrumProjectSettings getSettings(String projectUrl) {
+        IceScrumProjectSettings settings = getSettings();
+        if (projectUrl == null || (settings != null && settings.getProjectUrl().equals(projectUrl))) {
+            return settings;
+        }
+        for (IceScrumProjectTarget target : getTargets()) {
+            IceScrumProjectSettings targetSettings = target.getSettings();
+            if (targetSettings != null && targetSettings.getProjectUrl().equals(projectUrl)) {
+                return targetSettings;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Jobs configured with the same settings share a single instance once loaded.
+     */
+    private Object readResolve() {
+        settings = IceScrumProjectSettings.intern(settings);
+        return this;
+    }
+
     @Override
-    public Collection<? extends Action> getJobActions(AbstractProject<?, ?> job) {
-        if (settings != null) {
-            return Collections.singleton(new IceScrumLinkAction(this));
+    public Collection<? extends Action> getJobActions(Job<?, ?> job) {
+        if (getSettings() != null) {
+            return Arrays.asList(new IceScrumLinkAction(this, job), new IceScrumBackfillAction(job, this));
         }
         return Collections.emptyList();
     }
@@ -72,14 +145,25 @@ public final class IceScrumProjectProperty extends JobProperty<AbstractProject<?
             load();
         }
 
+        /**
+         * Any job, Pipeline jobs use the settings through the <code>icescrumNotify</code> step.
+         */
         public boolean isApplicable(Class<? extends Job> jobType) {
-            return AbstractProject.class.isAssignableFrom(jobType);
+            return true;
         }
 
         public String getDisplayName() {
             return Messages.IceScrumProjectProperty_icescrum_projectProperty_displayName();
         }
 
+        public ListBoxModel doFillServerIdItems(@AncestorInPath Item item) {
+            return IceScrumServer.fillServerIdItems(item);
+        }
+
+        public FormValidation doCheckPkey(@QueryParameter String value) {
+            return IceScrumServer.checkPkey(value);
+        }
+
         @RequirePOST
         public FormValidation doCheckUrl(@QueryParameter String value) {
             Jenkins.getInstance().checkPermission(Jenkins.ADMINISTER);
@@ -133,7 +217,7 @@ public final class IceScrumProjectProperty extends JobProperty<AbstractProject<?
         public JobProperty<?> newInstance(StaplerRequest req, JSONObject formData) throws FormException {
             if(req != null){
                 IceScrumProjectProperty ipp = req.bindJSON(IceScrumProjectProperty.class, formData);
-                if (ipp.getSettings() == null) {
+                if (ipp.getSettings() == null && ipp.getServerId() == null) {
                     ipp = null; // not configured
                 }
                 return ipp;
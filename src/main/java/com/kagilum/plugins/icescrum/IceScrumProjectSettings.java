@@ -19,8 +19,16 @@
  */
 package com.kagilum.plugins.icescrum;
 
+import com.google.common.collect.Interner;
+import com.google.common.collect.Interners;
 import hudson.util.Secret;
+import org.apache.commons.httpclient.Credentials;
+import org.apache.commons.httpclient.UsernamePasswordCredentials;
+import org.apache.commons.httpclient.auth.AuthScope;
 
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.Arrays;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -37,6 +45,14 @@ public class IceScrumProjectSettings {
     private String accessToken = null;
     private static final String PATTERN_ICESCRUM_URL = "(http|https)://(.*)/p/([0-9A-Z]*)";
 
+    // equal settings of different jobs share one instance, and its connection state
+    private static final Interner<IceScrumProjectSettings> INTERNER = Interners.newWeakInterner();
+
+    // computed once from the settings above, not persisted
+    private transient String hostKey;
+    private transient AuthScope authScope;
+    private transient Credentials credentials;
+
     public IceScrumProjectSettings(String url){
         Pattern pattern = Pattern.compile(PATTERN_ICESCRUM_URL);
         Matcher matches = pattern.matcher(url);
@@ -59,6 +75,25 @@ public class IceScrumProjectSettings {
         this.password = password;
     }
 
+    /**
+     * Settings of a project of a server defined once, see {@link IceScrumServer}.
+     */
+    IceScrumProjectSettings(String url, String pkey, String authType, String username, Secret password, String accessToken) {
+        this.url = url;
+        this.pkey = pkey;
+        this.authType = authType;
+        this.username = username;
+        this.password = password;
+        this.accessToken = accessToken;
+    }
+
+    /**
+     * @return the instance equal to these settings already in use, or these settings
+     */
+    public static IceScrumProjectSettings intern(IceScrumProjectSettings settings) {
+        return settings != null ? INTERNER.intern(settings) : null;
+    }
+
     public String getAuthType() {
         return authType;
     }
@@ -103,6 +138,55 @@ public class IceScrumProjectSettings {
         return authType.equals(AUTH_TYPE_TOKEN);
     }
 
+    /**
+     * @return scheme, host and port of the iceScrum server, used to share connections between jobs
+     */
+    public synchronized String getHostKey() throws MalformedURLException {
+        if (hostKey == null) {
+            URL u = new URL(url + "/version/");
+            hostKey = u.getProtocol() + "://" + u.getHost() + ":" + (u.getPort() == -1 ? u.getDefaultPort() : u.getPort());
+        }
+        return hostKey;
+    }
+
+    synchronized AuthScope getAuthScope() throws MalformedURLException {
+        if (authScope == null) {
+            URL u = new URL(url + "/version/");
+            authScope = new AuthScope(u.getHost(), u.getPort() == -1 ? u.getDefaultPort() : u.getPort());
+        }
+        return authScope;
+    }
+
+    synchronized Credentials getCredentials() {
+        if (credentials == null) {
+            credentials = new UsernamePasswordCredentials(username, password.getPlainText());
+        }
+        return credentials;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof IceScrumProjectSettings)) {
+            return false;
+        }
+        IceScrumProjectSettings that = (IceScrumProjectSettings) o;
+        return equal(url, that.url) && equal(pkey, that.pkey) && equal(authType, that.authType)
+                && equal(username, that.username) && equal(accessToken, that.accessToken)
+                && equal(password != null ? password.getPlainText() : null, that.password != null ? that.password.getPlainText() : null);
+    }
+
+    @Override
+    public int hashCode() {
+        return Arrays.hashCode(new Object[]{url, pkey, authType, username, accessToken});
+    }
+
+    private static boolean equal(Object a, Object b) {
+        return a == null ? b == null : a.equals(b);
+    }
+
     public static boolean isValidUrl(String url){
         Pattern pattern = Pattern.compile(PATTERN_ICESCRUM_URL);
         Matcher matches = pattern.matcher(url);
@@ -0,0 +1,120 @@
+/*
+ * Copyright 2013 Kagilum SAS.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Author(s):
+ *
+ * Vincent Barrier (vbarrier@kagilum.com)
+ */
+package com.kagilum.plugins.icescrum;
+
+import hudson.Extension;
+import hudson.Util;
+import hudson.model.AbstractDescribableImpl;
+import hudson.model.Descriptor;
+import hudson.model.Item;
+import hudson.util.FormValidation;
+import hudson.util.ListBoxModel;
+import org.kohsuke.stapler.AncestorInPath;
+import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.DataBoundSetter;
+import org.kohsuke.stapler.QueryParameter;
+
+/**
+ * One more iceScrum project receiving the statuses of a job, on a server of the global configuration.
+ *
+ * With task prefixes, the project only gets the tasks referenced with these prefixes (<code>AT671</code> for
+ * <code>AT</code>), stories and features staying with the project of the job. Without, it gets the same references
+ * as the project of the job.
+ */
+public final class IceScrumProjectTarget extends AbstractDescribableImpl<IceScrumProjectTarget> {
+
+    private final String serverId;
+    private final String pkey;
+    private String taskPrefixes;
+
+    private transient volatile IceScrumReferenceScanner scanner;
+
+    @DataBoundConstructor
+    public IceScrumProjectTarget(String serverId, String pkey) {
+        this.serverId = serverId;
+        this.pkey = pkey;
+    }
+
+    public String getServerId() {
+        return serverId;
+    }
+
+    public String getPkey() {
+        return pkey;
+    }
+
+    public String getTaskPrefixes() {
+        return taskPrefixes;
+    }
+
+    @DataBoundSetter
+    public void setTaskPrefixes(String taskPrefixes) {
+        this.taskPrefixes = Util.fixEmptyAndTrim(taskPrefixes);
+        this.scanner = null;
+    }
+
+    /**
+     * @return the shared settings of the project, null if its server no longer exists
+     */
+    public IceScrumProjectSettings getSettings() {
+        IceScrumGlobalConfiguration config = IceScrumGlobalConfiguration.get();
+        IceScrumServer server = config != null ? config.getServer(serverId) : null;
+        return server != null ? server.getSettings(pkey) : null;
+    }
+
+    /**
+     * @return the scanner finding the tasks routed to this project, null if it gets the references of the job project
+     */
+    public IceScrumReferenceScanner getScanner() {
+        if (taskPrefixes == null) {
+            return null;
+        }
+        IceScrumReferenceScanner s = scanner;
+        if (s == null) {
+            s = new IceScrumReferenceScanner(taskPrefixes, null, null, true);
+            scanner = s;
+        }
+        return s;
+    }
+
+    @Extension
+    public static final class DescriptorImpl extends Descriptor<IceScrumProjectTarget> {
+
+        @Override
+        public String getDisplayName() {
+            return Messages.IceScrumProjectTarget_displayName();
+        }
+
+        public ListBoxModel doFillServerIdItems(@AncestorInPath Item item) {
+            return IceScrumServer.fillServerIdItems(item);
+        }
+
+        public FormValidation doCheckPkey(@QueryParameter String value) {
+            return IceScrumServer.checkPkey(value);
+        }
+
+        public FormValidation doCheckTaskPrefixes(@QueryParameter String value) {
+            if (!IceScrumReferenceScanner.isValidPrefixes(value)) {
+                return FormValidation.error(Messages.IceScrumGlobalConfiguration_error_prefixes());
+            }
+            return FormValidation.ok();
+        }
+    }
+}
@@ -0,0 +1,104 @@
+/*
+ * Copyright 2013 Kagilum SAS.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Author(s):
+ *
+ * Vincent Barrier (vbarrier@kagilum.com)
+ */
+package com.kagilum.plugins.icescrum;
+
+/**
+ * Token bucket: requests start at no more than a sustained rate, bursts up to the bucket size being let through
+ * at once. A bucket of 1 spaces requests evenly, whatever the number of threads.
+ */
+public final class IceScrumRateLimiter {
+
+    private final double permitsPerNano;
+    private final double burst;
+    private double tokens;
+    private long refilledAt;
+
+    /**
+     * @param permitsPerSecond 0 or less for no limit
+     */
+    public IceScrumRateLimiter(double permitsPerSecond) {
+        this(permitsPerSecond, 1);
+    }
+
+    /**
+     * @param permitsPerSecond 0 or less for no limit
+     * @param burst requests let through at once after a quiet period
+     */
+    public IceScrumRateLimiter(double permitsPerSecond, int burst) {
+        this.permitsPerNano = permitsPerSecond > 0 ? permitsPerSecond / 1000000000d : 0;
+        this.burst = Math.max(1, burst);
+        this.tokens = this.burst;
+        this.refilledAt = System.nanoTime();
+    }
+
+    /**
+     * Waits for the next token.
+     */
+    public void acquire() throws InterruptedException {
+        long wait = reserve();
+        if (wait > 0) {
+            Thread.sleep(wait / 1000000L, (int) (wait % 1000000L));
+        }
+    }
+
+    /**
+     * Takes the next token, in advance if the bucket is empty.
+     *
+     * @return the nanoseconds to wait before using it
+     */
+    synchronized long reserve() {
+        return reserve(Long.MAX_VALUE);
+    }
+
+    /**
+     * Takes the next token, in advance if the bucket is empty, unless it would have to wait more than <code>maxWait</code>.
+     * A caller giving up leaves the bucket as it was, so that refused requests don't delay the next ones.
+     *
+     * @param maxWait in nanoseconds
+     * @return the nanoseconds to wait before using the token, -1 if none was taken
+     */
+    synchronized long reserve(long maxWait) {
+        if (permitsPerNano == 0) {
+            return 0;
+        }
+        // nanoTime can be negative, only differences are meaningful
+        long now = System.nanoTime();
+        long elapsed = now - refilledAt;
+        if (elapsed > 0) {
+            tokens = Math.min(burst, tokens + elapsed * permitsPerNano);
+            refilledAt = now;
+        }
+        long wait = tokens < 1 ? (long) ((1 - tokens) / permitsPerNano) : 0;
+        if (wait > maxWait) {
+            return -1;
+        }
+        tokens -= 1;
+        return wait;
+    }
+
+    /**
+     * Gives back a token taken by {@link #reserve(long)} and not used.
+     */
+    synchronized void cancel() {
+        if (permitsPerNano != 0) {
+            tokens = Math.min(burst, tokens + 1);
+        }
+    }
+}
@@ -0,0 +1,422 @@
+/*
+ * Copyright 2013 Kagilum SAS.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Author(s):
+ *
+ * Vincent Barrier (vbarrier@kagilum.com)
+ */
+package com.kagilum.plugins.icescrum;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.TreeSet;
+
+/**
+ * Finds the references to iceScrum tasks, stories and features in a commit message, in a single pass whatever the
+ * number of prefixes.
+ *
+ * A reference is one of the prefixes of a type immediately followed by digits, like <code>T671</code>. A task
+ * reference may be followed by its remaining time (<code>T671-3</code>, <code>T671-1.5</code> or <code>T671-1,5</code>),
+ * with the same matches as {@link IceScrumSession#TASK_PATTERN}.
+ *
+ * The prefixes are compiled into an Aho-Corasick automaton: every character moves it to the state of the longest
+ * prefix ending there, and a digit following a complete prefix starts a reference. When prefixes overlap, the
+ * longest one wins, and a prefix given for several types belongs to the first of task, story and feature.
+ *
+ * The prefixes routing tasks to other projects ({@link IceScrumProjectTarget}) must also start a word, not follow a
+ * letter, a digit or an underscore, so that <code>XAT671</code> isn't routed by <code>AT</code>. When the longest
+ * of them doesn't, a shorter one starting a word is looked for.
+ */
+public final class IceScrumReferenceScanner {
+
+    public enum Type {
+        TASK("T"), STORY(""), FEATURE("F");
+
+        private final String permalink;
+
+        Type(String permalink) {
+            this.permalink = permalink;
+        }
+
+        /**
+         * @return what goes between the project url and the id in the permalink of an item of this type
+         */
+        public String getPermalink() {
+            return "-" + permalink;
+        }
+    }
+
+    /**
+     * Told about each reference found, in order.
+     */
+    public interface Visitor {
+
+        /**
+         * @param start index of the prefix in the message
+         * @param end index after the reference, remaining time included
+         * @param remainingTime as written after a task id, null if there is none
+         */
+        void visit(Type type, int id, int start, int end, String remainingTime);
+    }
+
+    static final String DEFAULT_TASK_PREFIXES = "T";
+
+    static final IceScrumReferenceScanner DEFAULT = new IceScrumReferenceScanner(DEFAULT_TASK_PREFIXES, null, null);
+
+    private static volatile IceScrumReferenceScanner current = DEFAULT;
+
+    private final String taskPrefixes;
+    private final String storyPrefixes;
+    private final String featurePrefixes;
+    private final boolean wordStart;
+
+    // prefix chars, sorted, and the index of each ASCII one in this alphabet, -1 when not a prefix char
+    private final char[] alphabet;
+    private final int[] asciiClasses = new int[128];
+    // next state by state and alphabet index, state 0 being the initial one
+    private final int[][] transitions;
+    // state of the longest proper suffix of each state, to fall back on shorter prefixes
+    private final int[] fallbacks;
+    // type and length of the longest prefix ending at each state, null when none
+    private final Type[] outputs;
+    private final int[] outputLengths;
+
+    /**
+     * @param taskPrefixes prefixes of each type separated by commas or spaces, null or empty for none
+     */
+    public IceScrumReferenceScanner(String taskPrefixes, String storyPrefixes, String featurePrefixes) {
+        this(taskPrefixes, storyPrefixes, featurePrefixes, false);
+    }
+
+    /**
+     * @param wordStart true if a prefix must start a word, as the ones routing tasks to other projects
+     */
+    IceScrumReferenceScanner(String taskPrefixes, String storyPrefixes, String featurePrefixes, boolean wordStart) {
+        this.wordStart = wordStart;
+        this.taskPrefixes = normalize(taskPrefixes);
+        this.storyPrefixes = normalize(storyPrefixes);
+        this.featurePrefixes = normalize(featurePrefixes);
+
+        Map<String, Type> prefixes = new LinkedHashMap<String, Type>();
+        addPrefixes(prefixes, this.taskPrefixes, Type.TASK);
+        addPrefixes(prefixes, this.storyPrefixes, Type.STORY);
+        addPrefixes(prefixes, this.featurePrefixes, Type.FEATURE);
+
+        TreeSet<Character> chars = new TreeSet<Character>();
+        for (String prefix : prefixes.keySet()) {
+            for (int i = 0; i < prefix.length(); i++) {
+                chars.add(prefix.charAt(i));
+            }
+        }
+        alphabet = new char[chars.size()];
+        Arrays.fill(asciiClasses, -1);
+        int index = 0;
+        for (char c : chars) {
+            if (c < asciiClasses.length) {
+                asciiClasses[c] = index;
+            }
+            alphabet[index++] = c;
+        }
+
+        // trie of the prefixes
+        List<int[]> next = new ArrayList<int[]>();
+        List<Type> types = new ArrayList<Type>();
+        List<Integer> lengths = new ArrayList<Integer>();
+        addState(next, types, lengths);
+        for (Map.Entry<String, Type> prefix : prefixes.entrySet()) {
+            int state = 0;
+            for (int i = 0; i < prefix.getKey().length(); i++) {
+                int c = classOf(prefix.getKey().charAt(i));
+                if (next.get(state)[c] < 0) {
+                    next.get(state)[c] = addState(next, types, lengths);
+                }
+                state = next.get(state)[c];
+            }
+            types.set(state, prefix.getValue());
+            lengths.set(state, prefix.getKey().length());
+        }
+
+        // failure links, breadth first, turned into a complete transition table
+        int[] fail = new int[next.size()];
+        Queue<Integer> queue = new ArrayDeque<Integer>();
+        int[] root = next.get(0);
+        for (int c = 0; c < alphabet.length; c++) {
+            if (root[c] < 0) {
+                root[c] = 0;
+            } else {
+                queue.add(root[c]);
+            }
+        }
+        while (!queue.isEmpty()) {
+            int state = queue.poll();
+            if (types.get(state) == null) {
+                // fail[state] is shallower, so already complete
+                types.set(state, types.get(fail[state]));
+                lengths.set(state, lengths.get(fail[state]));
+            }
+            int[] row = next.get(state);
+            for (int c = 0; c < alphabet.length; c++) {
+                if (row[c] < 0) {
+                    row[c] = next.get(fail[state])[c];
+                } else {
+                    fail[row[c]] = next.get(fail[state])[c];
+                    queue.add(row[c]);
+                }
+            }
+        }
+        transitions = next.toArray(new int[next.size()][]);
+        fallbacks = fail;
+        outputs = types.toArray(new Type[types.size()]);
+        outputLengths = new int[lengths.size()];
+        for (int i = 0; i < outputLengths.length; i++) {
+            outputLengths[i] = lengths.get(i);
+        }
+    }
+
+    /**
+     * @return the scanner of the global configuration, or the one of task references only
+     */
+    public static IceScrumReferenceScanner get() {
+        return current;
+    }
+
+    static void set(IceScrumReferenceScanner scanner) {
+        current = scanner != null ? scanner : DEFAULT;
+    }
+
+    public String getTaskPrefixes() {
+        return taskPrefixes;
+    }
+
+    public String getStoryPrefixes() {
+        return storyPrefixes;
+    }
+
+    public String getFeaturePrefixes() {
+        return featurePrefixes;
+    }
+
+    /**
+     * @return true if the prefixes can be told apart from the ids and from each other
+     */
+    public static boolean isValidPrefixes(String prefixes) {
+        for (String prefix : split(prefixes)) {
+            for (int i = 0; i < prefix.length(); i++) {
+                if (isDigit(prefix.charAt(i))) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Calls the visitor for every reference found in <code>msg</code>. Ids too large for an int are ignored.
+     *
+     * @return the number of references found
+     */
+    public int scan(CharSequence msg, Visitor visitor) {
+        if (msg == null) {
+            return 0;
+        }
+        int found = 0;
+        int length = msg.length();
+        int state = 0;
+        int i = 0;
+        while (i < length) {
+            char c = msg.charAt(i);
+            if (!isDigit(c)) {
+                int cls = classOf(c);
+                state = cls < 0 ? 0 : transitions[state][cls];
+                i++;
+                continue;
+            }
+            Type type = outputs[state];
+            int start = i - outputLengths[state];
+            if (wordStart) {
+                type = null;
+                for (int s = state; s != 0 && type == null; s = fallbacks[s]) {
+                    if (outputs[s] != null && isWordStart(msg, i - outputLengths[s])) {
+                        type = outputs[s];
+                        start = i - outputLengths[s];
+                    }
+                }
+            }
+            state = 0;
+            if (type == null) {
+                i++;
+                continue;
+            }
+            long id = 0;
+            while (i < length && isDigit(msg.charAt(i))) {
+                if (id <= Integer.MAX_VALUE) {
+                    id = id * 10 + (msg.charAt(i) - '0');
+                }
+                i++;
+            }
+            if (id > Integer.MAX_VALUE) {
+                continue;
+            }
+            String remainingTime = null;
+            if (type == Type.TASK && i < length && msg.charAt(i) == '-') {
+                i++;
+                if (i < length && isDigit(msg.charAt(i))) {
+                    int timeStart = i;
+                    while (i < length && isDigit(msg.charAt(i))) {
+                        i++;
+                    }
+                    char separator = i + 1 < length ? msg.charAt(i) : 0;
+                    if ((separator == '.' || separator == ',') && isDigit(msg.charAt(i + 1))) {
+                        i++;
+                        while (i < length && isDigit(msg.charAt(i))) {
+                            i++;
+                        }
+                    }
+                    remainingTime = msg.subSequence(timeStart, i).toString();
+                }
+            }
+            found++;
+            visitor.visit(type, (int) id, start, i, remainingTime);
+        }
+        return found;
+    }
+
+    /**
+     * Adds the references found in <code>msg</code>, and the remaining times of the tasks.
+     *
+     * @param times null if remaining times are not wanted
+     * @param timestamp of the commit, -1 if unknown
+     * @return the number of references found, duplicates included
+     */
+    public int extract(CharSequence msg, IceScrumReferences references, IceScrumRemainingTimes times, long timestamp) {
+        return extract(msg, references, times, timestamp, Collections.<IceScrumReferenceScanner>emptyList());
+    }
+
+    /**
+     * Same as {@link #extract(CharSequence, IceScrumReferences, IceScrumRemainingTimes, long)}, leaving out the
+     * references overlapping one found by any of the <code>excluded</code> scanners, which go to other projects.
+     *
+     * @return the number of references found and not excluded, duplicates included
+     */
+    public int extract(CharSequence msg, final IceScrumReferences references, final IceScrumRemainingTimes times, final long timestamp,
+                       List<IceScrumReferenceScanner> excluded) {
+        if (msg == null) {
+            return 0;
+        }
+        final BitSet routed = new BitSet();
+        for (IceScrumReferenceScanner scanner : excluded) {
+            scanner.scan(msg, new Visitor() {
+                public void visit(Type type, int id, int start, int end, String remainingTime) {
+                    routed.set(start, end);
+                }
+            });
+        }
+        final int[] found = new int[1];
+        scan(msg, new Visitor() {
+            public void visit(Type type, int id, int start, int end, String remainingTime) {
+                int next = routed.nextSetBit(start);
+                if (next >= 0 && next < end) {
+                    return;
+                }
+                found[0]++;
+                references.add(type, id);
+                if (times != null && remainingTime != null) {
+                    putRemainingTime(times, id, remainingTime, timestamp);
+                }
+            }
+        });
+        return found[0];
+    }
+
+    /**
+     * @param remainingTime as given to {@link Visitor#visit}, with a dot or a comma
+     */
+    static void putRemainingTime(IceScrumRemainingTimes times, int id, String remainingTime, long timestamp) {
+        float remaining = Float.parseFloat(remainingTime.replace(',', '.'));
+        if (!Float.isInfinite(remaining)) {
+            times.put(id, remaining, timestamp);
+        }
+    }
+
+    private int classOf(char c) {
+        if (c < asciiClasses.length) {
+            return asciiClasses[c];
+        }
+        int index = Arrays.binarySearch(alphabet, c);
+        return index >= 0 ? index : -1;
+    }
+
+    private int addState(List<int[]> next, List<Type> types, List<Integer> lengths) {
+        int[] row = new int[alphabet.length];
+        Arrays.fill(row, -1);
+        next.add(row);
+        types.add(null);
+        lengths.add(0);
+        return next.size() - 1;
+    }
+
+    private static void addPrefixes(Map<String, Type> prefixes, String spec, Type type) {
+        for (String prefix : split(spec)) {
+            if (!prefixes.containsKey(prefix) && isValidPrefixes(prefix)) {
+                prefixes.put(prefix, type);
+            }
+        }
+    }
+
+    private static List<String> split(String spec) {
+        List<String> prefixes = new ArrayList<String>();
+        if (spec != null) {
+            for (String prefix : spec.split("[,\\s]+")) {
+                if (!prefix.isEmpty()) {
+                    prefixes.add(prefix);
+                }
+            }
+        }
+        return prefixes;
+    }
+
+    private static String normalize(String spec) {
+        StringBuilder normalized = new StringBuilder();
+        for (String prefix : split(spec)) {
+            if (normalized.length() > 0) {
+                normalized.append(", ");
+            }
+            normalized.append(prefix);
+        }
+        return normalized.toString();
+    }
+
+    /**
+     * @return true if a prefix at <code>start</code> isn't the end of a longer word or number
+     */
+    private static boolean isWordStart(CharSequence msg, int start) {
+        if (start == 0) {
+            return true;
+        }
+        char c = msg.charAt(start - 1);
+        return !Character.isLetterOrDigit(c) && c != '_';
+    }
+
+    private static boolean isDigit(char c) {
+        return c >= '0' && c <= '9';
+    }
+}
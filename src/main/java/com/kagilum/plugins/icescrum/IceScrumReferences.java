@@ -0,0 +1,72 @@
+/*
+ * Copyright 2013 Kagilum SAS.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Author(s):
+ *
+ * Vincent Barrier (vbarrier@kagilum.com)
+ */
+package com.kagilum.plugins.icescrum;
+
+/**
+ * The tasks, stories and features referenced by the changes of a build, each id once per type.
+ */
+public final class IceScrumReferences {
+
+    private final IceScrumTaskIds tasks = new IceScrumTaskIds();
+    // most builds reference tasks only
+    private IceScrumTaskIds stories;
+    private IceScrumTaskIds features;
+
+    public void add(IceScrumReferenceScanner.Type type, int id) {
+        switch (type) {
+            case STORY:
+                if (stories == null) {
+                    stories = new IceScrumTaskIds(4);
+                }
+                stories.add(id);
+                break;
+            case FEATURE:
+                if (features == null) {
+                    features = new IceScrumTaskIds(4);
+                }
+                features.add(id);
+                break;
+            default:
+                tasks.add(id);
+        }
+    }
+
+    public IceScrumTaskIds getTasks() {
+        return tasks;
+    }
+
+    /**
+     * @return the ids referenced with this type, null if there are none
+     */
+    public int[] toArray(IceScrumReferenceScanner.Type type) {
+        IceScrumTaskIds ids;
+        switch (type) {
+            case STORY:
+                ids = stories;
+                break;
+            case FEATURE:
+                ids = features;
+                break;
+            default:
+                ids = tasks;
+        }
+        return ids != null && !ids.isEmpty() ? ids.toArray() : null;
+    }
+}
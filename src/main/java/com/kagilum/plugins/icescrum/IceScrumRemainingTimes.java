@@ -0,0 +1,111 @@
+/*
+ * Copyright 2013 Kagilum SAS.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Author(s):
+ *
+ * Vincent Barrier (vbarrier@kagilum.com)
+ */
+package com.kagilum.plugins.icescrum;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.util.Arrays;
+
+/**
+ * Remaining time of tasks, as found in commit messages (<code>T671-1.5</code>).
+ *
+ * Only the latest value of a task is kept: the one of the most recent commit, or the one found last
+ * when commits have the same or no timestamp.
+ */
+public final class IceScrumRemainingTimes {
+
+    private final IceScrumTaskIds tasks = new IceScrumTaskIds();
+    private float[] remaining = new float[16];
+    private long[] timestamps = new long[16];
+
+    /**
+     * @param timestamp of the commit, -1 if unknown
+     */
+    public void put(int task, float remainingTime, long timestamp) {
+        int index = tasks.indexOf(task);
+        if (index < 0) {
+            tasks.add(task);
+            index = tasks.size() - 1;
+            if (index == remaining.length) {
+                remaining = Arrays.copyOf(remaining, index * 2);
+                timestamps = Arrays.copyOf(timestamps, index * 2);
+            }
+        } else if (timestamp < timestamps[index]) {
+            return;
+        }
+        remaining[index] = remainingTime;
+        timestamps[index] = timestamp;
+    }
+
+    public int size() {
+        return tasks.size();
+    }
+
+    public boolean isEmpty() {
+        return tasks.isEmpty();
+    }
+
+    public int getTask(int index) {
+        return tasks.get(index);
+    }
+
+    public float getRemainingTime(int index) {
+        if (index >= tasks.size()) {
+            throw new IndexOutOfBoundsException(index + " >= " + tasks.size());
+        }
+        return remaining[index];
+    }
+
+    /**
+     * @return the remaining time of the task, NaN if none was found
+     */
+    public float get(int task) {
+        int index = tasks.indexOf(task);
+        return index < 0 ? Float.NaN : remaining[index];
+    }
+
+    /**
+     * Writes <code>{"tasks":[{"id":671,"remainingTime":1.5},...]}</code>.
+     */
+    public void writeTo(Writer out) throws IOException {
+        out.write("{\"tasks\":[");
+        for (int i = 0; i < tasks.size(); i++) {
+            out.write(i == 0 ? "{\"id\":" : ",{\"id\":");
+            out.write(Integer.toString(tasks.get(i)));
+            out.write(",\"remainingTime\":");
+            float value = remaining[i];
+            out.write(value == (long) value ? Long.toString((long) value) : Float.toString(value));
+            out.write('}');
+        }
+        out.write("]}");
+    }
+
+    @Override
+    public String toString() {
+        StringWriter out = new StringWriter(16 + tasks.size() * 32);
+        try {
+            writeTo(out);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        return out.toString();
+    }
+}
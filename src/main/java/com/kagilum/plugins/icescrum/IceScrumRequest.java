@@ -0,0 +1,129 @@
+/*
+ * Copyright 2013 Kagilum SAS.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Author(s):
+ *
+ * Vincent Barrier (vbarrier@kagilum.com)
+ */
+package com.kagilum.plugins.icescrum;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * A request to an iceScrum server, as handed to an {@link IceScrumTransport}.
+ *
+ * Transports authenticate it with the settings: the access token header for token authentication,
+ * basic credentials otherwise.
+ */
+public final class IceScrumRequest {
+
+    public enum Method {
+        GET, HEAD, POST
+    }
+
+    /**
+     * Content of a POST request, written once per attempt.
+     */
+    public interface Body {
+
+        void writeRequest(OutputStream out) throws IOException;
+
+        /**
+         * @return the bytes of {@link #writeRequest(OutputStream)}, for transports reading the body as they send it
+         */
+        InputStream openStream() throws IOException;
+
+        /**
+         * @return the length in bytes, -1 if unknown
+         */
+        long getContentLength();
+
+        String getContentType();
+    }
+
+    private final Method method;
+    private final String url;
+    private final IceScrumProjectSettings settings;
+    private final Body body;
+
+    private IceScrumRequest(Method method, String url, IceScrumProjectSettings settings, Body body) {
+        this.method = method;
+        this.url = url;
+        this.settings = settings;
+        this.body = body;
+    }
+
+    public static IceScrumRequest get(String url, IceScrumProjectSettings settings) {
+        return new IceScrumRequest(Method.GET, url, settings, null);
+    }
+
+    public static IceScrumRequest head(String url, IceScrumProjectSettings settings) {
+        return new IceScrumRequest(Method.HEAD, url, settings, null);
+    }
+
+    public static IceScrumRequest post(String url, IceScrumProjectSettings settings, Body body) {
+        return new IceScrumRequest(Method.POST, url, settings, body);
+    }
+
+    /**
+     * @return a body of bytes already in memory
+     */
+    public static Body bytes(final byte[] content, final String contentType) {
+        return new Body() {
+            public void writeRequest(OutputStream out) throws IOException {
+                out.write(content);
+            }
+
+            public InputStream openStream() {
+                return new ByteArrayInputStream(content);
+            }
+
+            public long getContentLength() {
+                return content.length;
+            }
+
+            public String getContentType() {
+                return contentType;
+            }
+        };
+    }
+
+    public Method getMethod() {
+        return method;
+    }
+
+    public String getUrl() {
+        return url;
+    }
+
+    public IceScrumProjectSettings getSettings() {
+        return settings;
+    }
+
+    /**
+     * @return the body of a POST request, null for other methods
+     */
+    public Body getBody() {
+        return body;
+    }
+
+    @Override
+    public String toString() {
+        return method + " " + url;
+    }
+}
@@ -0,0 +1,45 @@
+/*
+ * Copyright 2013 Kagilum SAS.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Author(s):
+ *
+ * Vincent Barrier (vbarrier@kagilum.com)
+ */
+package com.kagilum.plugins.icescrum;
+
+/**
+ * What an iceScrum server answered, whatever the status.
+ */
+public final class IceScrumResponse {
+
+    private final int status;
+    private final String body;
+
+    public IceScrumResponse(int status, String body) {
+        this.status = status;
+        this.body = body != null ? body : "";
+    }
+
+    public int getStatus() {
+        return status;
+    }
+
+    /**
+     * @return the body, empty if there is none
+     */
+    public String getBody() {
+        return body;
+    }
+}
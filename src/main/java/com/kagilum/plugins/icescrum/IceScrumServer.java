@@ -0,0 +1,168 @@
+/*
+ * Copyright 2013 Kagilum SAS.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Author(s):
+ *
+ * Vincent Barrier (vbarrier@kagilum.com)
+ */
+package com.kagilum.plugins.icescrum;
+
+import hudson.Extension;
+import hudson.model.AbstractDescribableImpl;
+import hudson.model.Descriptor;
+import hudson.model.Item;
+import hudson.util.FormValidation;
+import hudson.util.ListBoxModel;
+import hudson.util.Secret;
+import jenkins.model.Jenkins;
+import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.QueryParameter;
+
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import static org.apache.commons.lang.StringUtils.isEmpty;
+
+/**
+ * An iceScrum server defined once in the global configuration and referenced by id from the jobs,
+ * with the credentials used for all its projects.
+ */
+public final class IceScrumServer extends AbstractDescribableImpl<IceScrumServer> {
+
+    private final String id;
+    private final String url;
+    private final String authType;
+    private final Secret accessToken;
+    private final String username;
+    private final Secret password;
+
+    // settings of the projects of this server, shared by every job using them
+    private transient ConcurrentMap<String, IceScrumProjectSettings> projects;
+
+    @DataBoundConstructor
+    public IceScrumServer(String id, String url, String authType, Secret accessToken, String username, Secret password) {
+        this.id = id;
+        this.url = url != null && url.endsWith("/") ? url.substring(0, url.length() - 1) : url;
+        this.authType = IceScrumProjectSettings.AUTH_TYPE_BASIC.equals(authType) ? IceScrumProjectSettings.AUTH_TYPE_BASIC : IceScrumProjectSettings.AUTH_TYPE_TOKEN;
+        this.accessToken = accessToken;
+        this.username = username;
+        this.password = password;
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public String getUrl() {
+        return url;
+    }
+
+    public String getAuthType() {
+        return authType;
+    }
+
+    public Secret getAccessToken() {
+        return accessToken;
+    }
+
+    public String getUsername() {
+        return username;
+    }
+
+    public Secret getPassword() {
+        return password;
+    }
+
+    /**
+     * @return the settings of a project of this server, the same instance for every job asking for it
+     */
+    public IceScrumProjectSettings getSettings(String pkey) {
+        ConcurrentMap<String, IceScrumProjectSettings> map = projects;
+        if (map == null) {
+            synchronized (this) {
+                if (projects == null) {
+                    projects = new ConcurrentHashMap<String, IceScrumProjectSettings>();
+                }
+                map = projects;
+            }
+        }
+        IceScrumProjectSettings settings = map.get(pkey);
+        if (settings == null) {
+            boolean token = IceScrumProjectSettings.AUTH_TYPE_TOKEN.equals(authType);
+            settings = IceScrumProjectSettings.intern(new IceScrumProjectSettings(url, pkey, authType,
+                    token ? null : username, token ? null : password,
+                    token && accessToken != null ? accessToken.getPlainText() : null));
+            IceScrumProjectSettings previous = map.putIfAbsent(pkey, settings);
+            if (previous != null) {
+                settings = previous;
+            }
+        }
+        return settings;
+    }
+
+    /**
+     * Lists the servers a job can use, for the users allowed to configure it, or to administer Jenkins outside a job.
+     */
+    static ListBoxModel fillServerIdItems(Item item) {
+        ListBoxModel items = new ListBoxModel();
+        if (item != null ? !item.hasPermission(Item.CONFIGURE) : !Jenkins.getInstance().hasPermission(Jenkins.ADMINISTER)) {
+            return items;
+        }
+        IceScrumGlobalConfiguration config = IceScrumGlobalConfiguration.get();
+        if (config != null) {
+            for (IceScrumServer server : config.getServers()) {
+                items.add(server.getId() + " (" + server.getUrl() + ")", server.getId());
+            }
+        }
+        return items;
+    }
+
+    static FormValidation checkPkey(String value) {
+        if (isEmpty(value) || !value.matches("[0-9A-Z]+")) {
+            return FormValidation.error(Messages.IceScrumProjectProperty_icescrum_error_pkey());
+        }
+        return FormValidation.ok();
+    }
+
+    @Extension
+    public static final class DescriptorImpl extends Descriptor<IceScrumServer> {
+
+        @Override
+        public String getDisplayName() {
+            return Messages.IceScrumServer_displayName();
+        }
+
+        public FormValidation doCheckId(@QueryParameter String value) {
+            if (isEmpty(value) || !value.matches("[A-Za-z0-9_.-]+")) {
+                return FormValidation.error(Messages.IceScrumServer_error_id());
+            }
+            return FormValidation.ok();
+        }
+
+        public FormValidation doCheckUrl(@QueryParameter String value) {
+            try {
+                URL u = new URL(value);
+                if (u.getProtocol().startsWith("http")) {
+                    return FormValidation.ok();
+                }
+            } catch (MalformedURLException e) {
+                // reported below
+            }
+            return FormValidation.error(Messages.IceScrumServer_error_url());
+        }
+    }
+}
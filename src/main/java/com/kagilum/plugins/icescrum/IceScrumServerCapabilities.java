@@ -0,0 +1,169 @@
+/*
+ * Copyright 2013 Kagilum SAS.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Author(s):
+ *
+ * Vincent Barrier (vbarrier@kagilum.com)
+ */
+package com.kagilum.plugins.icescrum;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * What an iceScrum server is and can do, parsed from its <code>/version/</code> answer and cached per server url.
+ *
+ * Entries expire after <code>com.kagilum.plugins.icescrum.IceScrumServerCapabilities.ttl</code> ms (10 minutes by default).
+ * What was learnt by talking to the server, like batch or remaining time support, is forgotten when an entry is refreshed,
+ * so that it is tried again.
+ *
+ * No released version is known to accept remaining time updates on <code>/task/remainingTime</code>: they are only tried
+ * when <code>com.kagilum.plugins.icescrum.IceScrumServerCapabilities.remainingTimes</code> is <code>true</code>.
+ */
+public final class IceScrumServerCapabilities {
+
+    static final long TTL = Long.getLong(IceScrumServerCapabilities.class.getName() + ".ttl", 10 * 60 * 1000);
+    static final boolean REMAINING_TIMES = Boolean.getBoolean(IceScrumServerCapabilities.class.getName() + ".remainingTimes");
+
+    private static final ConcurrentMap<String, IceScrumServerCapabilities> CACHE = new ConcurrentHashMap<String, IceScrumServerCapabilities>();
+
+    private final String version;
+    private final boolean r7;
+    private final boolean pro;
+    private final boolean cloud;
+    private final float numericVersion;
+    private final long expiresAt;
+    // null until a batch has been tried
+    private volatile Boolean batchSupported;
+    // null until remaining times have been sent
+    private volatile Boolean remainingTimeSupported;
+
+    IceScrumServerCapabilities(String version, long expiresAt, Boolean batchSupported) {
+        this(version, expiresAt, batchSupported, null);
+    }
+
+    IceScrumServerCapabilities(String version, long expiresAt, Boolean batchSupported, Boolean remainingTimeSupported) {
+        this.version = version;
+        this.r7 = version.startsWith("7.");
+        this.pro = version.contains("Pro");
+        this.cloud = version.contains("Cloud");
+        this.numericVersion = r7 ? 7f : parseR6Version(version);
+        this.expiresAt = expiresAt;
+        this.batchSupported = batchSupported;
+        this.remainingTimeSupported = remainingTimeSupported;
+    }
+
+    /**
+     * @return the capabilities of the server if known and not expired, without any network access
+     */
+    public static IceScrumServerCapabilities getCached(String url) {
+        if (url == null) {
+            return null;
+        }
+        IceScrumServerCapabilities capabilities = CACHE.get(url);
+        return capabilities != null && !capabilities.isExpired() ? capabilities : null;
+    }
+
+    /**
+     * Caches what the server answered on <code>/version/</code>.
+     */
+    static IceScrumServerCapabilities update(String url, String version) {
+        IceScrumServerCapabilities capabilities = new IceScrumServerCapabilities(version, System.currentTimeMillis() + TTL, null,
+                REMAINING_TIMES ? null : Boolean.FALSE);
+        if (url != null) {
+            CACHE.put(url, capabilities);
+        }
+        return capabilities;
+    }
+
+    static void clear() {
+        CACHE.clear();
+    }
+
+    /**
+     * Got R6#5.1 Pro (Cloud) -> 6.51 in order to compare float
+     */
+    static float parseR6Version(String version) {
+        String v = version.replaceAll(" Pro", "").replaceAll(" Cloud", "").replaceAll("R","").replaceAll("\\.","").replaceAll("#",".");
+        if (v.length() == 3){
+            v = v.replaceAll("\\.",".0");
+        }
+        try {
+            return Float.parseFloat(v);
+        } catch (NumberFormatException e) {
+            return 0f;
+        }
+    }
+
+    public String getVersion() {
+        return version;
+    }
+
+    /**
+     * @return true for iceScrum 7 and later, using token authentication on <code>/ws/project/</code>
+     */
+    public boolean isR7() {
+        return r7;
+    }
+
+    public boolean isPro() {
+        return pro;
+    }
+
+    public boolean isCloud() {
+        return cloud;
+    }
+
+    public float getNumericVersion() {
+        return numericVersion;
+    }
+
+    /**
+     * @return true if the server can receive build statuses
+     */
+    public boolean isCompatible() {
+        return r7 || (pro && numericVersion >= IceScrumSession.REQUIRED_VERSION);
+    }
+
+    public String getPath() {
+        return r7 ? "/ws/project/" : "/ws/p/";
+    }
+
+    /**
+     * @return false if the server is known to only accept one build per request
+     */
+    public boolean isBatchSupported() {
+        return r7 && !Boolean.FALSE.equals(batchSupported);
+    }
+
+    void setBatchSupported(boolean batchSupported) {
+        this.batchSupported = batchSupported;
+    }
+
+    /**
+     * @return false if the server is known not to accept remaining time updates
+     */
+    public boolean isRemainingTimeSupported() {
+        return r7 && !Boolean.FALSE.equals(remainingTimeSupported);
+    }
+
+    void setRemainingTimeSupported(boolean remainingTimeSupported) {
+        this.remainingTimeSupported = remainingTimeSupported;
+    }
+
+    boolean isExpired() {
+        return System.currentTimeMillis() >= expiresAt;
+    }
+}
@@ -19,25 +19,53 @@
  */
 package com.kagilum.plugins.icescrum;
 
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
+import hudson.init.Terminator;
+import hudson.util.DaemonThreadFactory;
 import hudson.util.IOUtils;
+import hudson.util.NamingThreadFactory;
+import net.sf.json.JSONArray;
+import net.sf.json.JSONException;
 import net.sf.json.JSONObject;
 import org.apache.commons.httpclient.HttpClient;
-import org.apache.commons.httpclient.HttpMethodBase;
+import org.apache.commons.httpclient.HttpConnectionManager;
 import org.apache.commons.httpclient.HttpStatus;
-import org.apache.commons.httpclient.UsernamePasswordCredentials;
-import org.apache.commons.httpclient.auth.AuthScope;
+import org.apache.commons.httpclient.MultiThreadedHttpConnectionManager;
+import org.apache.commons.httpclient.SimpleHttpConnectionManager;
 import org.apache.commons.httpclient.methods.GetMethod;
-import org.apache.commons.httpclient.methods.PostMethod;
-import org.apache.commons.httpclient.methods.StringRequestEntity;
-import org.kohsuke.stapler.HttpResponse;
+import org.apache.commons.httpclient.params.HttpConnectionManagerParams;
+import org.apache.commons.httpclient.util.IdleConnectionTimeoutThread;
 
 import java.io.IOException;
 import java.io.UnsupportedEncodingException;
 import java.net.MalformedURLException;
-import java.net.URL;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
+/**
+ * Talks to the iceScrum project of a job through the {@link IceScrumTransport}.
+ *
+ * A session runs one request at a time: the outcome of the last one ({@link #getLastError()},
+ * {@link #getLastStatusCode()}) can be read once it has returned, or once the future of an asynchronous
+ * call has completed.
+ */
 public class IceScrumSession {
 
 
@@ -47,43 +75,72 @@ public class IceScrumSession {
     public static final float REQUIRED_VERSION = 6.06f;
     public static final String TASK_PATTERN = "T(\\d+)-?(\\d+\\.\\d+|\\d+\\,\\d+|\\d+)?";
 
+    static final int CONNECT_TIMEOUT = Integer.getInteger(IceScrumSession.class.getName() + ".connectTimeout", 10 * 1000);
+    static final int READ_TIMEOUT = Integer.getInteger(IceScrumSession.class.getName() + ".readTimeout", 30 * 1000);
+    static final long POOL_TIMEOUT = Long.getLong(IceScrumSession.class.getName() + ".poolTimeout", 10 * 1000);
+    // not in HttpStatus of commons-httpclient 3
+    static final int SC_TOO_MANY_REQUESTS = 429;
+    static final int MAX_CONNECTIONS_PER_HOST = Integer.getInteger(IceScrumSession.class.getName() + ".maxConnectionsPerHost", 20);
+    static final boolean CHUNKED = Boolean.getBoolean(IceScrumSession.class.getName() + ".chunked");
+    static final int CHUNK_SIZE = Math.max(1, Integer.getInteger(IceScrumSession.class.getName() + ".chunkSize", 5000));
+    static final int CHUNK_RETRIES = Math.max(0, Integer.getInteger(IceScrumSession.class.getName() + ".chunkRetries", 3));
+    static final long CHUNK_RETRY_DELAY = Long.getLong(IceScrumSession.class.getName() + ".chunkRetryDelay", 1000);
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final ConcurrentMap<String, MultiThreadedHttpConnectionManager> CONNECTION_MANAGERS = new ConcurrentHashMap<String, MultiThreadedHttpConnectionManager>();
+    private static final ScheduledExecutorService CHUNK_RETRY_TIMER = Executors.newSingleThreadScheduledExecutor(
+            new NamingThreadFactory(new DaemonThreadFactory(), "IceScrumChunkRetry"));
+    // chunks and requests held back by the limiter of the sessions not given an executor, see setExecutor
+    private static final ExecutorService REQUEST_SENDER = Executors.newCachedThreadPool(
+            new NamingThreadFactory(new DaemonThreadFactory(), "IceScrumRequestSender"));
+
+    // started with the first pool, and again after closeConnections
+    private static IdleConnectionTimeoutThread idleConnectionReaper;
+
     private IceScrumProjectSettings settings;
-    private HttpClient client;
-    private String httpError = null;
-    private String body;
+    private final IceScrumTransport transport;
+    private int chunkSize = CHUNKED ? CHUNK_SIZE : Integer.MAX_VALUE;
+    private Executor executor = REQUEST_SENDER;
+    private volatile String httpError = null;
+    private volatile int statusCode = 0;
+    private volatile String body;
+    private final List<IceScrumTrace> traces = new ArrayList<IceScrumTrace>(1);
 
     public IceScrumSession(IceScrumProjectSettings settings) {
+        this(settings, IceScrumTransport.get());
+    }
+
+    IceScrumSession(IceScrumProjectSettings settings, IceScrumTransport transport) {
         this.settings = settings;
-        initClient();
+        this.transport = transport;
+    }
+
+    /**
+     * Records the phases of the next requests in the trace of a notification, see {@link IceScrumTrace}.
+     */
+    void trace(IceScrumTrace trace) {
+        if (trace != null) {
+            traces.add(trace);
+        }
     }
 
     public boolean isConnect() {
-        GetMethod method = new GetMethod(settings.getUrl() + "/version/");
-        if(executeMethod(method)){
+        IceScrumServerCapabilities capabilities = getCapabilities();
+        if (capabilities != null) {
             try{
-                String version = body;
-                if (version.isEmpty()){
-                    throw new IOException(Messages.IceScrumSession_icescrum_http_notfound());
-                }
-                if (version.startsWith("7.")) {
-                    method = new GetMethod(settings.getUrl() + settings.getPath() + settings.getPkey() + "/build/jenkins");
-                    return executeMethod(method, 200);
+                if (capabilities.isR7()) {
+                    return execute(IceScrumRequest.get(settings.getUrl() + settings.getPath() + settings.getPkey() + "/build/jenkins", settings), 200);
 
                 } else {
                     //Only Pro version contains build business object
-                    if (!version.contains("Pro")){
+                    if (!capabilities.isPro()){
                         throw new IOException(Messages.IceScrumSession_only_pro_version());
                     }
-                    //Got R6#5.1 Pro (Cloud) -> 6.51 in order to compare float
-                    version = version.replaceAll(" Pro", "").replaceAll(" Cloud", "").replaceAll("R","").replaceAll("\\.","").replaceAll("#",".");
-                    if (version.length() == 3){
-                        version = version.replaceAll("\\.",".0");
-                    }
-                    if (Float.parseFloat(version) < REQUIRED_VERSION){
+                    if (!capabilities.isCompatible()){
                         throw new IOException(Messages.IceScrumSession_not_compatible_version());
                     }
-                    method = new GetMethod(settings.getUrl() + settings.getPath() + settings.getPkey() + "/task");
-                    return executeMethod(method);
+                    //Only checks the project is reachable with these credentials, the task list itself isn't needed
+                    return execute(IceScrumRequest.head(settings.getUrl() + settings.getPath() + settings.getPkey() + "/task", settings), HttpStatus.SC_OK);
                 }
             } catch (IOException e) {
                 httpError = e.getMessage();
@@ -92,82 +149,493 @@ public class IceScrumSession {
         return false;
     }
 
+    /**
+     * Lists the tasks of the project in a single request, on the <code>/task</code> endpoint checked by {@link #isConnect()}.
+     *
+     * @return the tasks as answered by the server, null if they can't be read
+     */
+    public JSONArray getTasks() {
+        if (!execute(IceScrumRequest.get(settings.getUrl() + settings.getPath() + settings.getPkey() + "/task", settings), HttpStatus.SC_OK)) {
+            return null;
+        }
+        try {
+            return JSONArray.fromObject(body);
+        } catch (JSONException e) {
+            httpError = e.getMessage();
+            return null;
+        }
+    }
+
+    /**
+     * @return the capabilities of the server, from {@link IceScrumServerCapabilities} cache or asked to the server, null if it can't be reached.
+     * Only a 200 answer is cached, failures are asked again on the next call.
+     */
+    public IceScrumServerCapabilities getCapabilities() {
+        IceScrumServerCapabilities capabilities = IceScrumServerCapabilities.getCached(settings.getUrl());
+        if (capabilities != null) {
+            return capabilities;
+        }
+        return capabilitiesOf(execute(getVersion(), HttpStatus.SC_OK));
+    }
+
+    /**
+     * Same as {@link #getCapabilities()} without blocking the calling thread while the server is asked.
+     *
+     * @return completes with the capabilities, or with null if the server can't be reached, never fails
+     */
+    public ListenableFuture<IceScrumServerCapabilities> getCapabilitiesAsync() {
+        IceScrumServerCapabilities capabilities = IceScrumServerCapabilities.getCached(settings.getUrl());
+        if (capabilities != null) {
+            return Futures.immediateFuture(capabilities);
+        }
+        final ListenableFuture<Boolean> answered = submit(getVersion(), HttpStatus.SC_OK, false);
+        final SettableFuture<IceScrumServerCapabilities> result = SettableFuture.create();
+        answered.addListener(new Runnable() {
+            public void run() {
+                result.set(capabilitiesOf(Futures.getUnchecked(answered)));
+            }
+        }, MoreExecutors.sameThreadExecutor());
+        return result;
+    }
+
+    private IceScrumRequest getVersion() {
+        return IceScrumRequest.get(settings.getUrl() + "/version/", settings);
+    }
+
+    private IceScrumServerCapabilities capabilitiesOf(boolean answered) {
+        if (!answered) {
+            return null;
+        }
+        if (body.isEmpty()){
+            httpError = Messages.IceScrumSession_icescrum_http_notfound();
+            return null;
+        }
+        return IceScrumServerCapabilities.update(settings.getUrl(), body);
+    }
+
     public boolean sendBuildStatut(JSONObject build) throws UnsupportedEncodingException {
-        PostMethod method = new PostMethod(settings.getUrl() + settings.getPath() + settings.getPkey() + "/" + (settings.isTokenAuth() ? "build/jenkins" : "build"));
-        StringRequestEntity requestEntity = new StringRequestEntity(build.toString(),"application/json","UTF-8");
-        method.setRequestEntity(requestEntity);
-        return executeMethod(method, HttpStatus.SC_CREATED);
+        return post(getBuildUrl(), IceScrumRequest.bytes(build.toString().getBytes(UTF_8), "application/json; charset=UTF-8"), HttpStatus.SC_CREATED);
     }
 
-    private void initClient() {
-        client = new HttpClient();
+    /**
+     * Same as {@link #sendBuildStatut(JSONObject)}, the payload being streamed into the request.
+     */
+    public boolean sendBuildStatut(IceScrumBuildPayload build) {
+        return await(sendBuildStatutAsync(build));
     }
 
-    private boolean executeMethod(PostMethod method, int expectedCode){
-        boolean result = false;
+    /**
+     * Same as {@link #sendBuildStatut(IceScrumBuildPayload)}, returning as soon as the request is sent
+     * when the transport is asynchronous.
+     *
+     * When <code>com.kagilum.plugins.icescrum.IceScrumSession.chunked</code> is <code>true</code>, a build referencing
+     * more than <code>.chunkSize</code> tasks (5000 by default) is sent as a sequence of requests for the same build, each
+     * with a chunk of the tasks. A chunk refused with a retryable error is sent again up to <code>.chunkRetries</code> times
+     * (3 by default), waiting <code>.chunkRetryDelay</code> ms (1 s by default, doubled each time), the chunks already
+     * accepted are not sent again.
+     *
+     * This is off by default: only a server adding the tasks of each request to the build, rather than replacing them,
+     * ends up with all of them, and a build whose last chunk fails is deferred as a whole, chunks already accepted included.
+     *
+     * @return completes with the outcome, never fails
+     */
+    public ListenableFuture<Boolean> sendBuildStatutAsync(IceScrumBuildPayload build) {
+        int chunks = build.getChunkCount(chunkSize);
+        if (chunks == 1) {
+            return submit(IceScrumRequest.post(getBuildUrl(), settings, new IceScrumPayloadRequestEntity(build)), HttpStatus.SC_CREATED, true);
+        }
+        SettableFuture<Boolean> result = SettableFuture.create();
+        sendChunk(build, 0, chunks, 0, result);
+        return result;
+    }
+
+    void setChunkSize(int chunkSize) {
+        this.chunkSize = chunkSize;
+    }
+
+    /**
+     * @param executor sends the chunks following the first one and the chunks sent again, see
+     * {@link #sendBuildStatutAsync(IceScrumBuildPayload)}, and the requests handed their permit by the concurrency
+     * limiter after waiting for it. It must not refuse tasks while the session is in use.
+     */
+    void setExecutor(Executor executor) {
+        this.executor = executor;
+    }
+
+    private void sendChunk(final IceScrumBuildPayload build, final int index, final int chunks, final int attempt,
+                           final SettableFuture<Boolean> result) {
+        IceScrumPayloadRequestEntity entity = new IceScrumPayloadRequestEntity(build.chunk(index, chunkSize));
+        final ListenableFuture<Boolean> sent = submit(IceScrumRequest.post(getBuildUrl(), settings, entity), HttpStatus.SC_CREATED, true);
+        // only decides what comes next: with the asynchronous transport, this runs on an I/O thread
+        sent.addListener(new Runnable() {
+            public void run() {
+                if (Futures.getUnchecked(sent)) {
+                    if (index + 1 < chunks) {
+                        sendChunkLater(build, index + 1, chunks, 0, result, 0);
+                    } else {
+                        result.set(true);
+                    }
+                } else if (attempt < CHUNK_RETRIES && isRetryable()) {
+                    LOGGER.log(Level.FINE, "Sending again chunk {0} of {1} of {2} #{3}: {4}",
+                            new Object[]{index + 1, chunks, build.getJobName(), build.getNumber(), httpError});
+                    sendChunkLater(build, index, chunks, attempt + 1, result, CHUNK_RETRY_DELAY << attempt);
+                } else {
+                    httpError = Messages.IceScrumSession_icescrum_chunk_failed(index + 1, chunks, httpError);
+                    result.set(false);
+                }
+            }
+        }, MoreExecutors.sameThreadExecutor());
+    }
+
+    /**
+     * Sends a chunk from the executor of the session rather than from the I/O thread completing the previous request,
+     * which must not wait for the concurrency limiter nor write the next request. With a blocking transport, the
+     * thread that sent the previous chunk sends the next one, only the chunks sent again go through the executor.
+     *
+     * @param delay before sending the chunk, in ms
+     */
+    private void sendChunkLater(final IceScrumBuildPayload build, final int index, final int chunks, final int attempt,
+                                final SettableFuture<Boolean> result, long delay) {
+        final Runnable send = new Runnable() {
+            public void run() {
+                sendChunk(build, index, chunks, attempt, result);
+            }
+        };
         try {
-            setAuthentication(method);
-            client.executeMethod(method);
-            int code = method.getStatusCode();
-            if (code != HttpStatus.SC_OK && (expectedCode != 0 && expectedCode != code)) {
-                checkServerStatus(code);
-            }else {
-                body = IOUtils.toString(method.getResponseBodyAsStream());
-                result = true;
+            if (delay > 0) {
+                CHUNK_RETRY_TIMER.schedule(new Runnable() {
+                    public void run() {
+                        try {
+                            executor.execute(send);
+                        } catch (RejectedExecutionException e) {
+                            result.set(false);
+                        }
+                    }
+                }, delay, TimeUnit.MILLISECONDS);
+            } else if (transport.isBlocking()) {
+                send.run();
+            } else {
+                executor.execute(send);
             }
-        } catch (IOException e) {
-            httpError = e.getMessage();
-            LOGGER.log(Level.WARNING, httpError, e);
-        }finally {
-            method.releaseConnection();
+        } catch (RejectedExecutionException e) {
+            result.set(false);
+        }
+    }
+
+    /**
+     * Posts several builds of the project in a single request, as a JSON array of build objects.
+     * Servers that do not accept it answer with an error recognized by {@link #isBatchRejected()}.
+     */
+    public boolean sendBuildStatuts(List<IceScrumBuildPayload> builds) {
+        return await(sendBuildStatutsAsync(builds));
+    }
+
+    /**
+     * Same as {@link #sendBuildStatuts(List)}, returning as soon as the request is sent when the transport
+     * is asynchronous.
+     *
+     * @return completes with the outcome, never fails
+     */
+    public ListenableFuture<Boolean> sendBuildStatutsAsync(List<IceScrumBuildPayload> builds) {
+        String url = settings.getUrl() + settings.getPath() + settings.getPkey() + "/build/jenkins";
+        return submit(IceScrumRequest.post(url, settings, new IceScrumPayloadRequestEntity(builds)), HttpStatus.SC_CREATED, true);
+    }
+
+    /**
+     * Updates the remaining time of several tasks in a single request.
+     * Servers that do not accept it answer with an error recognized by {@link #isUnsupported()}, or a 404 when they don't
+     * have the endpoint, see {@link IceScrumServerCapabilities#isRemainingTimeSupported()}. A 400
+     * is about the project or the tasks of this request only.
+     */
+    public boolean sendRemainingTimes(IceScrumRemainingTimes times) {
+        String url = settings.getUrl() + settings.getPath() + settings.getPkey() + "/task/remainingTime";
+        return post(url, IceScrumRequest.bytes(times.toString().getBytes(UTF_8), "application/json; charset=UTF-8"), HttpStatus.SC_OK);
+    }
+
+    private String getBuildUrl() {
+        return settings.getUrl() + settings.getPath() + settings.getPkey() + "/" + (settings.isTokenAuth() ? "build/jenkins" : "build");
+    }
+
+    /**
+     * Sends build statuses and records the request in {@link IceScrumMetrics}.
+     */
+    private boolean post(String url, IceScrumRequest.Body body, int expectedCode) {
+        return await(submit(IceScrumRequest.post(url, settings, body), expectedCode, true));
+    }
+
+    private boolean execute(IceScrumRequest request, int expectedCode) {
+        return await(submit(request, expectedCode, false));
+    }
+
+    private boolean await(Future<Boolean> result) {
+        try {
+            return result.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            httpError = e.toString();
+        } catch (ExecutionException e) {
+            // submit never fails its future
+            httpError = e.getCause().toString();
+        }
+        return false;
+    }
+
+    /**
+     * One pooled connection manager per iceScrum host, so that keep-alive connections
+     * are reused by every build and form check talking to this server.
+     */
+    static HttpConnectionManager getConnectionManager(IceScrumProjectSettings settings) {
+        try {
+            return getConnectionManager(settings.getHostKey());
+        } catch (MalformedURLException e) {
+            // the request will fail with the same error, no need to pool it
+            return new SimpleHttpConnectionManager(true);
+        }
+    }
+
+    static HttpConnectionManager getConnectionManager(String key) {
+        MultiThreadedHttpConnectionManager manager = CONNECTION_MANAGERS.get(key);
+        if (manager == null) {
+            MultiThreadedHttpConnectionManager created = new MultiThreadedHttpConnectionManager();
+            HttpConnectionManagerParams params = created.getParams();
+            params.setConnectionTimeout(CONNECT_TIMEOUT);
+            params.setSoTimeout(READ_TIMEOUT);
+            params.setDefaultMaxConnectionsPerHost(MAX_CONNECTIONS_PER_HOST);
+            params.setMaxTotalConnections(MAX_CONNECTIONS_PER_HOST);
+            params.setStaleCheckingEnabled(true);
+            manager = CONNECTION_MANAGERS.putIfAbsent(key, created);
+            if (manager == null) {
+                manager = created;
+                reapIdleConnections(manager);
+            } else {
+                created.shutdown();
+            }
+        }
+        return manager;
+    }
+
+    @Terminator
+    public static void closeConnections() {
+        CHUNK_RETRY_TIMER.shutdownNow();
+        REQUEST_SENDER.shutdown();
+        synchronized (IceScrumSession.class) {
+            if (idleConnectionReaper != null) {
+                idleConnectionReaper.shutdown();
+                idleConnectionReaper = null;
+            }
+        }
+        for (MultiThreadedHttpConnectionManager manager : CONNECTION_MANAGERS.values()) {
+            manager.shutdown();
+        }
+        CONNECTION_MANAGERS.clear();
+    }
+
+    private static synchronized void reapIdleConnections(MultiThreadedHttpConnectionManager manager) {
+        if (idleConnectionReaper == null) {
+            idleConnectionReaper = new IdleConnectionTimeoutThread();
+            idleConnectionReaper.setName("iceScrum idle connection reaper");
+            idleConnectionReaper.setConnectionTimeout(60 * 1000);
+            idleConnectionReaper.setTimeoutInterval(30 * 1000);
+            idleConnectionReaper.start();
+        }
+        idleConnectionReaper.addConnectionManager(manager);
+    }
+
+    /**
+     * Sends the request unless the circuit breaker or the concurrency limiter of the host refuses it. Waiting for the
+     * limiter blocks no thread: a request handed its permit later is sent from the executor of the session.
+     *
+     * @param recordSend true to record the request in {@link IceScrumMetrics}
+     * @return completes with true if the server answered with the expected code (or 200), never fails
+     */
+    private ListenableFuture<Boolean> submit(final IceScrumRequest request, final int expectedCode, final boolean recordSend) {
+        statusCode = 0;
+        long serializing = System.nanoTime();
+        // payload lengths are computed from the ids, without writing the payloads
+        final long payloadBytes = request.getBody() != null ? request.getBody().getContentLength() : 0;
+        final long acquiring = System.nanoTime();
+        if (request.getBody() != null) {
+            for (IceScrumTrace trace : traces) {
+                trace.record(IceScrumTrace.Phase.SERIALIZATION, serializing, acquiring);
+                trace.setPayloadBytes(payloadBytes);
+            }
+        }
+        final IceScrumCircuitBreaker breaker = IceScrumCircuitBreaker.of(settings);
+        if (breaker != null && !breaker.allowRequest()) {
+            httpError = Messages.IceScrumSession_icescrum_circuit_open();
+            return Futures.immediateFuture(false);
+        }
+        final SettableFuture<Boolean> result = SettableFuture.create();
+        final IceScrumConcurrencyLimiter limiter = IceScrumConcurrencyLimiter.of(settings);
+        if (limiter == null) {
+            send(request, expectedCode, recordSend, breaker, null, null, acquiring, payloadBytes, result);
+            return result;
+        }
+        final ListenableFuture<IceScrumConcurrencyLimiter.Permit> acquired = limiter.acquireAsync(POOL_TIMEOUT, IceScrumConcurrencyLimiter.kind(request));
+        final Runnable sending = new Runnable() {
+            public void run() {
+                IceScrumConcurrencyLimiter.Permit permit = Futures.getUnchecked(acquired);
+                if (permit == null) {
+                    throttled(breaker, acquiring, result);
+                } else {
+                    send(request, expectedCode, recordSend, breaker, limiter, permit, acquiring, payloadBytes, result);
+                }
+            }
+        };
+        if (acquired.isDone()) {
+            sending.run();
+            return result;
         }
+        // handed over by the timer of the limiter or by the completion of another request, which must not send
+        acquired.addListener(new Runnable() {
+            public void run() {
+                try {
+                    executor.execute(sending);
+                } catch (RejectedExecutionException e) {
+                    IceScrumConcurrencyLimiter.Permit permit = Futures.getUnchecked(acquired);
+                    if (permit != null) {
+                        limiter.release(permit, IceScrumConcurrencyLimiter.Outcome.IGNORED);
+                    }
+                    throttled(breaker, acquiring, result);
+                }
+            }
+        }, MoreExecutors.sameThreadExecutor());
         return result;
     }
 
-    private boolean executeMethod(GetMethod method){
-        return executeMethod(method,0);
+    private void throttled(IceScrumCircuitBreaker breaker, long acquiring, SettableFuture<Boolean> result) {
+        if (breaker != null) {
+            breaker.release();
+        }
+        long now = System.nanoTime();
+        for (IceScrumTrace trace : traces) {
+            trace.record(IceScrumTrace.Phase.CONNECTION, acquiring, now);
+        }
+        httpError = Messages.IceScrumSession_icescrum_throttled();
+        result.set(false);
+    }
+
+    /**
+     * Hands the request to the transport once the limiter allowed it.
+     *
+     * @param permit null without limiter
+     */
+    private void send(IceScrumRequest request, final int expectedCode, final boolean recordSend, final IceScrumCircuitBreaker breaker,
+                      final IceScrumConcurrencyLimiter limiter, final IceScrumConcurrencyLimiter.Permit permit, long acquiring,
+                      final long payloadBytes, final SettableFuture<Boolean> result) {
+        final long start = System.nanoTime();
+        for (IceScrumTrace trace : traces) {
+            trace.record(IceScrumTrace.Phase.CONNECTION, acquiring, start);
+        }
+        ListenableFuture<IceScrumResponse> response;
+        try {
+            response = transport.execute(request);
+        } catch (RuntimeException e) {
+            response = Futures.immediateFailedFuture(e);
+        }
+        Futures.addCallback(response, new FutureCallback<IceScrumResponse>() {
+            public void onSuccess(IceScrumResponse response) {
+                complete(response, null);
+            }
+
+            public void onFailure(Throwable t) {
+                complete(null, t);
+            }
+
+            private void complete(IceScrumResponse response, Throwable failure) {
+                boolean sent = false;
+                try {
+                    sent = IceScrumSession.this.complete(response, failure, expectedCode, breaker, limiter, permit);
+                } finally {
+                    long end = System.nanoTime();
+                    if (recordSend) {
+                        IceScrumMetrics.get().recordSend(settings, end - start, payloadBytes, statusCode, sent);
+                    }
+                    for (IceScrumTrace trace : traces) {
+                        trace.record(IceScrumTrace.Phase.EXCHANGE, start, end);
+                        trace.setStatus(statusCode);
+                    }
+                    result.set(sent);
+                }
+            }
+        });
     }
 
-    private boolean executeMethod(GetMethod method, int expectedCode){
+    private boolean complete(IceScrumResponse response, Throwable failure, int expectedCode, IceScrumCircuitBreaker breaker,
+                             IceScrumConcurrencyLimiter limiter, IceScrumConcurrencyLimiter.Permit permit) {
         boolean result = false;
+        IceScrumConcurrencyLimiter.Outcome outcome = IceScrumConcurrencyLimiter.Outcome.DROPPED;
         try {
-            setAuthentication(method);
-            method.setRequestHeader("accept", "application/json");
-            client.executeMethod(method);
-            int code = method.getStatusCode();
+            if (response == null) {
+                throw failure instanceof IOException ? (IOException) failure : new IOException(failure);
+            }
+            int code = response.getStatus();
+            statusCode = code;
+            outcome = outcomeOf(code);
+            if (breaker != null) {
+                if (code == HttpStatus.SC_SERVICE_UNAVAILABLE) {
+                    breaker.onFailure();
+                } else {
+                    breaker.onSuccess();
+                }
+            }
             if (code != HttpStatus.SC_OK && (expectedCode != 0 && expectedCode != code)) {
                 checkServerStatus(code);
             }else {
-                body = IOUtils.toString(method.getResponseBodyAsStream());
+                body = response.getBody();
                 result = true;
             }
         } catch (IOException e) {
+            if (statusCode == 0 && breaker != null) {
+                breaker.onFailure();
+            }
             httpError = e.getMessage();
             LOGGER.log(Level.WARNING, httpError, e);
         }finally {
-            method.releaseConnection();
+            if (permit != null) {
+                limiter.release(permit, outcome);
+            }
         }
         return result;
     }
 
-    private void setAuthentication(HttpMethodBase method) throws MalformedURLException {
-        int port;
-        URL url = new URL(settings.getUrl() + "/version/");
-        if (url.getPort() == -1) {
-            port = url.getDefaultPort();
-        } else {
-            port = url.getPort();
+    private static IceScrumConcurrencyLimiter.Outcome outcomeOf(int code) {
+        if (code == HttpStatus.SC_SERVICE_UNAVAILABLE || code == SC_TOO_MANY_REQUESTS) {
+            return IceScrumConcurrencyLimiter.Outcome.DROPPED;
         }
-        if(settings.isTokenAuth()){
-            method.setRequestHeader("content-type", "application/json");
-            method.setRequestHeader("x-icescrum-token", settings.getAccessToken());
-        } else {
-            client.getState().setCredentials(new AuthScope(url.getHost(), port),new UsernamePasswordCredentials(settings.getUsername(), settings.getPassword().getPlainText()));
+        // errors are answered without doing the work, their latency says nothing about the load
+        return code < 400 ? IceScrumConcurrencyLimiter.Outcome.SUCCESS : IceScrumConcurrencyLimiter.Outcome.IGNORED;
+    }
+
+    /**
+     * Asks <code>/version/</code> to a server, whatever the state of its {@link IceScrumCircuitBreaker}.
+     *
+     * @return true if the server answered, its capabilities are refreshed on the way
+     */
+    static boolean probe(String hostKey, String url) {
+        HttpClient probeClient = new HttpClient(getConnectionManager(hostKey));
+        probeClient.getParams().setConnectionManagerTimeout(POOL_TIMEOUT);
+        GetMethod method = new GetMethod(url + "/version/");
+        try {
+            if (probeClient.executeMethod(method) == HttpStatus.SC_OK) {
+                String version = IOUtils.toString(method.getResponseBodyAsStream());
+                if (!version.isEmpty()) {
+                    IceScrumServerCapabilities.update(url, version);
+                }
+                return true;
+            }
+        } catch (IOException e) {
+            LOGGER.log(Level.FINE, "iceScrum server " + url + " is still unreachable", e);
+        } finally {
+            method.releaseConnection();
         }
+        return false;
     }
 
     private void checkServerStatus(int code) throws IOException {
         switch(code){
+            case SC_TOO_MANY_REQUESTS:
+                throw new IOException(Messages.IceScrumSession_icescrum_http_throttled());
             case HttpStatus.SC_SERVICE_UNAVAILABLE:
                 throw new IOException(settings.isTokenAuth() ? Messages.IceScrumSession_icescrum_http_unavailable_new() : Messages.IceScrumSession_icescrum_http_unavailable());
             case HttpStatus.SC_UNAUTHORIZED:
@@ -186,4 +654,40 @@ public class IceScrumSession {
     public String getLastError() {
         return httpError != null ? httpError : "";
     }
+
+    /**
+     * @return HTTP status of the last request, or 0 if no response was received
+     */
+    public int getLastStatusCode() {
+        return statusCode;
+    }
+
+    /**
+     * @return true if the server answered the last request with an error not worth retrying. The JSON array of a batch
+     * may be what it refused, whatever the status (400, 422, 500...), the builds are then sent one by one.
+     */
+    public boolean isBatchRejected() {
+        return statusCode != 0 && (statusCode < 200 || statusCode >= 300) && !isRetryable();
+    }
+
+    /**
+     * @return true if the endpoint itself refused the last request (405, 415). Other errors, like an unknown project (404)
+     * or invalid tasks (400, 422), are about this request only and say nothing of the server.
+     */
+    public boolean isUnsupported() {
+        switch (statusCode) {
+            case HttpStatus.SC_METHOD_NOT_ALLOWED:
+            case HttpStatus.SC_UNSUPPORTED_MEDIA_TYPE:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * @return true if the last request failed in a way worth retrying later (no response or server unavailable)
+     */
+    public boolean isRetryable() {
+        return statusCode == 0 || statusCode == HttpStatus.SC_SERVICE_UNAVAILABLE || statusCode == SC_TOO_MANY_REQUESTS;
+    }
 }
@@ -0,0 +1,270 @@
+/*
+ * Copyright 2013 Kagilum SAS.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Author(s):
+ *
+ * Vincent Barrier (vbarrier@kagilum.com)
+ */
+package com.kagilum.plugins.icescrum;
+
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
+import net.sf.json.JSONArray;
+import net.sf.json.JSONObject;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Names and states of the tasks of iceScrum projects, shown in the links of {@link IceScrumLinkAnnotator}.
+ *
+ * The tasks of a project are fetched all at once from its <code>/task</code> endpoint, on a background thread:
+ * {@link #lookup(IceScrumProjectSettings)} never waits for the network, it answers null until the first fetch is done.
+ * A project is fetched again once half of its TTL has elapsed, and forgotten when the whole TTL has, so that pages
+ * rendered regularly always find fresh tasks. A project that can't be fetched is kept without tasks until the next attempt.
+ *
+ * The TTL (ms, 0 disables the cache), the number of projects kept (least recently used first evicted) and the number
+ * of tasks kept per project (the last ones listed by the server) can be set with the
+ * <code>com.kagilum.plugins.icescrum.IceScrumTaskCache.ttl</code>, <code>.maxProjects</code> and <code>.maxTasks</code>
+ * system properties.
+ */
+public final class IceScrumTaskCache {
+
+    static final long TTL = Long.getLong(IceScrumTaskCache.class.getName() + ".ttl", 5 * 60 * 1000);
+    static final int MAX_PROJECTS = Math.max(1, Integer.getInteger(IceScrumTaskCache.class.getName() + ".maxProjects", 64));
+    static final int MAX_TASKS = Math.max(1, Integer.getInteger(IceScrumTaskCache.class.getName() + ".maxTasks", 10000));
+
+    public static final int STATE_TODO = 0;
+    public static final int STATE_IN_PROGRESS = 1;
+    public static final int STATE_DONE = 2;
+
+    private static final AtomicLong GENERATIONS = new AtomicLong();
+    private static final IceScrumTaskCache INSTANCE = new IceScrumTaskCache(TTL, MAX_PROJECTS, MAX_TASKS, newRefresher());
+
+    private final long ttl;
+    private final int maxTasks;
+    private final Executor refresher;
+    private final Map<String, Project> projects;
+
+    IceScrumTaskCache(long ttl, final int maxProjects, int maxTasks, Executor refresher) {
+        this.ttl = ttl;
+        this.maxTasks = maxTasks;
+        this.refresher = refresher;
+        this.projects = new LinkedHashMap<String, Project>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Project> eldest) {
+                return size() > maxProjects;
+            }
+        };
+    }
+
+    public static IceScrumTaskCache get() {
+        return INSTANCE;
+    }
+
+    private static Executor newRefresher() {
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(1, 1, 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<Runnable>(MAX_PROJECTS),
+                new NamingThreadFactory(new DaemonThreadFactory(), "IceScrumTaskCacheRefresher"));
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    /**
+     * @return the tasks of the project if fetched and not expired, null otherwise. Starts a background fetch when
+     * the tasks are missing or half expired.
+     */
+    public Tasks lookup(IceScrumProjectSettings settings) {
+        if (ttl <= 0 || settings == null || !settings.hasAuth()) {
+            return null;
+        }
+        Project project;
+        synchronized (projects) {
+            String key = settings.getProjectUrl();
+            project = projects.get(key);
+            if (project == null) {
+                project = new Project();
+                projects.put(key, project);
+            }
+        }
+        Tasks tasks = project.tasks;
+        long age = tasks != null ? System.currentTimeMillis() - tasks.loadedAt : Long.MAX_VALUE;
+        if (age >= ttl / 2) {
+            refresh(project, settings);
+        }
+        return age < ttl ? tasks : null;
+    }
+
+    private void refresh(final Project project, final IceScrumProjectSettings settings) {
+        if (!project.refreshing.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            refresher.execute(new Runnable() {
+                public void run() {
+                    try {
+                        project.tasks = fetch(settings);
+                    } finally {
+                        project.refreshing.set(false);
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // too many projects waiting, the next lookup tries again
+            project.refreshing.set(false);
+        }
+    }
+
+    private Tasks fetch(IceScrumProjectSettings settings) {
+        IceScrumSession session = new IceScrumSession(settings);
+        JSONArray tasks = session.getTasks();
+        if (tasks == null) {
+            LOGGER.log(Level.FINE, "Unable to fetch the tasks of iceScrum project {0}: {1}",
+                    new Object[]{settings.getProjectUrl(), session.getLastError()});
+            return Tasks.parse(new JSONArray(), maxTasks);
+        }
+        return Tasks.parse(tasks, maxTasks);
+    }
+
+    void clear() {
+        synchronized (projects) {
+            projects.clear();
+        }
+    }
+
+    int size() {
+        synchronized (projects) {
+            return projects.size();
+        }
+    }
+
+    private static final class Project {
+
+        private final AtomicBoolean refreshing = new AtomicBoolean();
+        private volatile Tasks tasks;
+    }
+
+    /**
+     * Tasks of a project as fetched at once, never modified.
+     */
+    public static final class Tasks {
+
+        private final long loadedAt;
+        private final long generation;
+        private final IceScrumTaskIds ids;
+        // by insertion index of ids, names are escaped for HTML attributes
+        private final String[] names;
+        private final int[] states;
+
+        private Tasks(IceScrumTaskIds ids, String[] names, int[] states) {
+            this.loadedAt = System.currentTimeMillis();
+            this.generation = GENERATIONS.incrementAndGet();
+            this.ids = ids;
+            this.names = names;
+            this.states = states;
+        }
+
+        /**
+         * Reads the <code>uid</code>, <code>name</code> and <code>state</code> of the tasks answered by the server.
+         */
+        static Tasks parse(JSONArray array, int maxTasks) {
+            int first = Math.max(0, array.size() - maxTasks);
+            IceScrumTaskIds ids = new IceScrumTaskIds(array.size() - first);
+            String[] names = new String[array.size() - first];
+            int[] states = new int[names.length];
+            for (int i = first; i < array.size(); i++) {
+                Object o = array.get(i);
+                if (!(o instanceof JSONObject)) {
+                    continue;
+                }
+                JSONObject task = (JSONObject) o;
+                int uid = task.optInt("uid", -1);
+                if (uid < 0 || !ids.add(uid)) {
+                    continue;
+                }
+                // a JSON null would be read as "null" by optString
+                Object name = task.opt("name");
+                names[ids.size() - 1] = name instanceof String ? escape((String) name) : null;
+                states[ids.size() - 1] = task.optInt("state", -1);
+            }
+            return new Tasks(ids, names, states);
+        }
+
+        /**
+         * @return changes each time tasks are fetched, for the annotations computed from them
+         */
+        public long getGeneration() {
+            return generation;
+        }
+
+        public int size() {
+            return ids.size();
+        }
+
+        /**
+         * @return the name of the task escaped for HTML, null if unknown
+         */
+        public String getName(int uid) {
+            int index = ids.indexOf(uid);
+            return index >= 0 ? names[index] : null;
+        }
+
+        /**
+         * @return one of the <code>STATE_</code> constants, -1 if unknown
+         */
+        public int getState(int uid) {
+            int index = ids.indexOf(uid);
+            return index >= 0 ? states[index] : -1;
+        }
+
+        private static String escape(String s) {
+            StringBuilder buf = null;
+            for (int i = 0; i < s.length(); i++) {
+                char c = s.charAt(i);
+                String entity;
+                switch (c) {
+                    case '&': entity = "&amp;"; break;
+                    case '<': entity = "&lt;"; break;
+                    case '>': entity = "&gt;"; break;
+                    case '"': entity = "&quot;"; break;
+                    case '\'': entity = "&#39;"; break;
+                    default: entity = null;
+                }
+                if (entity != null && buf == null) {
+                    buf = new StringBuilder(s.length() + 16).append(s, 0, i);
+                }
+                if (buf != null) {
+                    if (entity != null) {
+                        buf.append(entity);
+                    } else {
+                        buf.append(c);
+                    }
+                }
+            }
+            return buf != null ? buf.toString() : s;
+        }
+    }
+
+    private static final Logger LOGGER = Logger.getLogger(IceScrumTaskCache.class.getName());
+}
@@ -0,0 +1,58 @@
+/*
+ * Copyright 2013 Kagilum SAS.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Author(s):
+ *
+ * Vincent Barrier (vbarrier@kagilum.com)
+ */
+package com.kagilum.plugins.icescrum;
+
+/**
+ * Finds the task ids referenced in a commit message, with the same matches as {@link IceScrumSession#TASK_PATTERN}
+ * but in a single pass, without regex nor boxing. Only the default <code>T</code> prefix is recognized, see
+ * {@link IceScrumReferenceScanner} for the configured ones.
+ */
+public final class IceScrumTaskIdExtractor {
+
+    private IceScrumTaskIdExtractor() {
+    }
+
+    /**
+     * Adds to <code>ids</code> every task id found in <code>msg</code>. Ids too large for an int are ignored.
+     *
+     * @return the number of references found, duplicates included
+     */
+    public static int extract(CharSequence msg, IceScrumTaskIds ids) {
+        return extract(msg, ids, null, -1);
+    }
+
+    /**
+     * Same as {@link #extract(CharSequence, IceScrumTaskIds)}, also adding to <code>times</code> the remaining
+     * time given after an id (<code>T671-3</code>, <code>T671-1.5</code> or <code>T671-1,5</code>).
+     *
+     * @param times null if remaining times are not wanted
+     * @param timestamp of the commit, -1 if unknown
+     */
+    public static int extract(CharSequence msg, final IceScrumTaskIds ids, final IceScrumRemainingTimes times, final long timestamp) {
+        return IceScrumReferenceScanner.DEFAULT.scan(msg, new IceScrumReferenceScanner.Visitor() {
+            public void visit(IceScrumReferenceScanner.Type type, int id, int start, int end, String remainingTime) {
+                ids.add(id);
+                if (times != null && remainingTime != null) {
+                    IceScrumReferenceScanner.putRemainingTime(times, id, remainingTime, timestamp);
+                }
+            }
+        });
+    }
+}
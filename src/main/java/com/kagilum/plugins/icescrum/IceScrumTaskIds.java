@@ -0,0 +1,134 @@
+/*
+ * Copyright 2013 Kagilum SAS.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Author(s):
+ *
+ * Vincent Barrier (vbarrier@kagilum.com)
+ */
+package com.kagilum.plugins.icescrum;
+
+import java.util.Arrays;
+
+/**
+ * Set of task ids kept as primitive ints, in the order they were first added.
+ */
+public final class IceScrumTaskIds {
+
+    private static final int FREE = -1;
+
+    // ids in insertion order
+    private int[] values;
+    private int size;
+    // open addressing table of indexes into values, FREE when empty
+    private int[] slots;
+
+    public IceScrumTaskIds() {
+        this(16);
+    }
+
+    public IceScrumTaskIds(int expected) {
+        values = new int[Math.max(4, expected)];
+        slots = new int[tableSize(values.length)];
+        Arrays.fill(slots, FREE);
+    }
+
+    /**
+     * @return true if the id was not already in the set
+     */
+    public boolean add(int id) {
+        int mask = slots.length - 1;
+        int slot = mix(id) & mask;
+        while (slots[slot] != FREE) {
+            if (values[slots[slot]] == id) {
+                return false;
+            }
+            slot = (slot + 1) & mask;
+        }
+        if (size == values.length) {
+            values = Arrays.copyOf(values, size * 2);
+        }
+        values[size] = id;
+        slots[slot] = size++;
+        if (size * 2 > slots.length) {
+            rehash();
+        }
+        return true;
+    }
+
+    public boolean contains(int id) {
+        return indexOf(id) != FREE;
+    }
+
+    /**
+     * @return the insertion index of the id, -1 if it is not in the set
+     */
+    public int indexOf(int id) {
+        int mask = slots.length - 1;
+        int slot = mix(id) & mask;
+        while (slots[slot] != FREE) {
+            if (values[slots[slot]] == id) {
+                return slots[slot];
+            }
+            slot = (slot + 1) & mask;
+        }
+        return FREE;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public int get(int index) {
+        if (index >= size) {
+            throw new IndexOutOfBoundsException(index + " >= " + size);
+        }
+        return values[index];
+    }
+
+    public int[] toArray() {
+        return Arrays.copyOf(values, size);
+    }
+
+    public void clear() {
+        size = 0;
+        Arrays.fill(slots, FREE);
+    }
+
+    private void rehash() {
+        slots = new int[slots.length * 2];
+        Arrays.fill(slots, FREE);
+        int mask = slots.length - 1;
+        for (int i = 0; i < size; i++) {
+            int slot = mix(values[i]) & mask;
+            while (slots[slot] != FREE) {
+                slot = (slot + 1) & mask;
+            }
+            slots[slot] = i;
+        }
+    }
+
+    private static int tableSize(int capacity) {
+        return Integer.highestOneBit(capacity * 4 - 1);
+    }
+
+    private static int mix(int id) {
+        int h = id * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+}
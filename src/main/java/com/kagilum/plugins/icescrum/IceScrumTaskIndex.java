@@ -0,0 +1,788 @@
+/*
+ * Copyright 2013 Kagilum SAS.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Author(s):
+ *
+ * Vincent Barrier (vbarrier@kagilum.com)
+ */
+package com.kagilum.plugins.icescrum;
+
+import hudson.init.InitMilestone;
+import hudson.init.Initializer;
+import hudson.init.Terminator;
+import hudson.model.AbstractBuild;
+import hudson.model.Job;
+import hudson.model.Run;
+import hudson.scm.ChangeLogSet;
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
+import jenkins.model.Jenkins;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Which builds referenced an iceScrum task, kept under <code>JENKINS_HOME/icescrum-index</code>.
+ *
+ * Entries are (task, project, job, build) int records, task ids being only unique within an iceScrum project.
+ * Projects and jobs are numbered in <code>projects.txt</code> and <code>jobs.txt</code>. New entries are
+ * appended to <code>pending.log</code> and merged, once there are enough of them, into a new generation of
+ * <code>index-*.dat</code>: records sorted by task then project, memory-mapped and binary searched.
+ *
+ * The index is filled from the tasks of the statuses sent to iceScrum, and rebuilt from the history of the
+ * jobs the first time the plugin starts with it, or with a new format. Builds record their tasks with
+ * {@link #addLater}, written and compacted by a single thread: lookups only wait for the records to be
+ * appended, not for the new generation to be merged.
+ */
+public final class IceScrumTaskIndex {
+
+    static final int COMPACT_THRESHOLD = Math.max(1, Integer.getInteger(IceScrumTaskIndex.class.getName() + ".compactThreshold", 4096));
+    static final int REBUILD_THREADS = Math.max(1, Integer.getInteger(IceScrumTaskIndex.class.getName() + ".rebuildThreads",
+            Math.min(4, Runtime.getRuntime().availableProcessors())));
+
+    private static final int MAGIC = 0x49534958;
+    private static final int VERSION = 2;
+    private static final int HEADER_INTS = 3;
+    private static final int RECORD_INTS = 4;
+    private static final String FORMAT = "format";
+    private static final String PROJECTS = "projects.txt";
+    private static final String JOBS = "jobs.txt";
+    private static final String PENDING = "pending.log";
+    private static final String REBUILT = "rebuilt";
+    private static final String SEGMENT_PREFIX = "index-";
+    private static final String SEGMENT_SUFFIX = ".dat";
+
+    private static final ExecutorService WRITER = Executors.newSingleThreadExecutor(
+            new NamingThreadFactory(new DaemonThreadFactory(), "IceScrumTaskIndexWriter"));
+
+    private static IceScrumTaskIndex instance;
+
+    private final File directory;
+    private final List<String> projects = new ArrayList<String>();
+    private final Map<String, Integer> projectNumbers = new HashMap<String, Integer>();
+    private Writer projectsWriter;
+    private final List<String> jobs = new ArrayList<String>();
+    private final Map<String, Integer> jobNumbers = new HashMap<String, Integer>();
+    private Writer jobsWriter;
+
+    // compacted records sorted by task then project
+    private IntBuffer sorted = IntBuffer.allocate(0);
+    private int sortedCount;
+    private long generation = -1;
+
+    // records added since the last compaction, in the order they were added
+    private int[] pending = new int[RECORD_INTS * 64];
+    private int pendingCount;
+    private DataOutputStream pendingLog;
+
+    private boolean loaded;
+    private volatile boolean rebuilding;
+
+    // held while merging, without the lock of the lookups
+    private final Object compactLock = new Object();
+    private final AtomicBoolean compacting = new AtomicBoolean();
+
+    IceScrumTaskIndex(File directory) {
+        this.directory = directory;
+    }
+
+    public static synchronized IceScrumTaskIndex get() {
+        if (instance == null) {
+            instance = new IceScrumTaskIndex(new File(Jenkins.getInstance().getRootDir(), "icescrum-index"));
+        }
+        return instance;
+    }
+
+    /**
+     * Records from the writer thread that a build referenced these tasks, the build doesn't wait for the index.
+     *
+     * @param project url of the project, see {@link IceScrumProjectSettings#getProjectUrl()}
+     */
+    public void addLater(final String project, final String jobName, final int buildNumber, final int[] tasks) {
+        if (tasks == null || tasks.length == 0) {
+            return;
+        }
+        try {
+            WRITER.execute(new Runnable() {
+                public void run() {
+                    add(project, jobName, buildNumber, tasks);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            LOGGER.log(Level.FINE, "iceScrum task index closed, tasks of {0} #{1} left to the next rebuild", new Object[]{jobName, buildNumber});
+        }
+    }
+
+    /**
+     * Records that a build referenced these tasks of an iceScrum project. Errors are only logged, the index can be rebuilt.
+     *
+     * @param project url of the project, see {@link IceScrumProjectSettings#getProjectUrl()}
+     */
+    public synchronized void add(String project, String jobName, int buildNumber, int[] tasks) {
+        if (tasks == null || tasks.length == 0) {
+            return;
+        }
+        try {
+            load();
+            int p = number(project, projects, projectNumbers, projectsWriter);
+            int job = number(jobName, jobs, jobNumbers, jobsWriter);
+            if (pending.length < (pendingCount + tasks.length) * RECORD_INTS) {
+                pending = Arrays.copyOf(pending, Math.max(pending.length * 2, (pendingCount + tasks.length) * RECORD_INTS));
+            }
+            for (int task : tasks) {
+                int i = pendingCount++ * RECORD_INTS;
+                pending[i] = task;
+                pending[i + 1] = p;
+                pending[i + 2] = job;
+                pending[i + 3] = buildNumber;
+                pendingLog.writeInt(task);
+                pendingLog.writeInt(p);
+                pendingLog.writeInt(job);
+                pendingLog.writeInt(buildNumber);
+            }
+            pendingLog.flush();
+            if (pendingCount >= COMPACT_THRESHOLD && !rebuilding) {
+                compactLater();
+            }
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Unable to index the iceScrum tasks of " + jobName + " #" + buildNumber, e);
+        }
+    }
+
+    /**
+     * @param project url of the project, see {@link IceScrumProjectSettings#getProjectUrl()}
+     * @return the builds that referenced the task of this project, by job then latest build first
+     */
+    public synchronized List<Hit> lookup(String project, int task) {
+        try {
+            load();
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Unable to read the iceScrum task index", e);
+            return Collections.emptyList();
+        }
+        Integer p = projectNumbers.get(project);
+        if (p == null) {
+            return Collections.emptyList();
+        }
+        long key = key(task, p);
+        Set<Long> seen = new HashSet<Long>();
+        List<Hit> hits = new ArrayList<Hit>();
+        for (int i = lowerBound(key); i < sortedCount && sortedKey(i) == key; i++) {
+            addHit(hits, seen, sorted.get(i * RECORD_INTS + 2), sorted.get(i * RECORD_INTS + 3));
+        }
+        for (int i = 0; i < pendingCount; i++) {
+            if (pendingKey(i) == key) {
+                addHit(hits, seen, pending[i * RECORD_INTS + 2], pending[i * RECORD_INTS + 3]);
+            }
+        }
+        Collections.sort(hits, new Comparator<Hit>() {
+            public int compare(Hit a, Hit b) {
+                int c = a.jobName.compareTo(b.jobName);
+                return c != 0 ? c : b.number < a.number ? -1 : b.number == a.number ? 0 : 1;
+            }
+        });
+        return hits;
+    }
+
+    public synchronized int size() {
+        return sortedCount + pendingCount;
+    }
+
+    public boolean isRebuilding() {
+        return rebuilding;
+    }
+
+    /**
+     * @return true if the index has never been built from the history of the jobs in its current format
+     */
+    synchronized boolean needsRebuild() {
+        try {
+            load();
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Unable to read the iceScrum task index", e);
+        }
+        return !new File(directory, REBUILT).exists();
+    }
+
+    private void addHit(List<Hit> hits, Set<Long> seen, int job, int number) {
+        if (job < jobs.size() && seen.add(((long) job << 32) | (number & 0xFFFFFFFFL))) {
+            hits.add(new Hit(jobs.get(job), number));
+        }
+    }
+
+    /**
+     * @return the sort key of a record, task then project
+     */
+    private static long key(int task, int project) {
+        return ((long) task << 32) | (project & 0xFFFFFFFFL);
+    }
+
+    private long sortedKey(int i) {
+        return sortedKey(sorted, i);
+    }
+
+    private static long sortedKey(IntBuffer sorted, int i) {
+        return key(sorted.get(i * RECORD_INTS), sorted.get(i * RECORD_INTS + 1));
+    }
+
+    private long pendingKey(int i) {
+        return pendingKey(pending, i);
+    }
+
+    private static long pendingKey(int[] pending, int i) {
+        return key(pending[i * RECORD_INTS], pending[i * RECORD_INTS + 1]);
+    }
+
+    private int lowerBound(long key) {
+        int low = 0;
+        int high = sortedCount;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (sortedKey(mid) < key) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    private static int number(String name, List<String> names, Map<String, Integer> numbers, Writer writer) throws IOException {
+        Integer number = numbers.get(name);
+        if (number == null) {
+            number = names.size();
+            writer.write(name);
+            writer.write('\n');
+            writer.flush();
+            names.add(name);
+            numbers.put(name, number);
+        }
+        return number;
+    }
+
+    private void load() throws IOException {
+        if (loaded) {
+            return;
+        }
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Unable to create " + directory);
+        }
+        checkFormat();
+        projectsWriter = readNames(new File(directory, PROJECTS), projects, projectNumbers);
+        jobsWriter = readNames(new File(directory, JOBS), jobs, jobNumbers);
+
+        File[] segments = listSegments();
+        if (segments.length > 0) {
+            File latest = segments[segments.length - 1];
+            map(latest);
+            generation = generationOf(latest);
+            deleteSegmentsBefore(generation);
+        }
+
+        File pendingFile = new File(directory, PENDING);
+        if (pendingFile.exists()) {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(pendingFile)));
+            try {
+                long records = pendingFile.length() / (RECORD_INTS * 4);
+                pending = new int[(int) Math.max(RECORD_INTS * 64, records * RECORD_INTS)];
+                for (long i = 0; i < records; i++) {
+                    int base = pendingCount * RECORD_INTS;
+                    for (int j = 0; j < RECORD_INTS; j++) {
+                        pending[base + j] = in.readInt();
+                    }
+                    pendingCount++;
+                }
+            } catch (EOFException e) {
+                // torn write of the last record, ignored
+            } finally {
+                in.close();
+            }
+        }
+        pendingLog = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(pendingFile, true)));
+        loaded = true;
+    }
+
+    /**
+     * Deletes an index written in another format, it is then rebuilt from the history of the jobs.
+     */
+    private void checkFormat() throws IOException {
+        File format = new File(directory, FORMAT);
+        String version = null;
+        if (format.exists()) {
+            BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(format), "UTF-8"));
+            try {
+                version = reader.readLine();
+            } finally {
+                reader.close();
+            }
+        }
+        if (Integer.toString(VERSION).equals(version)) {
+            return;
+        }
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                if (!file.delete()) {
+                    throw new IOException("Unable to delete the old iceScrum task index " + file);
+                }
+            }
+        }
+        Writer w = new OutputStreamWriter(new FileOutputStream(format), "UTF-8");
+        try {
+            w.write(Integer.toString(VERSION));
+        } finally {
+            w.close();
+        }
+    }
+
+    /**
+     * @return the writer appending new names to the file
+     */
+    private static Writer readNames(File file, List<String> names, Map<String, Integer> numbers) throws IOException {
+        if (file.exists()) {
+            BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+            try {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    numbers.put(line, names.size());
+                    names.add(line);
+                }
+            } finally {
+                reader.close();
+            }
+        }
+        return new OutputStreamWriter(new FileOutputStream(file, true), "UTF-8");
+    }
+
+    private void map(File segment) throws IOException {
+        RandomAccessFile file = new RandomAccessFile(segment, "r");
+        try {
+            IntBuffer ints = file.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, file.length()).asIntBuffer();
+            if (ints.limit() < HEADER_INTS || ints.get(0) != MAGIC || ints.get(1) != VERSION) {
+                throw new IOException("Not an iceScrum task index: " + segment);
+            }
+            int count = ints.get(2);
+            ints.position(HEADER_INTS);
+            sorted = ints.slice();
+            sortedCount = Math.min(count, sorted.limit() / RECORD_INTS);
+        } finally {
+            // the mapping stays valid once the file is closed
+            file.close();
+        }
+    }
+
+    /**
+     * Compacts from the writer thread, unless a compaction is already queued or running.
+     */
+    private void compactLater() {
+        if (!compacting.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            WRITER.execute(new Runnable() {
+                public void run() {
+                    try {
+                        compact();
+                    } catch (IOException e) {
+                        LOGGER.log(Level.WARNING, "Unable to compact the iceScrum task index", e);
+                    } finally {
+                        compacting.set(false);
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            compacting.set(false);
+        }
+    }
+
+    /**
+     * Merges the pending records into a new generation of the sorted segment, without duplicates. The merge works
+     * on a snapshot of the records, lookups and additions only wait for the new generation to be swapped in.
+     */
+    void compact() throws IOException {
+        synchronized (compactLock) {
+            final int[] records;
+            int count;
+            IntBuffer base;
+            int baseCount;
+            long next;
+            synchronized (this) {
+                load();
+                if (pendingCount == 0) {
+                    return;
+                }
+                count = pendingCount;
+                records = Arrays.copyOf(pending, count * RECORD_INTS);
+                base = sorted;
+                baseCount = sortedCount;
+                next = generation + 1;
+            }
+            File segment = merge(next, base, baseCount, records, count);
+            synchronized (this) {
+                map(segment);
+                generation = next;
+                // keeps the records added during the merge
+                int left = pendingCount - count;
+                int[] rest = new int[Math.max(RECORD_INTS * 64, left * RECORD_INTS)];
+                System.arraycopy(pending, count * RECORD_INTS, rest, 0, left * RECORD_INTS);
+                pending = rest;
+                pendingCount = left;
+                pendingLog.close();
+                pendingLog = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(new File(directory, PENDING), false)));
+                for (int i = 0; i < left * RECORD_INTS; i++) {
+                    pendingLog.writeInt(pending[i]);
+                }
+                pendingLog.flush();
+            }
+            deleteSegmentsBefore(next);
+        }
+    }
+
+    /**
+     * @return the new generation of the sorted segment, the records of the previous one merged with the pending records
+     */
+    private File merge(long next, IntBuffer sorted, int sortedCount, final int[] pending, int pendingCount) throws IOException {
+        // sort pending records by task then project, keeping the order they were added in
+        Integer[] order = new Integer[pendingCount];
+        for (int i = 0; i < pendingCount; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, new Comparator<Integer>() {
+            public int compare(Integer a, Integer b) {
+                long ka = pendingKey(pending, a);
+                long kb = pendingKey(pending, b);
+                return ka < kb ? -1 : ka > kb ? 1 : a.compareTo(b);
+            }
+        });
+
+        File tmp = new File(directory, SEGMENT_PREFIX + String.format("%020d", next) + SEGMENT_SUFFIX + ".tmp");
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+        int count = 0;
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(0);
+            int s = 0;
+            int p = 0;
+            Set<Long> group = new HashSet<Long>();
+            long groupKey = 0;
+            while (s < sortedCount || p < pendingCount) {
+                int i;
+                if (p == pendingCount || (s < sortedCount && sortedKey(sorted, s) <= pendingKey(pending, order[p]))) {
+                    i = s++ * RECORD_INTS;
+                    int task = sorted.get(i);
+                    int project = sorted.get(i + 1);
+                    if (writeRecord(out, group, count == 0 || key(task, project) != groupKey,
+                            task, project, sorted.get(i + 2), sorted.get(i + 3))) {
+                        count++;
+                    }
+                    groupKey = key(task, project);
+                } else {
+                    i = order[p++] * RECORD_INTS;
+                    if (writeRecord(out, group, count == 0 || key(pending[i], pending[i + 1]) != groupKey,
+                            pending[i], pending[i + 1], pending[i + 2], pending[i + 3])) {
+                        count++;
+                    }
+                    groupKey = key(pending[i], pending[i + 1]);
+                }
+            }
+        } finally {
+            out.close();
+        }
+        RandomAccessFile header = new RandomAccessFile(tmp, "rw");
+        try {
+            header.seek(8);
+            header.writeInt(count);
+        } finally {
+            header.close();
+        }
+        File segment = new File(directory, SEGMENT_PREFIX + String.format("%020d", next) + SEGMENT_SUFFIX);
+        if (!tmp.renameTo(segment)) {
+            throw new IOException("Unable to rename " + tmp + " to " + segment);
+        }
+        return segment;
+    }
+
+    /**
+     * Writes a record unless its build is already in the group of records of the same task and project.
+     *
+     * @param newGroup true if the record starts a new group
+     * @return true if the record was written
+     */
+    private static boolean writeRecord(DataOutputStream out, Set<Long> group, boolean newGroup,
+                                       int task, int project, int job, int number) throws IOException {
+        if (newGroup) {
+            group.clear();
+        }
+        if (!group.add(((long) job << 32) | (number & 0xFFFFFFFFL))) {
+            return false;
+        }
+        out.writeInt(task);
+        out.writeInt(project);
+        out.writeInt(job);
+        out.writeInt(number);
+        return true;
+    }
+
+    private File[] listSegments() {
+        File[] segments = directory.listFiles(new FilenameFilter() {
+            public boolean accept(File dir, String name) {
+                return name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX);
+            }
+        });
+        if (segments == null) {
+            return new File[0];
+        }
+        // zero-padded generations sort by name
+        Arrays.sort(segments);
+        return segments;
+    }
+
+    private void deleteSegmentsBefore(long generation) {
+        for (File segment : listSegments()) {
+            // may fail while still mapped on some platforms, then deleted on the next load
+            if (generationOf(segment) < generation && !segment.delete()) {
+                LOGGER.log(Level.FINE, "Unable to delete the old iceScrum task index {0}", segment);
+            }
+        }
+    }
+
+    private static long generationOf(File segment) {
+        String name = segment.getName();
+        return Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+    }
+
+    void close() throws IOException {
+        synchronized (compactLock) {
+            boolean compact;
+            synchronized (this) {
+                compact = loaded && pendingCount >= COMPACT_THRESHOLD;
+            }
+            if (compact) {
+                compact();
+            }
+            synchronized (this) {
+                if (!loaded) {
+                    return;
+                }
+                pendingLog.close();
+                projectsWriter.close();
+                jobsWriter.close();
+                loaded = false;
+                projects.clear();
+                projectNumbers.clear();
+                jobs.clear();
+                jobNumbers.clear();
+                pendingCount = 0;
+                sortedCount = 0;
+                sorted = IntBuffer.allocate(0);
+            }
+        }
+    }
+
+    /**
+     * Waits for the records and compactions queued so far to be written.
+     */
+    static void awaitWriter() throws InterruptedException {
+        try {
+            WRITER.submit(new Runnable() {
+                public void run() {
+                }
+            }).get();
+        } catch (ExecutionException e) {
+            throw new IllegalStateException(e.getCause());
+        } catch (RejectedExecutionException e) {
+            // already terminated
+        }
+    }
+
+    /**
+     * Indexes the history of every job configured for iceScrum, a few jobs at a time.
+     */
+    void rebuild() throws InterruptedException {
+        Jenkins jenkins = Jenkins.getInstance();
+        if (jenkins == null) {
+            return;
+        }
+        rebuilding = true;
+        long start = System.currentTimeMillis();
+        ExecutorService executor = Executors.newFixedThreadPool(REBUILD_THREADS,
+                new NamingThreadFactory(new DaemonThreadFactory(), "IceScrumTaskIndexRebuild"));
+        try {
+            for (final Job<?, ?> job : jenkins.getAllItems(Job.class)) {
+                if (job.getProperty(IceScrumProjectProperty.class) == null) {
+                    continue;
+                }
+                executor.execute(new Runnable() {
+                    public void run() {
+                        try {
+                            index(job);
+                        } catch (RuntimeException e) {
+                            LOGGER.log(Level.WARNING, "Unable to index the iceScrum tasks of " + job.getFullName(), e);
+                        }
+                    }
+                });
+            }
+            executor.shutdown();
+            executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        } finally {
+            executor.shutdownNow();
+            rebuilding = false;
+        }
+        try {
+            compact();
+            if (!new File(directory, REBUILT).createNewFile()) {
+                LOGGER.log(Level.FINE, "iceScrum task index was already marked as rebuilt");
+            }
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Unable to save the rebuilt iceScrum task index", e);
+        }
+        LOGGER.log(Level.INFO, "Rebuilt the iceScrum task index in {0} ms, {1} entries", new Object[]{System.currentTimeMillis() - start, size()});
+    }
+
+    private void index(Job<?, ?> job) {
+        IceScrumProjectProperty p = job.getProperty(IceScrumProjectProperty.class);
+        IceScrumProjectSettings settings = p.getSettings();
+        List<IceScrumReferenceScanner> excluded = IceScrumBuildNotifier.targetScanners(p);
+        for (Run<?, ?> run : job.getBuilds()) {
+            List<ChangeLogSet<? extends ChangeLogSet.Entry>> changeSets = changeSetsOf(run);
+            if (settings != null) {
+                IceScrumReferences references = new IceScrumReferences();
+                for (ChangeLogSet<? extends ChangeLogSet.Entry> changeSet : changeSets) {
+                    IceScrumBuildNotifier.collectReferences(changeSet, IceScrumReferenceScanner.get(), references, null, excluded);
+                }
+                add(settings.getProjectUrl(), job.getFullName(), run.getNumber(), references.getTasks().toArray());
+            }
+            for (IceScrumProjectTarget target : p.getTargets()) {
+                IceScrumProjectSettings targetSettings = target.getSettings();
+                if (targetSettings == null) {
+                    continue;
+                }
+                IceScrumReferenceScanner scanner = target.getScanner() != null ? target.getScanner() : IceScrumReferenceScanner.get();
+                IceScrumReferences references = new IceScrumReferences();
+                for (ChangeLogSet<? extends ChangeLogSet.Entry> changeSet : changeSets) {
+                    IceScrumBuildNotifier.collectReferences(changeSet, scanner, references, null);
+                }
+                add(targetSettings.getProjectUrl(), job.getFullName(), run.getNumber(), references.getTasks().toArray());
+            }
+        }
+    }
+
+    /**
+     * @return the changesets of a freestyle build, or of a Pipeline run when Pipeline is installed
+     */
+    static List<ChangeLogSet<? extends ChangeLogSet.Entry>> changeSetsOf(Run<?, ?> run) {
+        if (run instanceof AbstractBuild) {
+            return Collections.<ChangeLogSet<? extends ChangeLogSet.Entry>>singletonList(((AbstractBuild<?, ?>) run).getChangeSet());
+        }
+        Jenkins jenkins = Jenkins.getInstance();
+        if (jenkins != null && jenkins.getPlugin("workflow-job") != null) {
+            return IceScrumNotifyStep.changeSetsOf(run);
+        }
+        return Collections.emptyList();
+    }
+
+    @Initializer(after = InitMilestone.JOB_LOADED)
+    public static void rebuildIfNeeded() {
+        final IceScrumTaskIndex index = get();
+        if (!index.needsRebuild()) {
+            return;
+        }
+        Thread thread = new Thread("IceScrumTaskIndexRebuild") {
+            @Override
+            public void run() {
+                try {
+                    index.rebuild();
+                } catch (InterruptedException e) {
+                    LOGGER.log(Level.INFO, "iceScrum task index rebuild interrupted, it will start again on next restart");
+                }
+            }
+        };
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    @Terminator
+    public static void terminate() throws IOException, InterruptedException {
+        WRITER.shutdown();
+        WRITER.awaitTermination(1, TimeUnit.MINUTES);
+        get().close();
+    }
+
+    /**
+     * A build that referenced a task.
+     */
+    public static final class Hit {
+
+        private final String jobName;
+        private final int number;
+
+        Hit(String jobName, int number) {
+            this.jobName = jobName;
+            this.number = number;
+        }
+
+        public String getJobName() {
+            return jobName;
+        }
+
+        public int getNumber() {
+            return number;
+        }
+
+        /**
+         * @return the build, null if it has been deleted or can't be seen by the current user
+         */
+        public Run<?, ?> getRun() {
+            Jenkins jenkins = Jenkins.getInstance();
+            Job<?, ?> job = jenkins != null ? jenkins.getItemByFullName(jobName, Job.class) : null;
+            return job != null ? job.getBuildByNumber(number) : null;
+        }
+    }
+
+    private static final Logger LOGGER = Logger.getLogger(IceScrumTaskIndex.class.getName());
+}
@@ -0,0 +1,175 @@
+/*
+ * Copyright 2013 Kagilum SAS.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Author(s):
+ *
+ * Vincent Barrier (vbarrier@kagilum.com)
+ */
+package com.kagilum.plugins.icescrum;
+
+import hudson.Extension;
+import hudson.model.Job;
+import hudson.model.RootAction;
+import hudson.model.Run;
+import jenkins.model.Jenkins;
+import net.sf.json.JSONArray;
+import net.sf.json.JSONObject;
+import org.kohsuke.stapler.QueryParameter;
+import org.kohsuke.stapler.StaplerResponse;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Finds the builds that referenced an iceScrum task, from {@link IceScrumTaskIndex}.
+ *
+ * <code>icescrum-tasks/?task=T671&amp;project=https://cloud.icescrum.com/p/PKEY</code> shows them,
+ * <code>icescrum-tasks/lookup?task=T671&amp;project=...</code> lists them as JSON. Task ids are only unique within a project:
+ * without <code>project=</code>, <code>job=</code> the full name of a job looks in the projects of this job and restricts
+ * the builds to it. Builds the user can't see are left out.
+ */
+@Extension
+public class IceScrumTaskIndexAction implements RootAction {
+
+    public String getIconFileName() {
+        return null;
+    }
+
+    public String getDisplayName() {
+        return Messages.IceScrumTaskIndexAction_displayName();
+    }
+
+    public String getUrlName() {
+        return "icescrum-tasks";
+    }
+
+    public boolean isRebuilding() {
+        return IceScrumTaskIndex.get().isRebuilding();
+    }
+
+    /**
+     * @param task <code>T671</code> or <code>671</code>
+     * @param job full name of a job, null for all jobs
+     * @param project url of the iceScrum project, null for the projects of <code>job</code>
+     * @return the builds still existing and visible, null if the task isn't valid or there is no project to look in
+     */
+    public List<Run<?, ?>> find(String task, String job, String project) {
+        int id = parseTask(task);
+        List<String> projects = projectsOf(job, project);
+        if (id < 0 || projects.isEmpty()) {
+            return null;
+        }
+        // a build may have referenced the task in several projects of its job
+        Set<Run<?, ?>> runs = new LinkedHashSet<Run<?, ?>>();
+        for (String p : projects) {
+            for (IceScrumTaskIndex.Hit hit : IceScrumTaskIndex.get().lookup(p, id)) {
+                if (job != null && !job.isEmpty() && !job.equals(hit.getJobName())) {
+                    continue;
+                }
+                Run<?, ?> run = hit.getRun();
+                if (run != null) {
+                    runs.add(run);
+                }
+            }
+        }
+        return new ArrayList<Run<?, ?>>(runs);
+    }
+
+    /**
+     * @return the project given, or else the projects of the job, empty if there are none
+     */
+    static List<String> projectsOf(String job, String project) {
+        if (project != null && !project.trim().isEmpty()) {
+            String url = project.trim();
+            return Collections.singletonList(url.endsWith("/") ? url.substring(0, url.length() - 1) : url);
+        }
+        if (job == null || job.isEmpty()) {
+            return Collections.emptyList();
+        }
+        Jenkins jenkins = Jenkins.getInstance();
+        if (jenkins == null) {
+            return Collections.emptyList();
+        }
+        Job<?, ?> item = jenkins.getItemByFullName(job, Job.class);
+        IceScrumProjectProperty p = item != null ? item.getProperty(IceScrumProjectProperty.class) : null;
+        if (p == null) {
+            return Collections.emptyList();
+        }
+        List<String> projects = new ArrayList<String>();
+        if (p.getSettings() != null) {
+            projects.add(p.getSettings().getProjectUrl());
+        }
+        for (IceScrumProjectTarget target : p.getTargets()) {
+            if (target.getSettings() != null) {
+                projects.add(target.getSettings().getProjectUrl());
+            }
+        }
+        return projects;
+    }
+
+    public void doLookup(@QueryParameter String task, @QueryParameter String job, @QueryParameter String project,
+                         StaplerResponse rsp) throws IOException {
+        List<Run<?, ?>> runs = find(task, job, project);
+        if (runs == null) {
+            rsp.sendError(StaplerResponse.SC_BAD_REQUEST, Messages.IceScrumTaskIndexAction_invalidTask());
+            return;
+        }
+        JSONArray builds = new JSONArray();
+        for (Run<?, ?> run : runs) {
+            Job<?, ?> parent = run.getParent();
+            JSONObject build = new JSONObject();
+            build.element("job", parent.getFullName());
+            build.element("number", run.getNumber());
+            build.element("url", run.getAbsoluteUrl());
+            build.element("result", run.getResult() != null ? run.getResult().toString() : null);
+            build.element("timestamp", run.getTimeInMillis());
+            builds.add(build);
+        }
+        JSONObject json = new JSONObject();
+        json.element("task", parseTask(task));
+        json.element("projects", projectsOf(job, project));
+        json.element("rebuilding", isRebuilding());
+        json.element("builds", builds);
+        rsp.setContentType("application/json;charset=UTF-8");
+        json.write(rsp.getWriter());
+    }
+
+    /**
+     * @return the task id, -1 if it isn't one
+     */
+    static int parseTask(String task) {
+        if (task == null) {
+            return -1;
+        }
+        String id = task.trim();
+        if (id.startsWith("T") || id.startsWith("t")) {
+            id = id.substring(1);
+        }
+        if (id.isEmpty() || id.length() > 10) {
+            return -1;
+        }
+        for (int i = 0; i < id.length(); i++) {
+            if (id.charAt(i) < '0' || id.charAt(i) > '9') {
+                return -1;
+            }
+        }
+        long value = Long.parseLong(id);
+        return value <= Integer.MAX_VALUE ? (int) value : -1;
+    }
+}
@@ -0,0 +1,167 @@
+/*
+ * Copyright 2013 Kagilum SAS.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Author(s):
+ *
+ * Vincent Barrier (vbarrier@kagilum.com)
+ */
+package com.kagilum.plugins.icescrum;
+
+import java.text.SimpleDateFormat;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Where the time of one build notification went, from the property lookup of {@link IceScrumBuildNotifier} to the
+ * handling of the response by {@link IceScrumNotificationDispatcher}.
+ *
+ * Phases may run on different threads, a phase run several times (a batch refused then sent again) adds up.
+ * Once the notification is complete the trace is logged on the <code>com.kagilum.plugins.icescrum.IceScrumTrace</code>
+ * logger: at FINE, or at INFO when it took more than <code>com.kagilum.plugins.icescrum.IceScrumTrace.slowThreshold</code>
+ * ms (5 s by default). Phases are logged with the wall-clock time they started at, to line them up with the GC logs and
+ * flight recordings of the controller.
+ */
+public final class IceScrumTrace {
+
+    static final long SLOW_THRESHOLD = Long.getLong(IceScrumTrace.class.getName() + ".slowThreshold", 5000);
+
+    public enum Phase {
+        /** reading the iceScrum settings of the job */
+        PROPERTY_LOOKUP,
+        /** finding the references in the changelog and building the payload */
+        CHANGELOG_SCAN,
+        /** computing the length of the request from the ids of the payload, which is only written during the exchange */
+        SERIALIZATION,
+        /** waiting for the circuit breaker and the concurrency limiter of the host */
+        CONNECTION,
+        /** streaming the payload and reading the response, connection pool waits of the blocking transport included */
+        EXCHANGE,
+        /** outcome callbacks, outbox and remaining times */
+        RESPONSE
+    }
+
+    private static final Phase[] PHASES = Phase.values();
+
+    private final String jobName;
+    private final int buildNumber;
+    private final long startMillis;
+    private final long startNanos;
+    // nanos since startNanos, -1 if the phase did not run
+    private final long[] starts = new long[PHASES.length];
+    private final long[] durations = new long[PHASES.length];
+    private String host;
+    private long payloadBytes = -1;
+    private int status;
+    private boolean finished;
+
+    public IceScrumTrace(String jobName, int buildNumber) {
+        this.jobName = jobName;
+        this.buildNumber = buildNumber;
+        this.startMillis = System.currentTimeMillis();
+        this.startNanos = System.nanoTime();
+        Arrays.fill(starts, -1);
+    }
+
+    /**
+     * @param start <code>System.nanoTime()</code> when the phase started
+     * @param end <code>System.nanoTime()</code> when the phase ended
+     */
+    public synchronized void record(Phase phase, long start, long end) {
+        int i = phase.ordinal();
+        if (starts[i] < 0) {
+            starts[i] = start - startNanos;
+        }
+        durations[i] += end - start;
+    }
+
+    public synchronized void setHost(String host) {
+        this.host = host;
+    }
+
+    public synchronized void setPayloadBytes(long payloadBytes) {
+        this.payloadBytes = payloadBytes;
+    }
+
+    /**
+     * @param status HTTP status of the last response, 0 when none was received
+     */
+    public synchronized void setStatus(int status) {
+        this.status = status;
+    }
+
+    /**
+     * @return nanos spent in the phase, 0 if it did not run
+     */
+    public synchronized long getDuration(Phase phase) {
+        return durations[phase.ordinal()];
+    }
+
+    public synchronized long getPayloadBytes() {
+        return payloadBytes;
+    }
+
+    public synchronized int getStatus() {
+        return status;
+    }
+
+    /**
+     * Logs the trace, only once.
+     */
+    public void finish() {
+        long total = System.nanoTime() - startNanos;
+        synchronized (this) {
+            if (finished) {
+                return;
+            }
+            finished = true;
+        }
+        Level level = TimeUnit.NANOSECONDS.toMillis(total) >= SLOW_THRESHOLD ? Level.INFO : Level.FINE;
+        if (LOGGER.isLoggable(level)) {
+            LOGGER.log(level, format(total));
+        }
+    }
+
+    synchronized String format(long total) {
+        StringBuilder buf = new StringBuilder(256);
+        buf.append(jobName).append(" #").append(buildNumber)
+                .append(" host=").append(host)
+                .append(" payload=").append(payloadBytes).append('B')
+                .append(" status=").append(status)
+                .append(" total=").append(millis(total)).append("ms")
+                .append(" started=").append(new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSSZ").format(new Date(startMillis)));
+        for (Phase phase : PHASES) {
+            int i = phase.ordinal();
+            if (starts[i] >= 0) {
+                buf.append(' ').append(phase).append("=+").append(millis(starts[i])).append("ms/").append(millis(durations[i])).append("ms");
+            }
+        }
+        return buf.toString();
+    }
+
+    private static String millis(long nanos) {
+        return String.format(Locale.ENGLISH, "%.1f", nanos / 1e6);
+    }
+
+    @Override
+    public String toString() {
+        return format(System.nanoTime() - startNanos);
+    }
+
+    private static final Logger LOGGER = Logger.getLogger(IceScrumTrace.class.getName());
+}
@@ -0,0 +1,92 @@
+/*
+ * Copyright 2013 Kagilum SAS.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Author(s):
+ *
+ * Vincent Barrier (vbarrier@kagilum.com)
+ */
+package com.kagilum.plugins.icescrum;
+
+import com.google.common.util.concurrent.ListenableFuture;
+
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Carries the requests of {@link IceScrumSession} to iceScrum servers.
+ *
+ * The transport is chosen with the <code>com.kagilum.plugins.icescrum.IceScrumTransport.type</code> system property:
+ * <code>async</code> (the default) keeps many requests in flight on a few I/O threads, <code>blocking</code> uses
+ * one thread per request with commons-httpclient. The blocking transport is also used when the asynchronous one
+ * can't be started.
+ */
+public abstract class IceScrumTransport {
+
+    static final String TYPE = System.getProperty(IceScrumTransport.class.getName() + ".type", "async");
+
+    private static IceScrumTransport instance;
+
+    public static synchronized IceScrumTransport get() {
+        if (instance == null) {
+            instance = create(TYPE);
+        }
+        return instance;
+    }
+
+    static IceScrumTransport create(String type) {
+        if ("async".equals(type)) {
+            try {
+                return new IceScrumAsyncTransport();
+            } catch (LinkageError e) {
+                LOGGER.log(Level.WARNING, "Unable to start the asynchronous iceScrum transport, using the blocking one", e);
+            } catch (RuntimeException e) {
+                LOGGER.log(Level.WARNING, "Unable to start the asynchronous iceScrum transport, using the blocking one", e);
+            }
+        } else if (!"blocking".equals(type)) {
+            LOGGER.log(Level.WARNING, "Unknown iceScrum transport {0}, using the blocking one", type);
+        }
+        return new IceScrumBlockingTransport();
+    }
+
+    /**
+     * Sends the request. A blocking transport returns once the response has been read, with a completed future.
+     *
+     * @return the response, or a future failed with the <code>IOException</code> that prevented getting one
+     */
+    public abstract ListenableFuture<IceScrumResponse> execute(IceScrumRequest request);
+
+    /**
+     * @return true if {@link #execute(IceScrumRequest)} holds the calling thread until the response is read
+     */
+    public abstract boolean isBlocking();
+
+    /**
+     * Releases the connections, in-flight requests fail.
+     */
+    public void close() {
+    }
+
+    /**
+     * Called once the queued notifications have been sent, see {@link IceScrumNotificationDispatcher#terminate()}.
+     */
+    static synchronized void terminate() {
+        if (instance != null) {
+            instance.close();
+            instance = null;
+        }
+    }
+
+    private static final Logger LOGGER = Logger.getLogger(IceScrumTransport.class.getName());
+}
@@ -0,0 +1,97 @@
+/*
+ * Copyright 2013 Kagilum SAS.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Author(s):
+ *
+ * Vincent Barrier (vbarrier@kagilum.com)
+ */
+package com.kagilum.plugins.icescrum;
+
+import hudson.model.User;
+import hudson.scm.ChangeLogSet;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Synthetic changelog entries shared by the benchmarks.
+ */
+final class IceScrumBenchmarkChanges {
+
+    private static final String[] WORDS = {"Fix", "merge", "branch", "refactor", "the", "notifier", "close", "build", "and", "update"};
+
+    private IceScrumBenchmarkChanges() {
+    }
+
+    /**
+     * @param tasks number of distinct task ids referenced across the entries
+     */
+    static List<ChangeLogSet.Entry> entries(int count, int tasks) {
+        Random random = new Random(42);
+        List<ChangeLogSet.Entry> entries = new ArrayList<ChangeLogSet.Entry>(count);
+        for (int i = 0; i < count; i++) {
+            entries.add(new Entry(message(random, 12, tasks)));
+        }
+        return entries;
+    }
+
+    /**
+     * A commit message of about <code>words</code> words with a few task references, some with remaining time.
+     */
+    static String message(Random random, int words, int tasks) {
+        StringBuilder msg = new StringBuilder();
+        for (int i = 0; i < words; i++) {
+            if (i > 0) {
+                msg.append(' ');
+            }
+            if (random.nextInt(6) == 0) {
+                msg.append('T').append(1 + random.nextInt(tasks));
+                if (random.nextBoolean()) {
+                    msg.append('-').append(random.nextInt(8));
+                }
+            } else {
+                msg.append(WORDS[random.nextInt(WORDS.length)]);
+            }
+        }
+        return msg.toString();
+    }
+
+    static final class Entry extends ChangeLogSet.Entry {
+
+        private final String msg;
+
+        Entry(String msg) {
+            this.msg = msg;
+        }
+
+        @Override
+        public String getMsg() {
+            return msg;
+        }
+
+        @Override
+        public User getAuthor() {
+            return null;
+        }
+
+        @Override
+        public Collection<String> getAffectedPaths() {
+            return Collections.emptyList();
+        }
+    }
+}
@@ -0,0 +1,114 @@
+/*
+ * Copyright 2013 Kagilum SAS.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Author(s):
+ *
+ * Vincent Barrier (vbarrier@kagilum.com)
+ */
+package com.kagilum.plugins.icescrum;
+
+import hudson.model.FreeStyleBuild;
+import hudson.model.FreeStyleProject;
+import hudson.model.Result;
+import hudson.util.Secret;
+import junit.framework.Assert;
+import net.sf.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.jvnet.hudson.test.FailureBuilder;
+import org.jvnet.hudson.test.JenkinsRule;
+
+public class IceScrumBuildNotifierTest {
+
+    @Rule
+    public JenkinsRule j = new JenkinsRule();
+
+    private IceScrumStandInServer server;
+
+    @Before
+    public void startServer() throws Exception {
+        server = new IceScrumStandInServer("7.12.1");
+    }
+
+    @After
+    public void stopServer() {
+        server.stop();
+    }
+
+    @Test
+    public final void testTokenAuthenticatedStatus() throws Exception {
+        FreeStyleProject project = project(new IceScrumProjectProperty(projectUrl(), null, null,
+                IceScrumStandInServer.TOKEN, IceScrumProjectSettings.AUTH_TYPE_TOKEN));
+        FreeStyleBuild build = j.buildAndAssertSuccess(project);
+        j.assertLogContains(Messages.IceScrumBuildNotifier_icescrum_build_queued(), build);
+        JSONObject received = awaitBuild();
+        Assert.assertEquals(project.getDisplayName(), received.getString("jobName"));
+        Assert.assertEquals(1, received.getInt("number"));
+        Assert.assertEquals(IceScrumSession.BUILD_SUCCESS, received.getInt("status"));
+        Assert.assertFalse(received.has("builtOn"));
+    }
+
+    @Test
+    public final void testBasicAuthenticatedStatusOnR6() throws Exception {
+        server.setVersion("R6#13 Pro");
+        FreeStyleProject project = project(new IceScrumProjectProperty(projectUrl(), IceScrumStandInServer.USERNAME,
+                Secret.fromString(IceScrumStandInServer.PASSWORD), null, IceScrumProjectSettings.AUTH_TYPE_BASIC));
+        project.getBuildersList().add(new FailureBuilder());
+        j.assertBuildStatus(Result.FAILURE, project.scheduleBuild2(0).get());
+        JSONObject received = awaitBuild();
+        Assert.assertEquals(IceScrumSession.BUILD_FAILURE, received.getInt("status"));
+        Assert.assertTrue(received.has("builtOn"));
+    }
+
+    @Test
+    public final void testWrongTokenIsNotDeferred() throws Exception {
+        FreeStyleProject project = project(new IceScrumProjectProperty(projectUrl(), null, null,
+                "wrong", IceScrumProjectSettings.AUTH_TYPE_TOKEN));
+        j.buildAndAssertSuccess(project);
+        long deadline = System.currentTimeMillis() + 30 * 1000;
+        while (server.getRequestCount() == 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(50);
+        }
+        // leave the dispatcher the time to handle the answer
+        Thread.sleep(500);
+        Assert.assertTrue(server.getBuilds().isEmpty());
+        Assert.assertTrue(IceScrumOutbox.get().isEmpty());
+    }
+
+    private FreeStyleProject project(IceScrumProjectProperty property) throws Exception {
+        FreeStyleProject project = j.createFreeStyleProject();
+        project.addProperty(property);
+        project.getPublishersList().add(new IceScrumBuildNotifier());
+        return project;
+    }
+
+    private String projectUrl() {
+        return server.getUrl() + "/p/" + IceScrumStandInServer.PKEY;
+    }
+
+    /**
+     * Statuses are sent asynchronously, after the build has completed.
+     */
+    private JSONObject awaitBuild() throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 30 * 1000;
+        while (server.getBuilds().isEmpty()) {
+            Assert.assertTrue("no build status received", System.currentTimeMillis() < deadline);
+            Thread.sleep(50);
+        }
+        return server.getBuilds().get(0);
+    }
+}
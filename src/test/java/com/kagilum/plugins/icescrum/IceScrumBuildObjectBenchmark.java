@@ -0,0 +1,112 @@
+/*
+ * Copyright 2013 Kagilum SAS.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Author(s):
+ *
+ * Vincent Barrier (vbarrier@kagilum.com)
+ */
+package com.kagilum.plugins.icescrum;
+
+import hudson.model.Result;
+import hudson.scm.ChangeLogSet;
+import net.sf.json.JSONObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of building and serializing the payload of a build from changesets of growing size.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class IceScrumBuildObjectBenchmark {
+
+    @Param({"10", "1000", "100000"})
+    public int entries;
+
+    private List<ChangeLogSet.Entry> changes;
+    private IceScrumBuildPayload payload;
+    private JSONObject json;
+
+    @Setup
+    public void setUp() {
+        changes = IceScrumBenchmarkChanges.entries(entries, Math.max(1, entries / 10));
+        payload = createIceScrumBuildPayload();
+        json = payload.toJSON();
+    }
+
+    @Benchmark
+    public IceScrumBuildPayload createIceScrumBuildPayload() {
+        return IceScrumBuildNotifier.createIceScrumBuildPayload("benchmark", "#1", 1, 0L, "http://jenkins/job/benchmark/1/", null,
+                Result.SUCCESS, changes, IceScrumSession.TASK_PATTERN, null);
+    }
+
+    @Benchmark
+    public JSONObject createJsonTree() {
+        return payload.toJSON();
+    }
+
+    @Benchmark
+    public String serializeJsonTree() {
+        return json.toString();
+    }
+
+    @Benchmark
+    public long streamPayload() throws IOException {
+        CountingWriter out = new CountingWriter();
+        payload.writeTo(out);
+        return out.count;
+    }
+
+    private static final class CountingWriter extends Writer {
+
+        private long count;
+
+        @Override
+        public void write(char[] cbuf, int off, int len) {
+            count += len;
+        }
+
+        @Override
+        public void write(String str) {
+            count += str.length();
+        }
+
+        @Override
+        public void flush() {
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
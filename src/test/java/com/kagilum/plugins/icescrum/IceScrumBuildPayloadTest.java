@@ -0,0 +1,144 @@
+/*
+ * Copyright 2013 Kagilum SAS.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Author(s):
+ *
+ * Vincent Barrier (vbarrier@kagilum.com)
+ */
+package com.kagilum.plugins.icescrum;
+
+import junit.framework.Assert;
+import net.sf.json.JSONArray;
+import net.sf.json.JSONObject;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.io.StringWriter;
+import java.util.Arrays;
+import java.util.List;
+
+public class IceScrumBuildPayloadTest {
+
+    @Test
+    public final void testStreamedAsJsonTree() {
+        assertSameAsTree(payload("job", null, new int[]{1, 22, 333}));
+        assertSameAsTree(payload("job", "Jenkins: 1.642.3", new int[]{1}));
+        assertSameAsTree(payload("job", null, new int[0]));
+        assertSameAsTree(payload("job", "Jenkins: 1.642.3", null));
+    }
+
+    @Test
+    public final void testOddStrings() {
+        String[] values = {"", "a \"quoted\" job", "</script>", "tab\tnew\nline\u0001", "é ü 中", "null", "true",
+                "[x]", "{\"a\":1}", "'single'", "function(){}", "back\\slash"};
+        for (String value : values) {
+            assertSameAsTree(new IceScrumBuildPayload(value, value, 1, 2L, value, value, IceScrumSession.BUILD_SUCCESS, null));
+        }
+    }
+
+    @Test
+    public final void testStreamedArray() throws Exception {
+        List<IceScrumBuildPayload> payloads = Arrays.asList(payload("a", null, new int[]{1}), payload("b", null, null));
+        StringWriter out = new StringWriter();
+        IceScrumBuildPayload.writeTo(out, payloads);
+        JSONArray expected = new JSONArray();
+        for (IceScrumBuildPayload payload : payloads) {
+            expected.add(payload.toJSON());
+        }
+        Assert.assertEquals(expected.toString(), out.toString());
+    }
+
+    @Test
+    public final void testReadBack() {
+        IceScrumBuildPayload payload = payload("job", "Jenkins: 1.642.3", new int[]{5, 3});
+        IceScrumBuildPayload read = IceScrumBuildPayload.fromJSON(JSONObject.fromObject(payload.toString()));
+        Assert.assertEquals(payload.toString(), read.toString());
+        Assert.assertNull(IceScrumBuildPayload.fromJSON(JSONObject.fromObject(payload("job", null, null).toString())).getTasks());
+    }
+
+    @Test
+    public final void testStoriesAndFeatures() {
+        IceScrumBuildPayload payload = new IceScrumBuildPayload("job", "#12", 12, 1380000000000L, "http://jenkins/job/job/12/",
+                null, IceScrumSession.BUILD_SUCCESS, new int[]{1}, new int[]{42}, new int[]{7, 8});
+        assertSameAsTree(payload);
+        IceScrumBuildPayload read = IceScrumBuildPayload.fromJSON(JSONObject.fromObject(payload.toString()));
+        Assert.assertEquals(payload.toString(), read.toString());
+        Assert.assertFalse(payload("job", null, new int[]{1}).toString().contains("stories"));
+    }
+
+    @Test
+    public final void testChunks() {
+        IceScrumBuildPayload payload = new IceScrumBuildPayload("job", "#12", 12, 1380000000000L, "http://jenkins/job/job/12/",
+                null, IceScrumSession.BUILD_SUCCESS, new int[]{1, 2, 3, 4, 5}, new int[]{42}, new int[]{7});
+        Assert.assertEquals(1, payload.getChunkCount(5));
+        Assert.assertSame(payload, payload.chunk(0, 5));
+        Assert.assertEquals(3, payload.getChunkCount(2));
+        IceScrumBuildPayload first = payload.chunk(0, 2);
+        IceScrumBuildPayload last = payload.chunk(2, 2);
+        Assert.assertTrue(Arrays.equals(new int[]{1, 2}, first.getTasks()));
+        Assert.assertTrue(Arrays.equals(new int[]{5}, last.getTasks()));
+        Assert.assertTrue(first.toString().contains("\"stories\":[42]"));
+        Assert.assertFalse(last.toString().contains("stories"));
+        Assert.assertFalse(last.toString().contains("features"));
+        Assert.assertEquals(payload.toJSON().getString("jobName"), last.toJSON().getString("jobName"));
+        Assert.assertEquals(1, payload("job", null, null).getChunkCount(2));
+    }
+
+    @Test
+    public final void testContentLength() throws Exception {
+        IceScrumBuildPayload payload = payload("jöb", null, new int[]{1, 2});
+        IceScrumPayloadRequestEntity entity = new IceScrumPayloadRequestEntity(payload);
+        Assert.assertEquals(payload.toString().getBytes("UTF-8").length, entity.getContentLength());
+    }
+
+    @Test
+    public final void testStreamedBody() throws Exception {
+        int[] tasks = new int[IceScrumPayloadStream.IDS_PER_PIECE * 2 + 3];
+        for (int i = 0; i < tasks.length; i++) {
+            tasks[i] = i * 997;
+        }
+        tasks[0] = Integer.MAX_VALUE;
+        List<IceScrumBuildPayload> payloads = Arrays.asList(payload("jöb \"1\"", "Jenkins: 1.642.3", tasks),
+                payload("job", null, null), payload("job", null, new int[0]));
+        assertStreamed(new IceScrumPayloadRequestEntity(payloads));
+        assertStreamed(new IceScrumPayloadRequestEntity(payloads.get(0)));
+        assertStreamed(new IceScrumPayloadRequestEntity(payloads.get(1)));
+        assertStreamed(new IceScrumPayloadRequestEntity(payloads.subList(0, 0)));
+    }
+
+    private static void assertStreamed(IceScrumPayloadRequestEntity entity) throws Exception {
+        ByteArrayOutputStream written = new ByteArrayOutputStream();
+        entity.writeRequest(written);
+        ByteArrayOutputStream read = new ByteArrayOutputStream();
+        InputStream in = entity.openStream();
+        byte[] buffer = new byte[100];
+        for (int n; (n = in.read(buffer)) != -1; ) {
+            read.write(buffer, 0, n);
+        }
+        in.close();
+        Assert.assertEquals(written.toString("UTF-8"), read.toString("UTF-8"));
+        Assert.assertEquals(written.size(), entity.getContentLength());
+    }
+
+    private static IceScrumBuildPayload payload(String jobName, String builtOn, int[] tasks) {
+        return new IceScrumBuildPayload(jobName, "#12", 12, 1380000000000L, "http://jenkins/job/" + jobName + "/12/",
+                builtOn, IceScrumSession.BUILD_FAILURE, tasks);
+    }
+
+    private static void assertSameAsTree(IceScrumBuildPayload payload) {
+        Assert.assertEquals(payload.toJSON().toString(), payload.toString());
+    }
+}
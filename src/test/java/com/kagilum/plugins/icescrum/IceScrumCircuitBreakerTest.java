@@ -0,0 +1,80 @@
+/*
+ * Copyright 2013 Kagilum SAS.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Author(s):
+ *
+ * Vincent Barrier (vbarrier@kagilum.com)
+ */
+package com.kagilum.plugins.icescrum;
+
+import junit.framework.Assert;
+import org.junit.Test;
+
+public class IceScrumCircuitBreakerTest {
+
+    @Test
+    public final void testOpensAfterConsecutiveFailures() {
+        IceScrumCircuitBreaker breaker = new IceScrumCircuitBreaker("https://cloud.icescrum.com:443", "https://cloud.icescrum.com", 3, 60 * 1000);
+        breaker.onFailure();
+        breaker.onFailure();
+        breaker.onSuccess();
+        breaker.onFailure();
+        breaker.onFailure();
+        Assert.assertTrue(breaker.allowRequest());
+        breaker.onFailure();
+        Assert.assertEquals(IceScrumCircuitBreaker.State.OPEN, breaker.getState());
+        Assert.assertFalse(breaker.allowRequest());
+        breaker.onSuccess();
+        Assert.assertEquals(IceScrumCircuitBreaker.State.CLOSED, breaker.getState());
+        Assert.assertTrue(breaker.allowRequest());
+    }
+
+    @Test
+    public final void testSingleTrialAfterRetryInterval() {
+        IceScrumCircuitBreaker breaker = new IceScrumCircuitBreaker("https://cloud.icescrum.com:443", "https://cloud.icescrum.com", 1, 0);
+        breaker.onFailure();
+        Assert.assertTrue(breaker.allowRequest());
+        Assert.assertEquals(IceScrumCircuitBreaker.State.HALF_OPEN, breaker.getState());
+        Assert.assertFalse(breaker.allowRequest());
+        breaker.onFailure();
+        Assert.assertEquals(IceScrumCircuitBreaker.State.OPEN, breaker.getState());
+    }
+
+    @Test
+    public final void testReleasedTrialLetsAnotherThrough() {
+        IceScrumCircuitBreaker breaker = new IceScrumCircuitBreaker("https://cloud.icescrum.com:443", "https://cloud.icescrum.com", 1, 0);
+        breaker.onFailure();
+        Assert.assertTrue(breaker.allowRequest());
+        breaker.release();
+        Assert.assertEquals(IceScrumCircuitBreaker.State.OPEN, breaker.getState());
+        Assert.assertTrue(breaker.allowRequest());
+        Assert.assertFalse(breaker.allowRequest());
+        // releasing a closed breaker does nothing
+        breaker.onSuccess();
+        breaker.release();
+        Assert.assertEquals(IceScrumCircuitBreaker.State.CLOSED, breaker.getState());
+    }
+
+    @Test
+    public final void testSilentTrialExpires() throws Exception {
+        IceScrumCircuitBreaker breaker = new IceScrumCircuitBreaker("https://cloud.icescrum.com:443", "https://cloud.icescrum.com", 1, 0, 50);
+        breaker.onFailure();
+        Assert.assertTrue(breaker.allowRequest());
+        Assert.assertFalse(breaker.allowRequest());
+        Thread.sleep(100);
+        Assert.assertTrue(breaker.allowRequest());
+        Assert.assertFalse(breaker.allowRequest());
+    }
+}
@@ -0,0 +1,176 @@
+/*
+ * Copyright 2013 Kagilum SAS.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Author(s):
+ *
+ * Vincent Barrier (vbarrier@kagilum.com)
+ */
+package com.kagilum.plugins.icescrum;
+
+import com.google.common.util.concurrent.ListenableFuture;
+import junit.framework.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+public class IceScrumConcurrencyLimiterTest {
+
+    @Test
+    public final void testLimitGrowsWhenUsed() throws InterruptedException {
+        IceScrumConcurrencyLimiter limiter = new IceScrumConcurrencyLimiter("host", 2, 1, 10, 0.5, Double.POSITIVE_INFINITY, null);
+        for (int i = 0; i < 20; i++) {
+            List<IceScrumConcurrencyLimiter.Permit> permits = acquireAll(limiter);
+            for (IceScrumConcurrencyLimiter.Permit permit : permits) {
+                limiter.release(permit, IceScrumConcurrencyLimiter.Outcome.SUCCESS);
+            }
+        }
+        Assert.assertTrue(limiter.getLimit() > 2);
+        Assert.assertTrue(limiter.getLimit() <= 10);
+        Assert.assertEquals(0, limiter.getInFlight());
+    }
+
+    @Test
+    public final void testLimitIsNotGrownWhenUnused() throws InterruptedException {
+        IceScrumConcurrencyLimiter limiter = new IceScrumConcurrencyLimiter("host", 4, 1, 10, 0.5, Double.POSITIVE_INFINITY, null);
+        for (int i = 0; i < 100; i++) {
+            limiter.release(limiter.acquire(0), IceScrumConcurrencyLimiter.Outcome.SUCCESS);
+        }
+        Assert.assertEquals(4, limiter.getLimit());
+    }
+
+    @Test
+    public final void testDroppedRequestsHalveTheLimitOnce() throws InterruptedException {
+        IceScrumConcurrencyLimiter limiter = new IceScrumConcurrencyLimiter("host", 8, 1, 10, 0.5, Double.POSITIVE_INFINITY, null);
+        List<IceScrumConcurrencyLimiter.Permit> permits = acquireAll(limiter);
+        Assert.assertEquals(8, permits.size());
+        // a whole window failing at once is a single congestion signal
+        for (IceScrumConcurrencyLimiter.Permit permit : permits) {
+            limiter.release(permit, IceScrumConcurrencyLimiter.Outcome.DROPPED);
+        }
+        Assert.assertEquals(4, limiter.getLimit());
+        for (int i = 0; i < 5; i++) {
+            limiter.release(limiter.acquire(0), IceScrumConcurrencyLimiter.Outcome.DROPPED);
+        }
+        Assert.assertEquals(1, limiter.getLimit());
+    }
+
+    @Test
+    public final void testIgnoredOutcomeKeepsTheLimit() throws InterruptedException {
+        IceScrumConcurrencyLimiter limiter = new IceScrumConcurrencyLimiter("host", 3, 1, 10, 0.5, Double.POSITIVE_INFINITY, null);
+        for (IceScrumConcurrencyLimiter.Permit permit : acquireAll(limiter)) {
+            limiter.release(permit, IceScrumConcurrencyLimiter.Outcome.IGNORED);
+        }
+        Assert.assertEquals(3, limiter.getLimit());
+    }
+
+    @Test
+    public final void testSlowRequestLowersTheLimit() throws InterruptedException {
+        IceScrumConcurrencyLimiter limiter = new IceScrumConcurrencyLimiter("host", 4, 1, 10, 0.5, 2.0, null);
+        limiter.release(limiter.acquire(0), IceScrumConcurrencyLimiter.Outcome.SUCCESS);
+        IceScrumConcurrencyLimiter.Permit slow = limiter.acquire(0);
+        Thread.sleep(50);
+        limiter.release(slow, IceScrumConcurrencyLimiter.Outcome.SUCCESS);
+        Assert.assertEquals(2, limiter.getLimit());
+    }
+
+    @Test
+    public final void testSlowRequestOfAnotherKindKeepsTheLimit() throws InterruptedException {
+        IceScrumConcurrencyLimiter limiter = new IceScrumConcurrencyLimiter("host", 4, 1, 10, 0.5, 2.0, null);
+        limiter.release(limiter.acquire(0, "GET 0"), IceScrumConcurrencyLimiter.Outcome.SUCCESS);
+        IceScrumConcurrencyLimiter.Permit chunk = limiter.acquire(0, "POST 3");
+        Thread.sleep(50);
+        limiter.release(chunk, IceScrumConcurrencyLimiter.Outcome.SUCCESS);
+        Assert.assertEquals(4, limiter.getLimit());
+    }
+
+    @Test
+    public final void testRefusedRequestsDontIndebtTheRate() throws InterruptedException {
+        // one token every 100 ms
+        IceScrumConcurrencyLimiter limiter = new IceScrumConcurrencyLimiter("host", 10, 1, 10, 0.5, Double.POSITIVE_INFINITY,
+                new IceScrumRateLimiter(10, 1));
+        Assert.assertNotNull(limiter.acquire(20));
+        for (int i = 0; i < 50; i++) {
+            Assert.assertNull(limiter.acquire(20));
+        }
+        Thread.sleep(150);
+        Assert.assertNotNull(limiter.acquire(20));
+    }
+
+    @Test
+    public final void testTimeoutAtTheLimitGivesTheTokenBack() throws InterruptedException {
+        IceScrumRateLimiter rateLimiter = new IceScrumRateLimiter(1, 2);
+        IceScrumConcurrencyLimiter limiter = new IceScrumConcurrencyLimiter("host", 1, 1, 1, 0.5, Double.POSITIVE_INFINITY, rateLimiter);
+        Assert.assertNotNull(limiter.acquire(0));
+        Assert.assertNull(limiter.acquire(20));
+        // the token of the refused request is still there
+        Assert.assertEquals(0, rateLimiter.reserve(0));
+    }
+
+    @Test
+    public final void testAcquireTimesOutAtTheLimit() throws InterruptedException {
+        IceScrumConcurrencyLimiter limiter = new IceScrumConcurrencyLimiter("host", 1, 1, 1, 0.5, Double.POSITIVE_INFINITY, null);
+        IceScrumConcurrencyLimiter.Permit permit = limiter.acquire(0);
+        Assert.assertNotNull(permit);
+        Assert.assertNull(limiter.acquire(20));
+        limiter.release(permit, IceScrumConcurrencyLimiter.Outcome.SUCCESS);
+        Assert.assertNotNull(limiter.acquire(0));
+    }
+
+    @Test
+    public final void testReleaseHandsThePermitToTheWaiter() throws Exception {
+        IceScrumConcurrencyLimiter limiter = new IceScrumConcurrencyLimiter("host", 1, 1, 1, 0.5, Double.POSITIVE_INFINITY, null);
+        IceScrumConcurrencyLimiter.Permit permit = limiter.acquire(0);
+        ListenableFuture<IceScrumConcurrencyLimiter.Permit> first = limiter.acquireAsync(10 * 1000, "");
+        ListenableFuture<IceScrumConcurrencyLimiter.Permit> second = limiter.acquireAsync(10 * 1000, "");
+        Assert.assertFalse(first.isDone());
+        limiter.release(permit, IceScrumConcurrencyLimiter.Outcome.SUCCESS);
+        // first come, first served
+        Assert.assertTrue(first.isDone());
+        Assert.assertNotNull(first.get());
+        Assert.assertFalse(second.isDone());
+        Assert.assertEquals(1, limiter.getInFlight());
+        limiter.release(first.get(), IceScrumConcurrencyLimiter.Outcome.SUCCESS);
+        Assert.assertNotNull(second.get());
+    }
+
+    @Test
+    public final void testWaiterTimesOutWithoutThread() throws Exception {
+        IceScrumConcurrencyLimiter limiter = new IceScrumConcurrencyLimiter("host", 1, 1, 1, 0.5, Double.POSITIVE_INFINITY, null);
+        IceScrumConcurrencyLimiter.Permit permit = limiter.acquire(0);
+        ListenableFuture<IceScrumConcurrencyLimiter.Permit> waiting = limiter.acquireAsync(20, "");
+        Assert.assertNull(waiting.get());
+        limiter.release(permit, IceScrumConcurrencyLimiter.Outcome.SUCCESS);
+        Assert.assertEquals(0, limiter.getInFlight());
+    }
+
+    @Test
+    public final void testRateLimiterBurst() {
+        IceScrumRateLimiter rateLimiter = new IceScrumRateLimiter(1, 3);
+        Assert.assertEquals(0, rateLimiter.reserve());
+        Assert.assertEquals(0, rateLimiter.reserve());
+        Assert.assertEquals(0, rateLimiter.reserve());
+        Assert.assertTrue(rateLimiter.reserve() > 0);
+    }
+
+    private static List<IceScrumConcurrencyLimiter.Permit> acquireAll(IceScrumConcurrencyLimiter limiter) throws InterruptedException {
+        List<IceScrumConcurrencyLimiter.Permit> permits = new ArrayList<IceScrumConcurrencyLimiter.Permit>();
+        IceScrumConcurrencyLimiter.Permit permit;
+        while ((permit = limiter.acquire(0)) != null) {
+            permits.add(permit);
+        }
+        return permits;
+    }
+}
@@ -0,0 +1,144 @@
+/*
+ * Copyright 2013 Kagilum SAS.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Author(s):
+ *
+ * Vincent Barrier (vbarrier@kagilum.com)
+ */
+package com.kagilum.plugins.icescrum;
+
+import hudson.util.StreamTaskListener;
+import junit.framework.Assert;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class IceScrumFanOutTest {
+
+    private IceScrumStandInServer fast;
+    private IceScrumStandInServer slow;
+    private ByteArrayOutputStream console;
+    private StreamTaskListener listener;
+
+    @Before
+    public void startServers() throws Exception {
+        fast = new IceScrumStandInServer("7.12.1");
+        slow = new IceScrumStandInServer("7.12.1");
+        console = new ByteArrayOutputStream();
+        listener = new StreamTaskListener(console);
+    }
+
+    @After
+    public void stopServers() {
+        fast.stop();
+        slow.stop();
+    }
+
+    @Test
+    public final void testProjectsSentInParallel() throws Exception {
+        fast.setLatency(2000);
+        slow.setLatency(2000);
+        IceScrumFanOut fanOut = new IceScrumFanOut(listener, 30 * 1000);
+        fanOut.add(notification(fast, 1));
+        fanOut.add(notification(slow, 1));
+        long start = System.currentTimeMillis();
+        Assert.assertTrue(await(fanOut, 30));
+        // both requests take two seconds, in sequence it would be four
+        Assert.assertTrue(System.currentTimeMillis() - start < 4000);
+        Assert.assertEquals(1, fast.getBuilds().size());
+        Assert.assertEquals(1, slow.getBuilds().size());
+    }
+
+    @Test
+    public final void testFailureDoesNotHoldOthers() throws Exception {
+        slow.setForcedStatus(403);
+        IceScrumFanOut fanOut = new IceScrumFanOut(listener, 30 * 1000);
+        fanOut.add(notification(slow, 1));
+        fanOut.add(notification(fast, 1));
+        Assert.assertTrue(await(fanOut, 30));
+        Assert.assertEquals(1, fast.getBuilds().size());
+        Assert.assertEquals(0, slow.getBuilds().size());
+    }
+
+    @Test
+    public final void testSlowProjectTimesOut() throws Exception {
+        slow.setLatency(5000);
+        IceScrumFanOut fanOut = new IceScrumFanOut(listener, 1000);
+        fanOut.add(notification(fast, 1));
+        fanOut.add(notification(slow, 1));
+        long start = System.currentTimeMillis();
+        Assert.assertTrue(await(fanOut, 30));
+        Assert.assertTrue(System.currentTimeMillis() - start < 4000);
+        Assert.assertEquals(1, fast.getBuilds().size());
+        String output = console.toString("UTF-8");
+        Assert.assertTrue(output, output.contains(Messages.IceScrumFanOut_timeout(slow.tokenSettings().getProjectUrl(), 1)));
+        Assert.assertFalse(output, output.contains(Messages.IceScrumFanOut_timeout(fast.tokenSettings().getProjectUrl(), 1)));
+    }
+
+    @Test
+    public final void testSameProjectTwice() throws Exception {
+        final AtomicInteger arrived = new AtomicInteger();
+        IceScrumNotification.Callback callback = new IceScrumNotification.Callback() {
+            public void onSuccess(IceScrumProjectSettings settings) {
+                arrived.incrementAndGet();
+            }
+
+            public void onFailure(IceScrumProjectSettings settings, String error) {
+                arrived.incrementAndGet();
+            }
+
+            public void onDeferred(IceScrumProjectSettings settings, String error) {
+                arrived.incrementAndGet();
+            }
+        };
+        IceScrumFanOut fanOut = new IceScrumFanOut(listener, 30 * 1000);
+        fanOut.add(new IceScrumNotification("job", fast.tokenSettings(), IceScrumSessionTest.payload("job", 1), null, callback));
+        fanOut.add(new IceScrumNotification("job", fast.tokenSettings(), IceScrumSessionTest.payload("job", 2), null, callback));
+        final CountDownLatch done = new CountDownLatch(1);
+        final int[] arrivedWhenDone = new int[1];
+        fanOut.dispatch(new Runnable() {
+            public void run() {
+                arrivedWhenDone[0] = arrived.get();
+                done.countDown();
+            }
+        });
+        Assert.assertTrue(done.await(30, TimeUnit.SECONDS));
+        Assert.assertEquals(2, arrivedWhenDone[0]);
+    }
+
+    @Test
+    public final void testNothingToSend() throws Exception {
+        Assert.assertTrue(await(new IceScrumFanOut(listener, 1000), 1));
+    }
+
+    private static IceScrumNotification notification(IceScrumStandInServer server, int number) {
+        return new IceScrumNotification(null, server.tokenSettings(), IceScrumSessionTest.payload("job", number), null);
+    }
+
+    private static boolean await(IceScrumFanOut fanOut, long seconds) throws InterruptedException {
+        final CountDownLatch done = new CountDownLatch(1);
+        fanOut.dispatch(new Runnable() {
+            public void run() {
+                done.countDown();
+            }
+        });
+        return done.await(seconds, TimeUnit.SECONDS);
+    }
+}
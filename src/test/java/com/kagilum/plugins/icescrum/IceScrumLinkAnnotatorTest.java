@@ -21,6 +21,7 @@ package com.kagilum.plugins.icescrum;
 
 import hudson.MarkupText;
 import junit.framework.Assert;
+import net.sf.json.JSONArray;
 import org.junit.Test;
 
 public class IceScrumLinkAnnotatorTest {
@@ -46,6 +47,57 @@ public class IceScrumLinkAnnotatorTest {
                 "<a href='" + ICESCRUM_URL + "-T674' title='Show details - Task: 674 with remaining time: 3'>T674-3</a> link");
     }
 
+    @Test
+    public final void testTaskNamesAndStates() {
+        IceScrumTaskCache.Tasks tasks = IceScrumTaskCache.Tasks.parse(JSONArray.fromObject(
+                "[{\"uid\":671,\"name\":\"Fix <login> & 'logout'\",\"state\":1},{\"uid\":672,\"name\":null,\"state\":2}]"), 100);
+        MarkupText markupText = new MarkupText("T671-2 T672 T673");
+        IceScrumLinkAnnotator.annotation(IceScrumReferenceScanner.DEFAULT, ICESCRUM_URL, markupText.getText(), tasks).applyTo(markupText);
+        Assert.assertEquals("<a href='" + ICESCRUM_URL + "-T671' title='Show details - Task: 671 with remaining time: 2"
+                + " - Fix &lt;login&gt; &amp; &#39;logout&#39; (In progress)'>T671-2</a> "
+                + "<a href='" + ICESCRUM_URL + "-T672' title='Show details - Task: 672'>T672</a> "
+                + "<a href='" + ICESCRUM_URL + "-T673' title='Show details - Task: 673'>T673</a>",
+                markupText.toString());
+    }
+
+    @Test
+    public final void testConfiguredPrefixes() {
+        IceScrumReferenceScanner scanner = new IceScrumReferenceScanner("T", "S, US", "F");
+        MarkupText markupText = new MarkupText("US42 and F7 then T671-2");
+        IceScrumLinkAnnotator.annotation(scanner, ICESCRUM_URL, markupText.getText()).applyTo(markupText);
+        Assert.assertEquals("<a href='" + ICESCRUM_URL + "-42' title='Show details - Story: 42'>US42</a> and "
+                + "<a href='" + ICESCRUM_URL + "-F7' title='Show details - Feature: 7'>F7</a> then "
+                + "<a href='" + ICESCRUM_URL + "-T671' title='Show details - Task: 671 with remaining time: 2'>T671-2</a>",
+                markupText.toString());
+    }
+
+    @Test
+    public final void testCachedAnnotation() {
+        IceScrumAnnotationCache cache = new IceScrumAnnotationCache(1024 * 1024);
+        String text = "An issue closes T671 link";
+        cache.put("job#1#T671", IceScrumLinkAnnotator.annotation(ICESCRUM_URL, text));
+
+        MarkupText markupText = new MarkupText(text);
+        cache.get("job#1#T671", ICESCRUM_URL, text).applyTo(markupText);
+        Assert.assertEquals("An issue closes <a href='" + ICESCRUM_URL
+                + "-T671' title='Show details - Task: 671'>T671</a> link", markupText.toString());
+
+        // url changed in the job configuration
+        Assert.assertNull(cache.get("job#1#T671", "http://tools.icescrum.org/p/OTHER", text));
+        Assert.assertNull(cache.get("job#1#T671", ICESCRUM_URL, "Another message"));
+    }
+
+    @Test
+    public final void testCacheEvictsLeastRecentlyUsed() {
+        IceScrumAnnotationCache cache = new IceScrumAnnotationCache(1000);
+        for (int i = 0; i < 100; i++) {
+            cache.put("job#" + i, IceScrumLinkAnnotator.annotation(ICESCRUM_URL, "Closes T" + i));
+        }
+        Assert.assertTrue(cache.size() < 100);
+        Assert.assertNotNull(cache.get("job#99", ICESCRUM_URL, "Closes T99"));
+        Assert.assertNull(cache.get("job#0", ICESCRUM_URL, "Closes T0"));
+    }
+
     private void assertAnnotatedTextEquals(final String originalText,
                                            final String expectedAnnotatedText) {
         MarkupText markupText = new MarkupText(originalText);
@@ -0,0 +1,170 @@
+/*
+ * Copyright 2013 Kagilum SAS.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Author(s):
+ *
+ * Vincent Barrier (vbarrier@kagilum.com)
+ */
+package com.kagilum.plugins.icescrum;
+
+import hudson.model.Result;
+import hudson.scm.ChangeLogSet;
+import junit.framework.Assert;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Drives many concurrent notifications through the {@link IceScrumNotificationDispatcher} against the
+ * {@link IceScrumStandInServer}, and logs throughput and latency percentiles.
+ *
+ * Only runs with the <code>benchmark</code> profile (<code>mvn -P benchmark test -Dtest=IceScrumLoadTest</code>).
+ * The default size keeps the test short, run it larger with
+ * <code>-Dcom.kagilum.plugins.icescrum.IceScrumLoadTest.builds=20000 -Dcom.kagilum.plugins.icescrum.IceScrumLoadTest.threads=64</code>.
+ */
+public class IceScrumLoadTest {
+
+    private static final int BUILDS = Integer.getInteger(IceScrumLoadTest.class.getName() + ".builds", 500);
+    private static final int THREADS = Integer.getInteger(IceScrumLoadTest.class.getName() + ".threads", 16);
+    private static final long LATENCY = Long.getLong(IceScrumLoadTest.class.getName() + ".latency", 5);
+
+    private IceScrumStandInServer server;
+    private IceScrumNotificationDispatcher dispatcher;
+
+    @Before
+    public void start() throws Exception {
+        server = new IceScrumStandInServer("7.12.1");
+        server.setLatency(LATENCY);
+        dispatcher = new IceScrumNotificationDispatcher(4, 1000, 50, 50);
+    }
+
+    @After
+    public void stop() throws Exception {
+        dispatcher.shutdown(10, TimeUnit.SECONDS);
+        server.stop();
+    }
+
+    @Test
+    public final void testHealthyServer() throws Exception {
+        Outcome outcome = run("healthy");
+        Assert.assertEquals(BUILDS, outcome.sent.get());
+        Assert.assertEquals(BUILDS, server.getBuilds().size());
+    }
+
+    @Test
+    public final void testFaultyServer() throws Exception {
+        server.setFailureRate(0.05, 503);
+        Outcome outcome = run("5% of 503");
+        Assert.assertEquals(BUILDS, outcome.sent.get() + outcome.failed.get());
+        Assert.assertEquals(outcome.sent.get(), server.getBuilds().size());
+        Assert.assertTrue(outcome.sent.get() > 0);
+    }
+
+    @Test
+    public final void testConcurrencyStaysBounded() throws Exception {
+        server.setLatency(LATENCY * 4);
+        run("slow");
+        Assert.assertTrue(server.getMaxInFlight() <= IceScrumSession.MAX_CONNECTIONS_PER_HOST);
+    }
+
+    /**
+     * Builds the payloads the way the notifier does, from a few changelog entries each, on <code>THREADS</code> threads.
+     */
+    private Outcome run(String label) throws Exception {
+        final IceScrumProjectSettings settings = server.tokenSettings();
+        final List<ChangeLogSet.Entry> changes = IceScrumBenchmarkChanges.entries(5, 50);
+        final Outcome outcome = new Outcome(BUILDS);
+        ExecutorService builds = Executors.newFixedThreadPool(THREADS);
+        long start = System.nanoTime();
+        for (int i = 0; i < BUILDS; i++) {
+            final int number = i + 1;
+            builds.execute(new Runnable() {
+                public void run() {
+                    IceScrumRemainingTimes times = new IceScrumRemainingTimes();
+                    IceScrumBuildPayload payload = IceScrumBuildNotifier.createIceScrumBuildPayload("job", "job #" + number, number,
+                            System.currentTimeMillis(), "job/job/" + number + "/", null, Result.SUCCESS, changes, IceScrumSession.TASK_PATTERN, times);
+                    dispatcher.dispatch(new IceScrumNotification(null, settings, payload, outcome.callback(number - 1, System.nanoTime())));
+                }
+            });
+        }
+        builds.shutdown();
+        Assert.assertTrue("notifications still pending", outcome.done.await(2, TimeUnit.MINUTES));
+        Assert.assertEquals(BUILDS, outcome.sent.get() + outcome.failed.get());
+        long elapsed = System.nanoTime() - start;
+        long[] latencies = outcome.latencies.clone();
+        Arrays.sort(latencies);
+        LOGGER.log(Level.INFO, String.format(Locale.ENGLISH, "%s: %d builds in %d ms, %.0f builds/s, latency p50 %d ms, p99 %d ms, p99.9 %d ms, max %d ms, "
+                        + "%d sent, %d failed, %d requests, %d max in flight",
+                label, BUILDS, TimeUnit.NANOSECONDS.toMillis(elapsed), BUILDS * 1e9 / elapsed,
+                percentile(latencies, 0.5), percentile(latencies, 0.99), percentile(latencies, 0.999), percentile(latencies, 1),
+                outcome.sent.get(), outcome.failed.get(), server.getRequestCount(), server.getMaxInFlight()));
+        return outcome;
+    }
+
+    private static long percentile(long[] sorted, double p) {
+        int index = (int) Math.ceil(p * sorted.length) - 1;
+        return TimeUnit.NANOSECONDS.toMillis(sorted[Math.max(0, Math.min(sorted.length - 1, index))]);
+    }
+
+    private static final class Outcome {
+
+        private final long[] latencies;
+        private final CountDownLatch done;
+        private final AtomicInteger sent = new AtomicInteger();
+        private final AtomicInteger failed = new AtomicInteger();
+
+        Outcome(int builds) {
+            latencies = new long[builds];
+            done = new CountDownLatch(builds);
+        }
+
+        IceScrumNotification.Callback callback(final int index, final long start) {
+            return new IceScrumNotification.Callback() {
+                public void onSuccess(IceScrumProjectSettings settings) {
+                    sent.incrementAndGet();
+                    complete();
+                }
+
+                public void onFailure(IceScrumProjectSettings settings, String error) {
+                    failed.incrementAndGet();
+                    complete();
+                }
+
+                public void onDeferred(IceScrumProjectSettings settings, String error) {
+                    failed.incrementAndGet();
+                    complete();
+                }
+
+                private void complete() {
+                    latencies[index] = System.nanoTime() - start;
+                    done.countDown();
+                }
+            };
+        }
+    }
+
+    private static final Logger LOGGER = Logger.getLogger(IceScrumLoadTest.class.getName());
+}
@@ -0,0 +1,85 @@
+/*
+ * Copyright 2013 Kagilum SAS.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Author(s):
+ *
+ * Vincent Barrier (vbarrier@kagilum.com)
+ */
+package com.kagilum.plugins.icescrum;
+
+import junit.framework.Assert;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+public class IceScrumNotificationDispatcherTest {
+
+    private IceScrumStandInServer server;
+    private IceScrumNotificationDispatcher dispatcher;
+
+    @Before
+    public void start() throws Exception {
+        server = new IceScrumStandInServer("7.12.1");
+        dispatcher = new IceScrumNotificationDispatcher(1, 1, 0, 1);
+    }
+
+    @After
+    public void stop() throws Exception {
+        dispatcher.shutdown(10, TimeUnit.SECONDS);
+        server.stop();
+    }
+
+    @Test
+    public final void testFullQueueFailsWithoutSendingInline() {
+        server.setLatency(1000);
+        // one notification on the worker, one queued
+        dispatcher.dispatch(new IceScrumNotification(null, server.tokenSettings(), IceScrumSessionTest.payload("job", 1), null), false);
+        dispatcher.dispatch(new IceScrumNotification(null, server.tokenSettings(), IceScrumSessionTest.payload("job", 2), null), false);
+        final AtomicReference<String> error = new AtomicReference<String>();
+        long start = System.currentTimeMillis();
+        dispatcher.dispatch(new IceScrumNotification(null, server.tokenSettings(), IceScrumSessionTest.payload("job", 3),
+                new IceScrumNotification.Callback() {
+                    public void onSuccess(IceScrumProjectSettings settings) {
+                    }
+
+                    public void onFailure(IceScrumProjectSettings settings, String e) {
+                        error.set(e);
+                    }
+
+                    public void onDeferred(IceScrumProjectSettings settings, String e) {
+                    }
+                }), false);
+        Assert.assertTrue(System.currentTimeMillis() - start < 1000);
+        Assert.assertEquals(Messages.IceScrumNotificationDispatcher_queue_full(), error.get());
+    }
+
+    @Test
+    public final void testRefusedBatchIsSentOneByOne() throws Exception {
+        dispatcher.shutdown(10, TimeUnit.SECONDS);
+        dispatcher = new IceScrumNotificationDispatcher(1, 10, 60 * 1000, 2);
+        server.setArrayStatus(400);
+        dispatcher.dispatch(new IceScrumNotification(null, server.tokenSettings(), IceScrumSessionTest.payload("job", 1), null), false);
+        dispatcher.dispatch(new IceScrumNotification(null, server.tokenSettings(), IceScrumSessionTest.payload("job", 2), null), false);
+        long deadline = System.currentTimeMillis() + 10 * 1000;
+        while (server.getBuilds().size() < 2 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(20);
+        }
+        Assert.assertEquals(2, server.getBuilds().size());
+        Assert.assertFalse(IceScrumServerCapabilities.getCached(server.getUrl()).isBatchSupported());
+    }
+}
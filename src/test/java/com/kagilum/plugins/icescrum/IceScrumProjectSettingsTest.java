@@ -0,0 +1,46 @@
+/*
+ * Copyright 2013 Kagilum SAS.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Author(s):
+ *
+ * Vincent Barrier (vbarrier@kagilum.com)
+ */
+package com.kagilum.plugins.icescrum;
+
+import junit.framework.Assert;
+import org.junit.Test;
+
+public class IceScrumProjectSettingsTest {
+
+    @Test
+    public final void testEqualSettingsAreInterned() {
+        IceScrumProjectSettings a = IceScrumProjectSettings.intern(new IceScrumProjectSettings("https://cloud.icescrum.com/p/TESTPROJ", "token"));
+        IceScrumProjectSettings b = IceScrumProjectSettings.intern(new IceScrumProjectSettings("https://cloud.icescrum.com/p/TESTPROJ", "token"));
+        IceScrumProjectSettings other = IceScrumProjectSettings.intern(new IceScrumProjectSettings("https://cloud.icescrum.com/p/TESTPROJ", "other"));
+        Assert.assertSame(a, b);
+        Assert.assertNotSame(a, other);
+        Assert.assertNull(IceScrumProjectSettings.intern(null));
+    }
+
+    @Test
+    public final void testServerSettings() {
+        IceScrumServer server = new IceScrumServer("cloud", "https://cloud.icescrum.com/", "token", null, null, null);
+        IceScrumProjectSettings settings = server.getSettings("TESTPROJ");
+        Assert.assertSame(settings, server.getSettings("TESTPROJ"));
+        Assert.assertEquals("https://cloud.icescrum.com/p/TESTPROJ", settings.getProjectUrl());
+        Assert.assertEquals("/ws/project/", settings.getPath());
+        Assert.assertNotSame(settings, server.getSettings("OTHER"));
+    }
+}
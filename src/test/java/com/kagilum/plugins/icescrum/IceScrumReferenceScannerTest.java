@@ -0,0 +1,106 @@
+/*
+ * Copyright 2013 Kagilum SAS.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Author(s):
+ *
+ * Vincent Barrier (vbarrier@kagilum.com)
+ */
+package com.kagilum.plugins.icescrum;
+
+import junit.framework.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+public class IceScrumReferenceScannerTest {
+
+    @Test
+    public final void testTypes() {
+        IceScrumReferenceScanner scanner = new IceScrumReferenceScanner("T", "S, US", "F");
+        Assert.assertEquals("[TASK 1 T1-2 (2), STORY 2 S2, STORY 3 US3, FEATURE 4 F4]", scan(scanner, "T1-2 S2-5 US3 F4"));
+    }
+
+    @Test
+    public final void testLongestPrefixWins() {
+        IceScrumReferenceScanner scanner = new IceScrumReferenceScanner("T, TASK-", null, "ST");
+        Assert.assertEquals("[TASK 1 TASK-1, FEATURE 2 ST2, TASK 3 T3, TASK 4 T4]", scan(scanner, "TASK-1 ST2 TAT3 XT4"));
+    }
+
+    @Test
+    public final void testRoutingPrefixesStartWords() {
+        IceScrumReferenceScanner scanner = new IceScrumReferenceScanner("T, AT", null, null, true);
+        Assert.assertEquals("[TASK 671 AT671, TASK 2 T2]", scan(scanner, "AT671 T2 xAT3 AT_T4 9T5"));
+        // a shorter prefix starting a word is still found when the longest one doesn't
+        scanner = new IceScrumReferenceScanner("T, US-T", null, null, true);
+        Assert.assertEquals("[TASK 1 T1, TASK 2 US-T2]", scan(scanner, "xUS-T1 US-T2"));
+    }
+
+    @Test
+    public final void testExcludedReferences() {
+        List<IceScrumReferenceScanner> targets = Arrays.asList(new IceScrumReferenceScanner("AT", null, null, true),
+                new IceScrumReferenceScanner("PRJ-T", null, null, true));
+        IceScrumReferences references = new IceScrumReferences();
+        IceScrumRemainingTimes times = new IceScrumRemainingTimes();
+        int found = IceScrumReferenceScanner.DEFAULT.extract("T1 AT671-2 PRJ-T7-3 T2-4", references, times, -1, targets);
+        Assert.assertEquals(2, found);
+        Assert.assertTrue(Arrays.equals(new int[]{1, 2}, references.getTasks().toArray()));
+        Assert.assertEquals("{\"tasks\":[{\"id\":2,\"remainingTime\":4}]}", times.toString());
+    }
+
+    @Test
+    public final void testPrefixOfSeveralTypes() {
+        IceScrumReferenceScanner scanner = new IceScrumReferenceScanner("T", "T, S", null);
+        Assert.assertEquals("[TASK 1 T1, STORY 2 S2]", scan(scanner, "T1 S2"));
+    }
+
+    @Test
+    public final void testNoPrefix() {
+        IceScrumReferenceScanner scanner = new IceScrumReferenceScanner(null, "", " , ");
+        Assert.assertEquals("[]", scan(scanner, "T1 S2"));
+        Assert.assertEquals("", scanner.getTaskPrefixes());
+    }
+
+    @Test
+    public final void testInvalidPrefixes() {
+        Assert.assertTrue(IceScrumReferenceScanner.isValidPrefixes("T, US ST"));
+        Assert.assertFalse(IceScrumReferenceScanner.isValidPrefixes("T, U2"));
+    }
+
+    @Test
+    public final void testExtract() {
+        IceScrumReferenceScanner scanner = new IceScrumReferenceScanner("T", "S", "F");
+        IceScrumReferences references = new IceScrumReferences();
+        IceScrumRemainingTimes times = new IceScrumRemainingTimes();
+        scanner.extract("T1-2,5 S2 F3 T1 S2", references, times, -1);
+        Assert.assertEquals(1, references.getTasks().size());
+        Assert.assertEquals(2, references.toArray(IceScrumReferenceScanner.Type.STORY)[0]);
+        Assert.assertEquals(1, references.toArray(IceScrumReferenceScanner.Type.STORY).length);
+        Assert.assertEquals(3, references.toArray(IceScrumReferenceScanner.Type.FEATURE)[0]);
+        Assert.assertEquals(2.5f, times.get(1), 0.001f);
+        Assert.assertNull(new IceScrumReferences().toArray(IceScrumReferenceScanner.Type.STORY));
+    }
+
+    private static String scan(IceScrumReferenceScanner scanner, final String msg) {
+        final List<String> found = new ArrayList<String>();
+        scanner.scan(msg, new IceScrumReferenceScanner.Visitor() {
+            public void visit(IceScrumReferenceScanner.Type type, int id, int start, int end, String remainingTime) {
+                found.add(type + " " + id + " " + msg.substring(start, end) + (remainingTime != null ? " (" + remainingTime + ")" : ""));
+            }
+        });
+        return found.toString();
+    }
+}
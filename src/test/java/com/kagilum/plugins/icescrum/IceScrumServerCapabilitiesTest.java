@@ -0,0 +1,72 @@
+/*
+ * Copyright 2013 Kagilum SAS.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Author(s):
+ *
+ * Vincent Barrier (vbarrier@kagilum.com)
+ */
+package com.kagilum.plugins.icescrum;
+
+import junit.framework.Assert;
+import org.junit.Test;
+
+public class IceScrumServerCapabilitiesTest {
+
+    @Test
+    public final void testR7() {
+        IceScrumServerCapabilities capabilities = new IceScrumServerCapabilities("7.12.1", Long.MAX_VALUE, null);
+        Assert.assertTrue(capabilities.isR7());
+        Assert.assertTrue(capabilities.isCompatible());
+        Assert.assertEquals("/ws/project/", capabilities.getPath());
+        Assert.assertTrue(capabilities.isBatchSupported());
+        capabilities.setBatchSupported(false);
+        Assert.assertFalse(capabilities.isBatchSupported());
+        Assert.assertTrue(capabilities.isRemainingTimeSupported());
+        capabilities.setRemainingTimeSupported(false);
+        Assert.assertFalse(capabilities.isRemainingTimeSupported());
+    }
+
+    @Test
+    public final void testR6() {
+        IceScrumServerCapabilities capabilities = new IceScrumServerCapabilities("R6#5.1 Pro Cloud", Long.MAX_VALUE, null);
+        Assert.assertFalse(capabilities.isR7());
+        Assert.assertTrue(capabilities.isPro());
+        Assert.assertTrue(capabilities.isCloud());
+        Assert.assertEquals(6.51f, capabilities.getNumericVersion(), 0.001f);
+        Assert.assertTrue(capabilities.isCompatible());
+        Assert.assertEquals("/ws/p/", capabilities.getPath());
+        Assert.assertFalse(capabilities.isBatchSupported());
+        Assert.assertFalse(capabilities.isRemainingTimeSupported());
+
+        Assert.assertEquals(6.06f, IceScrumServerCapabilities.parseR6Version("R6#6 Pro"), 0.001f);
+        Assert.assertFalse(new IceScrumServerCapabilities("R6#5 Pro", Long.MAX_VALUE, null).isCompatible());
+        Assert.assertFalse(new IceScrumServerCapabilities("R6#12", Long.MAX_VALUE, null).isCompatible());
+    }
+
+    @Test
+    public final void testCache() {
+        IceScrumServerCapabilities.clear();
+        Assert.assertNull(IceScrumServerCapabilities.getCached("https://cloud.icescrum.com"));
+        IceScrumServerCapabilities.update("https://cloud.icescrum.com", "7.1").setBatchSupported(false);
+        IceScrumServerCapabilities.getCached("https://cloud.icescrum.com").setRemainingTimeSupported(false);
+        Assert.assertEquals("7.1", IceScrumServerCapabilities.getCached("https://cloud.icescrum.com").getVersion());
+        IceScrumServerCapabilities refreshed = IceScrumServerCapabilities.update("https://cloud.icescrum.com", "7.1");
+        // batches and remaining times, when enabled, are tried again after a refresh
+        Assert.assertTrue(refreshed.isBatchSupported());
+        Assert.assertEquals(IceScrumServerCapabilities.REMAINING_TIMES, refreshed.isRemainingTimeSupported());
+        Assert.assertNull(IceScrumServerCapabilities.getCached(null));
+        IceScrumServerCapabilities.clear();
+    }
+}
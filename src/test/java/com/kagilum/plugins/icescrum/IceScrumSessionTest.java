@@ -0,0 +1,242 @@
+/*
+ * Copyright 2013 Kagilum SAS.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Author(s):
+ *
+ * Vincent Barrier (vbarrier@kagilum.com)
+ */
+package com.kagilum.plugins.icescrum;
+
+import junit.framework.Assert;
+import net.sf.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+
+public class IceScrumSessionTest {
+
+    private IceScrumStandInServer server;
+
+    @Before
+    public void startServer() throws Exception {
+        server = new IceScrumStandInServer("7.12.1");
+    }
+
+    @After
+    public void stopServer() {
+        server.stop();
+    }
+
+    @Test
+    public final void testR7Capabilities() {
+        IceScrumServerCapabilities capabilities = new IceScrumSession(server.tokenSettings()).getCapabilities();
+        Assert.assertNotNull(capabilities);
+        Assert.assertTrue(capabilities.isR7());
+        Assert.assertEquals("7.12.1", capabilities.getVersion());
+        Assert.assertTrue(new IceScrumSession(server.tokenSettings()).isConnect());
+    }
+
+    @Test
+    public final void testR6Capabilities() {
+        server.setVersion("R6#13 Pro");
+        IceScrumServerCapabilities capabilities = new IceScrumSession(server.tokenSettings()).getCapabilities();
+        Assert.assertNotNull(capabilities);
+        Assert.assertFalse(capabilities.isR7());
+        Assert.assertTrue(capabilities.isPro());
+        Assert.assertTrue(capabilities.isCompatible());
+    }
+
+    @Test
+    public final void testFailedVersionIsNotCached() {
+        IceScrumServerCapabilities.clear();
+        server.setVersionStatus(500);
+        IceScrumSession session = new IceScrumSession(server.tokenSettings());
+        Assert.assertNull(session.getCapabilities());
+        Assert.assertEquals(500, session.getLastStatusCode());
+        Assert.assertNull(IceScrumServerCapabilities.getCached(server.getUrl()));
+        server.setVersionStatus(200);
+        Assert.assertEquals("7.12.1", session.getCapabilities().getVersion());
+    }
+
+    @Test
+    public final void testSendBuildStatus() {
+        IceScrumSession session = new IceScrumSession(server.tokenSettings());
+        Assert.assertTrue(session.sendBuildStatut(payload("job", 1)));
+        Assert.assertEquals(201, session.getLastStatusCode());
+        Assert.assertEquals(1, server.getBuilds().size());
+        JSONObject build = server.getBuilds().get(0);
+        Assert.assertEquals("job", build.getString("jobName"));
+        Assert.assertEquals(1, build.getInt("number"));
+    }
+
+    @Test
+    public final void testSendBatchAndRemainingTimes() {
+        IceScrumSession session = new IceScrumSession(server.tokenSettings());
+        Assert.assertTrue(session.sendBuildStatuts(Arrays.asList(payload("a", 1), payload("b", 2), payload("c", 3))));
+        Assert.assertEquals(3, server.getBuilds().size());
+        IceScrumRemainingTimes times = new IceScrumRemainingTimes();
+        times.put(671, 1.5f, -1);
+        Assert.assertTrue(session.sendRemainingTimes(times));
+        Assert.assertEquals(times.toString(), server.getRemainingTimes().get(0).toString());
+    }
+
+    @Test
+    public final void testDefinitiveErrorsRejectBatches() {
+        IceScrumSession session = new IceScrumSession(server.tokenSettings());
+        int[] statuses = {400, 404, 422, 500, 405, 415, 503, 429};
+        for (int status : statuses) {
+            server.setForcedStatus(status);
+            Assert.assertFalse(session.sendBuildStatuts(Arrays.asList(payload("a", 1), payload("b", 2))));
+            Assert.assertEquals(status != 503 && status != 429, session.isBatchRejected());
+            Assert.assertEquals(status == 405 || status == 415, session.isUnsupported());
+        }
+    }
+
+    @Test
+    public final void testProjectErrorDoesNotRejectRemainingTimes() {
+        IceScrumSession session = new IceScrumSession(server.tokenSettings());
+        IceScrumRemainingTimes times = new IceScrumRemainingTimes();
+        times.put(671, 1.5f, -1);
+        server.setForcedStatus(404);
+        Assert.assertFalse(session.sendRemainingTimes(times));
+        Assert.assertFalse(session.isUnsupported());
+        server.setForcedStatus(405);
+        Assert.assertFalse(session.sendRemainingTimes(times));
+        Assert.assertTrue(session.isUnsupported());
+    }
+
+    @Test
+    public final void testUnauthorized() {
+        IceScrumProjectSettings settings = new IceScrumProjectSettings(server.getUrl() + "/p/" + IceScrumStandInServer.PKEY, "wrong");
+        IceScrumSession session = new IceScrumSession(settings);
+        Assert.assertFalse(session.sendBuildStatut(payload("job", 1)));
+        Assert.assertEquals(401, session.getLastStatusCode());
+        Assert.assertEquals(Messages.IceScrumSession_icescrum_http_unauthorized(), session.getLastError());
+        Assert.assertFalse(session.isRetryable());
+        Assert.assertTrue(server.getBuilds().isEmpty());
+    }
+
+    @Test
+    public final void testForbidden() {
+        IceScrumProjectSettings settings = new IceScrumProjectSettings(server.getUrl() + "/p/OTHER", IceScrumStandInServer.TOKEN);
+        IceScrumSession session = new IceScrumSession(settings);
+        Assert.assertFalse(session.sendBuildStatut(payload("job", 1)));
+        Assert.assertEquals(403, session.getLastStatusCode());
+        Assert.assertEquals(Messages.IceScrumSession_icescrum_http_forbidden(), session.getLastError());
+        Assert.assertFalse(session.isRetryable());
+    }
+
+    @Test
+    public final void testUnavailableAndThrottledAreRetryable() {
+        IceScrumSession session = new IceScrumSession(server.tokenSettings());
+        server.setForcedStatus(503);
+        Assert.assertFalse(session.sendBuildStatut(payload("job", 1)));
+        Assert.assertEquals(503, session.getLastStatusCode());
+        Assert.assertEquals(Messages.IceScrumSession_icescrum_http_unavailable_new(), session.getLastError());
+        Assert.assertTrue(session.isRetryable());
+        server.setForcedStatus(429);
+        Assert.assertFalse(session.sendBuildStatut(payload("job", 1)));
+        Assert.assertTrue(session.isRetryable());
+        server.setForcedStatus(0);
+        Assert.assertTrue(session.sendBuildStatut(payload("job", 1)));
+    }
+
+    @Test
+    public final void testChunkedTasks() {
+        IceScrumSession session = new IceScrumSession(server.tokenSettings());
+        session.setChunkSize(2);
+        IceScrumBuildPayload payload = new IceScrumBuildPayload("job", "job #1", 1, 1000L, "job/job/1/", null,
+                IceScrumSession.BUILD_SUCCESS, new int[]{1, 2, 3, 4, 5}, new int[]{42}, null);
+        Assert.assertTrue(session.sendBuildStatut(payload));
+        Assert.assertEquals(3, server.getBuilds().size());
+        Assert.assertEquals("[1,2]", server.getBuilds().get(0).getJSONArray("tasks").toString());
+        Assert.assertEquals("[3,4]", server.getBuilds().get(1).getJSONArray("tasks").toString());
+        Assert.assertEquals("[5]", server.getBuilds().get(2).getJSONArray("tasks").toString());
+        Assert.assertEquals("[42]", server.getBuilds().get(0).getJSONArray("stories").toString());
+        Assert.assertFalse(server.getBuilds().get(1).has("stories"));
+        for (JSONObject build : server.getBuilds()) {
+            Assert.assertEquals(1, build.getInt("number"));
+        }
+    }
+
+    @Test
+    public final void testNotChunkedByDefault() {
+        int[] tasks = new int[IceScrumSession.CHUNK_SIZE + 1];
+        for (int i = 0; i < tasks.length; i++) {
+            tasks[i] = i + 1;
+        }
+        IceScrumBuildPayload payload = new IceScrumBuildPayload("job", "job #1", 1, 1000L, "job/job/1/", null,
+                IceScrumSession.BUILD_SUCCESS, tasks);
+        Assert.assertTrue(new IceScrumSession(server.tokenSettings()).sendBuildStatut(payload));
+        Assert.assertEquals(IceScrumSession.CHUNKED ? 2 : 1, server.getRequestCount());
+    }
+
+    @Test
+    public final void testChunksReplacedByTheServer() {
+        // what a server replacing the tasks of a build posted again keeps of a chunked build
+        server.setReplaceBuilds(true);
+        IceScrumSession session = new IceScrumSession(server.tokenSettings());
+        session.setChunkSize(2);
+        IceScrumBuildPayload payload = new IceScrumBuildPayload("job", "job #1", 1, 1000L, "job/job/1/", null,
+                IceScrumSession.BUILD_SUCCESS, new int[]{1, 2, 3, 4, 5});
+        Assert.assertTrue(session.sendBuildStatut(payload));
+        Assert.assertEquals(3, server.getRequestCount());
+        Assert.assertEquals(1, server.getBuilds().size());
+        Assert.assertEquals("[5]", server.getBuilds().get(0).getJSONArray("tasks").toString());
+    }
+
+    @Test
+    public final void testFailedChunkIsSentAgain() {
+        IceScrumSession session = new IceScrumSession(server.tokenSettings());
+        session.setChunkSize(2);
+        Assert.assertTrue(session.sendBuildStatut(payload("job", 1)));
+        Assert.assertEquals(1, server.getRequestCount());
+        IceScrumBuildPayload payload = new IceScrumBuildPayload("job", "job #2", 2, 2000L, "job/job/2/", null,
+                IceScrumSession.BUILD_SUCCESS, new int[]{1, 2, 3, 4});
+        server.setFailures(1, 503);
+        Assert.assertTrue(session.sendBuildStatut(payload));
+        // the first chunk of build #2 is refused once, then both chunks are accepted
+        Assert.assertEquals(4, server.getRequestCount());
+        Assert.assertEquals(3, server.getBuilds().size());
+        server.setFailures(100, 400);
+        Assert.assertFalse(session.sendBuildStatut(payload));
+        Assert.assertFalse(session.isRetryable());
+        Assert.assertEquals(5, server.getRequestCount());
+        Assert.assertTrue(session.getLastError().startsWith(Messages.IceScrumSession_icescrum_chunk_failed(1, 2, "")));
+    }
+
+    @Test
+    public final void testSlowServer() {
+        server.setLatency(200);
+        Assert.assertTrue(new IceScrumSession(server.tokenSettings()).sendBuildStatut(payload("job", 1)));
+    }
+
+    @Test
+    public final void testUnreachableServer() {
+        IceScrumProjectSettings settings = server.tokenSettings();
+        server.stop();
+        IceScrumSession session = new IceScrumSession(settings);
+        Assert.assertFalse(session.sendBuildStatut(payload("job", 1)));
+        Assert.assertEquals(0, session.getLastStatusCode());
+        Assert.assertTrue(session.isRetryable());
+    }
+
+    static IceScrumBuildPayload payload(String jobName, int number) {
+        return new IceScrumBuildPayload(jobName, jobName + " #" + number, number, 1000L * number, "job/" + jobName + "/" + number + "/",
+                null, IceScrumSession.BUILD_SUCCESS, new int[]{671, 672});
+    }
+}
@@ -0,0 +1,325 @@
+/*
+ * Copyright 2013 Kagilum SAS.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Author(s):
+ *
+ * Vincent Barrier (vbarrier@kagilum.com)
+ */
+package com.kagilum.plugins.icescrum;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import net.sf.json.JSONArray;
+import net.sf.json.JSONObject;
+import net.sf.json.JSONSerializer;
+import org.apache.commons.codec.binary.Base64;
+import org.apache.commons.io.IOUtils;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Embedded stand-in for the iceScrum endpoints used by the plugin, so that sessions and notifications can be
+ * tested offline.
+ *
+ * Answers <code>/version/</code> with the configured version and accepts build statuses on
+ * <code>/ws/project/{pkey}/build/jenkins</code> (token, R7) and <code>/ws/p/{pkey}/build</code> (basic, R6).
+ * Both list the configured tasks on <code>/task</code>.
+ * Requests can be delayed, answered with a forced status, or failed at random with a given rate.
+ */
+final class IceScrumStandInServer {
+
+    static final String PKEY = "PKEY";
+    static final String TOKEN = "token";
+    static final String USERNAME = "jenkins";
+    static final String PASSWORD = "secret";
+
+    private final HttpServer server;
+    private final ExecutorService executor;
+    private final Random random = new Random(42);
+
+    private volatile String version;
+    private volatile int versionStatus = 200;
+    private volatile long latency;
+    private volatile int forcedStatus;
+    private volatile double failureRate;
+    private volatile int failureStatus = 503;
+    private volatile String tasks = "[]";
+    private volatile int arrayStatus;
+    private volatile boolean replaceBuilds;
+    private final AtomicInteger failures = new AtomicInteger();
+
+    private final List<JSONObject> builds = new CopyOnWriteArrayList<JSONObject>();
+    private final List<JSONObject> remainingTimes = new CopyOnWriteArrayList<JSONObject>();
+    private final AtomicInteger requests = new AtomicInteger();
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final AtomicInteger maxInFlight = new AtomicInteger();
+
+    IceScrumStandInServer(String version) throws IOException {
+        this.version = version;
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 100);
+        executor = Executors.newCachedThreadPool();
+        server.setExecutor(executor);
+        server.createContext("/", new HttpHandler() {
+            public void handle(HttpExchange exchange) throws IOException {
+                try {
+                    serve(exchange);
+                } finally {
+                    exchange.close();
+                }
+            }
+        });
+        server.start();
+    }
+
+    String getUrl() {
+        return "http://127.0.0.1:" + server.getAddress().getPort();
+    }
+
+    IceScrumProjectSettings tokenSettings() {
+        return new IceScrumProjectSettings(getUrl() + "/p/" + PKEY, TOKEN);
+    }
+
+    void stop() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    void setVersion(String version) {
+        this.version = version;
+    }
+
+    /**
+     * @param status answered on <code>/version/</code>, with the version as body
+     */
+    void setVersionStatus(int status) {
+        this.versionStatus = status;
+    }
+
+    /**
+     * @param latency time taken by every request, in ms
+     */
+    void setLatency(long latency) {
+        this.latency = latency;
+    }
+
+    /**
+     * @param status answered to every project request, 0 to answer normally
+     */
+    void setForcedStatus(int status) {
+        this.forcedStatus = status;
+    }
+
+    /**
+     * @param rate share of the project requests answered with <code>status</code>, between 0 and 1
+     */
+    void setFailureRate(double rate, int status) {
+        this.failureRate = rate;
+        this.failureStatus = status;
+    }
+
+    /**
+     * @param count number of the next project requests answered with <code>status</code>
+     */
+    void setFailures(int count, int status) {
+        this.failureStatus = status;
+        this.failures.set(count);
+    }
+
+    /**
+     * @param status answered to the build statuses posted as a JSON array, 0 to accept them
+     */
+    void setArrayStatus(int status) {
+        this.arrayStatus = status;
+    }
+
+    /**
+     * @param replace true for a build posted again to replace the one received with the same job and number,
+     * false to record every build posted
+     */
+    void setReplaceBuilds(boolean replace) {
+        this.replaceBuilds = replace;
+    }
+
+    /**
+     * @param tasks JSON array answered on <code>/task</code>
+     */
+    void setTasks(String tasks) {
+        this.tasks = tasks;
+    }
+
+    /**
+     * @return the build objects received, unwrapped from their <code>build</code> property
+     */
+    List<JSONObject> getBuilds() {
+        return builds;
+    }
+
+    List<JSONObject> getRemainingTimes() {
+        return remainingTimes;
+    }
+
+    int getRequestCount() {
+        return requests.get();
+    }
+
+    int getMaxInFlight() {
+        return maxInFlight.get();
+    }
+
+    private void serve(HttpExchange exchange) throws IOException {
+        requests.incrementAndGet();
+        int current = inFlight.incrementAndGet();
+        try {
+            int max = maxInFlight.get();
+            while (current > max && !maxInFlight.compareAndSet(max, current)) {
+                max = maxInFlight.get();
+            }
+            if (latency > 0) {
+                Thread.sleep(latency);
+            }
+            String path = exchange.getRequestURI().getPath();
+            if (path.equals("/version/")) {
+                respond(exchange, versionStatus, version);
+                return;
+            }
+            int status = forcedStatus != 0 ? forcedStatus : randomFailure();
+            if (status != 0) {
+                respond(exchange, status, "");
+            } else if (path.startsWith("/ws/project/")) {
+                serveR7(exchange, path.substring("/ws/project/".length()));
+            } else if (path.startsWith("/ws/p/")) {
+                serveR6(exchange, path.substring("/ws/p/".length()));
+            } else {
+                respond(exchange, 404, "");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            inFlight.decrementAndGet();
+        }
+    }
+
+    private int randomFailure() {
+        if (failures.get() > 0 && failures.getAndDecrement() > 0) {
+            return failureStatus;
+        }
+        if (failureRate <= 0) {
+            return 0;
+        }
+        synchronized (random) {
+            return random.nextDouble() < failureRate ? failureStatus : 0;
+        }
+    }
+
+    private void serveR7(HttpExchange exchange, String path) throws IOException {
+        if (!TOKEN.equals(exchange.getRequestHeaders().getFirst("x-icescrum-token"))) {
+            respond(exchange, 401, "");
+        } else if (!path.startsWith(PKEY + "/")) {
+            respond(exchange, 403, "");
+        } else if (path.equals(PKEY + "/build/jenkins")) {
+            if (exchange.getRequestMethod().equals("POST")) {
+                Object json = JSONSerializer.toJSON(read(exchange));
+                if (json instanceof JSONArray && arrayStatus != 0) {
+                    respond(exchange, arrayStatus, "");
+                    return;
+                }
+                if (json instanceof JSONArray) {
+                    for (Object build : (JSONArray) json) {
+                        addBuild((JSONObject) build);
+                    }
+                } else {
+                    addBuild((JSONObject) json);
+                }
+                respond(exchange, 201, "");
+            } else {
+                respond(exchange, 200, "[]");
+            }
+        } else if (path.equals(PKEY + "/task/remainingTime") && exchange.getRequestMethod().equals("POST")) {
+            remainingTimes.add(JSONObject.fromObject(read(exchange)));
+            respond(exchange, 200, "");
+        } else if (path.equals(PKEY + "/task")) {
+            respond(exchange, 200, exchange.getRequestMethod().equals("HEAD") ? null : tasks);
+        } else {
+            respond(exchange, 404, "");
+        }
+    }
+
+    private void serveR6(HttpExchange exchange, String path) throws IOException {
+        String expected = "Basic " + new String(Base64.encodeBase64((USERNAME + ":" + PASSWORD).getBytes("UTF-8")), "UTF-8");
+        if (!expected.equals(exchange.getRequestHeaders().getFirst("Authorization"))) {
+            // the client only sends its credentials once challenged
+            exchange.getResponseHeaders().add("WWW-Authenticate", "Basic realm=\"iceScrum\"");
+            respond(exchange, 401, "");
+        } else if (!path.startsWith(PKEY + "/")) {
+            respond(exchange, 403, "");
+        } else if (path.equals(PKEY + "/build") && exchange.getRequestMethod().equals("POST")) {
+            addBuild(JSONObject.fromObject(read(exchange)));
+            respond(exchange, 201, "");
+        } else if (path.equals(PKEY + "/task")) {
+            respond(exchange, 200, exchange.getRequestMethod().equals("HEAD") ? null : tasks);
+        } else {
+            respond(exchange, 404, "");
+        }
+    }
+
+    private synchronized void addBuild(JSONObject json) {
+        JSONObject build = json.has("build") ? json.getJSONObject("build") : json;
+        if (replaceBuilds) {
+            for (JSONObject received : builds) {
+                if (received.optString("jobName").equals(build.optString("jobName")) && received.optInt("number") == build.optInt("number")) {
+                    builds.remove(received);
+                }
+            }
+        }
+        builds.add(build);
+    }
+
+    private static String read(HttpExchange exchange) throws IOException {
+        InputStream in = exchange.getRequestBody();
+        try {
+            return IOUtils.toString(in, "UTF-8");
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * @param body null for a response without body
+     */
+    private static void respond(HttpExchange exchange, int status, String body) throws IOException {
+        if (body == null || body.isEmpty()) {
+            exchange.sendResponseHeaders(status, -1);
+            return;
+        }
+        byte[] bytes = body.getBytes("UTF-8");
+        exchange.sendResponseHeaders(status, bytes.length);
+        OutputStream out = exchange.getResponseBody();
+        try {
+            out.write(bytes);
+        } finally {
+            out.close();
+        }
+    }
+}
@@ -0,0 +1,138 @@
+/*
+ * Copyright 2013 Kagilum SAS.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Author(s):
+ *
+ * Vincent Barrier (vbarrier@kagilum.com)
+ */
+package com.kagilum.plugins.icescrum;
+
+import com.google.common.util.concurrent.MoreExecutors;
+import junit.framework.Assert;
+import net.sf.json.JSONArray;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.Executor;
+
+public class IceScrumTaskCacheTest {
+
+    private static final String TASKS = "[{\"uid\":671,\"name\":\"Login page\",\"state\":0},"
+            + "{\"uid\":672,\"name\":\"Logout\",\"state\":2},{\"name\":\"no uid\"}]";
+
+    private IceScrumStandInServer server;
+
+    @Before
+    public void startServer() throws Exception {
+        server = new IceScrumStandInServer("7.12.1");
+        server.setTasks(TASKS);
+    }
+
+    @After
+    public void stopServer() {
+        server.stop();
+    }
+
+    @Test
+    public final void testFetchedInTheBackground() {
+        final int[] refreshes = new int[1];
+        IceScrumTaskCache cache = new IceScrumTaskCache(60 * 1000, 10, 100, new Executor() {
+            public void execute(Runnable command) {
+                refreshes[0]++;
+                command.run();
+            }
+        });
+        // a miss answers at once, the tasks are there for the next lookup
+        Assert.assertNull(cache.lookup(server.tokenSettings()));
+        IceScrumTaskCache.Tasks tasks = cache.lookup(server.tokenSettings());
+        Assert.assertNotNull(tasks);
+        Assert.assertEquals(2, tasks.size());
+        Assert.assertEquals("Login page", tasks.getName(671));
+        Assert.assertEquals(IceScrumTaskCache.STATE_TODO, tasks.getState(671));
+        Assert.assertEquals(IceScrumTaskCache.STATE_DONE, tasks.getState(672));
+        Assert.assertNull(tasks.getName(673));
+        Assert.assertEquals(-1, tasks.getState(673));
+        Assert.assertSame(tasks, cache.lookup(server.tokenSettings()));
+        Assert.assertEquals(1, refreshes[0]);
+    }
+
+    @Test
+    public final void testRefreshedAndExpired() throws Exception {
+        IceScrumTaskCache cache = new IceScrumTaskCache(200, 10, 100, MoreExecutors.sameThreadExecutor());
+        cache.lookup(server.tokenSettings());
+        IceScrumTaskCache.Tasks tasks = cache.lookup(server.tokenSettings());
+        Assert.assertNotNull(tasks);
+        Thread.sleep(120);
+        // half expired: still answered, fetched again for the next lookup
+        server.setTasks("[{\"uid\":671,\"name\":\"Login form\",\"state\":1}]");
+        Assert.assertSame(tasks, cache.lookup(server.tokenSettings()));
+        IceScrumTaskCache.Tasks refreshed = cache.lookup(server.tokenSettings());
+        Assert.assertEquals("Login form", refreshed.getName(671));
+        Assert.assertTrue(refreshed.getGeneration() > tasks.getGeneration());
+
+        IceScrumTaskCache stopped = new IceScrumTaskCache(200, 10, 100, new Executor() {
+            public void execute(Runnable command) {
+            }
+        });
+        Assert.assertNull(stopped.lookup(server.tokenSettings()));
+        Assert.assertNull(stopped.lookup(server.tokenSettings()));
+    }
+
+    @Test
+    public final void testLeastRecentlyUsedProjectEvicted() {
+        IceScrumTaskCache cache = new IceScrumTaskCache(60 * 1000, 2, 100, MoreExecutors.sameThreadExecutor());
+        IceScrumProjectSettings a = server.tokenSettings();
+        IceScrumProjectSettings b = new IceScrumProjectSettings(server.getUrl() + "/p/B", IceScrumStandInServer.TOKEN);
+        IceScrumProjectSettings c = new IceScrumProjectSettings(server.getUrl() + "/p/C", IceScrumStandInServer.TOKEN);
+        cache.lookup(a);
+        cache.lookup(b);
+        cache.lookup(a);
+        cache.lookup(c);
+        Assert.assertEquals(2, cache.size());
+        Assert.assertNotNull(cache.lookup(a));
+        // b was evicted, it has to be fetched again
+        Assert.assertNull(cache.lookup(b));
+    }
+
+    @Test
+    public final void testUnreachableProjectKeptWithoutTasks() {
+        IceScrumTaskCache cache = new IceScrumTaskCache(60 * 1000, 10, 100, MoreExecutors.sameThreadExecutor());
+        IceScrumProjectSettings wrong = new IceScrumProjectSettings(server.getUrl() + "/p/" + IceScrumStandInServer.PKEY, "wrong");
+        Assert.assertNull(cache.lookup(wrong));
+        IceScrumTaskCache.Tasks tasks = cache.lookup(wrong);
+        Assert.assertNotNull(tasks);
+        Assert.assertEquals(0, tasks.size());
+        Assert.assertNull(tasks.getName(671));
+    }
+
+    @Test
+    public final void testLastTasksKept() {
+        IceScrumTaskCache.Tasks tasks = IceScrumTaskCache.Tasks.parse(JSONArray.fromObject(
+                "[{\"uid\":1,\"name\":\"a\"},{\"uid\":2,\"name\":\"b\"},{\"uid\":3,\"name\":\"c\"}]"), 2);
+        Assert.assertEquals(2, tasks.size());
+        Assert.assertNull(tasks.getName(1));
+        Assert.assertEquals("c", tasks.getName(3));
+        Assert.assertEquals(-1, tasks.getState(3));
+    }
+
+    @Test
+    public final void testDisabled() {
+        IceScrumTaskCache cache = new IceScrumTaskCache(0, 10, 100, MoreExecutors.sameThreadExecutor());
+        Assert.assertNull(cache.lookup(server.tokenSettings()));
+        Assert.assertNull(cache.lookup(server.tokenSettings()));
+        Assert.assertEquals(0, server.getRequestCount());
+    }
+}
@@ -0,0 +1,149 @@
+/*
+ * Copyright 2013 Kagilum SAS.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Author(s):
+ *
+ * Vincent Barrier (vbarrier@kagilum.com)
+ */
+package com.kagilum.plugins.icescrum;
+
+import junit.framework.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+public class IceScrumTaskIdExtractorTest {
+
+    @Test
+    public final void testExtract() {
+        assertExtracted("An issue Closes T671-0 link", 671);
+        assertExtracted("An issue close T671-0 T674-3 link", 671, 674);
+        assertExtracted("T1-1.5 T2-2,5 T3-4T5", 1, 2, 3, 5);
+        assertExtracted("Tasks T 12, t13, T, T-4 and ATT99", 99);
+        assertExtracted("No task here");
+    }
+
+    @Test
+    public final void testDuplicatesAreSentOnce() {
+        assertExtracted("T671 T672-1 T671-0 T672", 671, 672);
+    }
+
+    @Test
+    public final void testOverflowingIdIsIgnored() {
+        assertExtracted("T99999999999 T12", 12);
+    }
+
+    @Test
+    public final void testSameMatchesAsTaskPattern() {
+        String[] messages = {
+                "Fixed T1, T22-3 and T333-4.5 (T4444-6,7)",
+                "TT1T2-T3 T--4 T5-",
+                "Merge branch 'T100' into T200-1"
+        };
+        Pattern pattern = Pattern.compile(IceScrumSession.TASK_PATTERN);
+        for (String message : messages) {
+            Set<Integer> expected = new LinkedHashSet<Integer>();
+            Matcher m = pattern.matcher(message);
+            while (m.find()) {
+                expected.add(Integer.parseInt(m.group(1)));
+            }
+            IceScrumTaskIds ids = new IceScrumTaskIds();
+            IceScrumTaskIdExtractor.extract(message, ids);
+            Assert.assertEquals(message, new ArrayList<Integer>(expected), asList(ids));
+        }
+    }
+
+    @Test
+    public final void testSetGrows() {
+        IceScrumTaskIds ids = new IceScrumTaskIds(1);
+        for (int i = 0; i < 10000; i++) {
+            ids.add(i % 5000);
+        }
+        Assert.assertEquals(5000, ids.size());
+        Assert.assertTrue(ids.contains(4999));
+        Assert.assertFalse(ids.contains(5000));
+        Assert.assertEquals(4999, ids.get(4999));
+    }
+
+    @Test
+    public final void testRemainingTimes() {
+        IceScrumTaskIds ids = new IceScrumTaskIds();
+        IceScrumRemainingTimes times = new IceScrumRemainingTimes();
+        IceScrumTaskIdExtractor.extract("T671-3 T672-1.5, T673-2,5 T674 T675- T676-4.", ids, times, -1);
+        Assert.assertEquals(6, ids.size());
+        Assert.assertEquals(4, times.size());
+        Assert.assertEquals(3f, times.get(671), 0.001f);
+        Assert.assertEquals(1.5f, times.get(672), 0.001f);
+        Assert.assertEquals(2.5f, times.get(673), 0.001f);
+        Assert.assertTrue(Float.isNaN(times.get(674)));
+        Assert.assertTrue(Float.isNaN(times.get(675)));
+        Assert.assertEquals(4f, times.get(676), 0.001f);
+        Assert.assertEquals("{\"tasks\":[{\"id\":671,\"remainingTime\":3},{\"id\":672,\"remainingTime\":1.5},"
+                + "{\"id\":673,\"remainingTime\":2.5},{\"id\":676,\"remainingTime\":4}]}", times.toString());
+    }
+
+    @Test
+    public final void testLatestRemainingTimeIsKept() {
+        IceScrumTaskIds ids = new IceScrumTaskIds();
+        IceScrumRemainingTimes times = new IceScrumRemainingTimes();
+        IceScrumTaskIdExtractor.extract("T1-5 T2-5", ids, times, 2000);
+        IceScrumTaskIdExtractor.extract("T1-8 T2-3", ids, times, 1000);
+        IceScrumTaskIdExtractor.extract("T2-1", ids, times, 2000);
+        Assert.assertEquals(5f, times.get(1), 0.001f);
+        Assert.assertEquals(1f, times.get(2), 0.001f);
+    }
+
+    @Test
+    public final void testSameRemainingTimesAsTaskPattern() {
+        String[] messages = {
+                "Fixed T1, T22-3 and T333-4.5 (T4444-6,7)",
+                "TT1-2T2-T3 T--4 T5-1.2.3 T6-7,",
+                "T7-0.25 then T7-0,5"
+        };
+        Pattern pattern = Pattern.compile(IceScrumSession.TASK_PATTERN);
+        for (String message : messages) {
+            IceScrumRemainingTimes expected = new IceScrumRemainingTimes();
+            Matcher m = pattern.matcher(message);
+            while (m.find()) {
+                if (m.group(2) != null) {
+                    expected.put(Integer.parseInt(m.group(1)), Float.parseFloat(m.group(2).replace(',', '.')), -1);
+                }
+            }
+            IceScrumRemainingTimes times = new IceScrumRemainingTimes();
+            IceScrumTaskIdExtractor.extract(message, new IceScrumTaskIds(), times, -1);
+            Assert.assertEquals(message, expected.toString(), times.toString());
+        }
+    }
+
+    private void assertExtracted(String message, Integer... expected) {
+        IceScrumTaskIds ids = new IceScrumTaskIds();
+        IceScrumTaskIdExtractor.extract(message, ids);
+        Assert.assertEquals(Arrays.asList(expected), asList(ids));
+    }
+
+    private List<Integer> asList(IceScrumTaskIds ids) {
+        List<Integer> list = new ArrayList<Integer>();
+        for (int id : ids.toArray()) {
+            list.add(id);
+        }
+        return list;
+    }
+}
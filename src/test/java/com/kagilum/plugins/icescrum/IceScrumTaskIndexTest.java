@@ -0,0 +1,144 @@
+/*
+ * Copyright 2013 Kagilum SAS.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Author(s):
+ *
+ * Vincent Barrier (vbarrier@kagilum.com)
+ */
+package com.kagilum.plugins.icescrum;
+
+import junit.framework.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.List;
+
+public class IceScrumTaskIndexTest {
+
+    private static final String P1 = "https://cloud.icescrum.com/p/ONE";
+    private static final String P2 = "https://cloud.icescrum.com/p/TWO";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public final void testLookup() throws Exception {
+        IceScrumTaskIndex index = new IceScrumTaskIndex(folder.getRoot());
+        index.add(P1, "a", 1, new int[]{671, 672});
+        index.add(P1, "b", 3, new int[]{671});
+        index.add(P1, "a", 2, new int[]{671});
+        index.add(P1, "a", 2, new int[]{671});
+        assertHits(index.lookup(P1, 671), "a#2", "a#1", "b#3");
+        assertHits(index.lookup(P1, 672), "a#1");
+        assertHits(index.lookup(P1, 673));
+    }
+
+    @Test
+    public final void testSameTaskIdInTwoProjects() throws Exception {
+        IceScrumTaskIndex index = new IceScrumTaskIndex(folder.getRoot());
+        index.add(P1, "a", 1, new int[]{671});
+        index.add(P2, "b", 1, new int[]{671});
+        index.add(P2, "a", 2, new int[]{671});
+        assertHits(index.lookup(P1, 671), "a#1");
+        assertHits(index.lookup(P2, 671), "a#2", "b#1");
+        assertHits(index.lookup("https://cloud.icescrum.com/p/OTHER", 671));
+        index.compact();
+        index.add(P1, "c", 1, new int[]{671});
+        assertHits(index.lookup(P1, 671), "a#1", "c#1");
+        assertHits(index.lookup(P2, 671), "a#2", "b#1");
+        index.compact();
+        assertHits(index.lookup(P1, 671), "a#1", "c#1");
+        assertHits(index.lookup(P2, 671), "a#2", "b#1");
+        index.close();
+    }
+
+    @Test
+    public final void testSurvivesCompactionAndRestart() throws Exception {
+        File directory = folder.getRoot();
+        IceScrumTaskIndex index = new IceScrumTaskIndex(directory);
+        index.add(P1, "a", 1, new int[]{5, 1});
+        index.compact();
+        index.add(P1, "a", 1, new int[]{5});
+        index.add(P2, "b", 1, new int[]{5, 9});
+        index.close();
+
+        index = new IceScrumTaskIndex(directory);
+        assertHits(index.lookup(P1, 5), "a#1");
+        assertHits(index.lookup(P2, 5), "b#1");
+        index.compact();
+        Assert.assertEquals(4, index.size());
+        assertHits(index.lookup(P1, 1), "a#1");
+        assertHits(index.lookup(P2, 9), "b#1");
+        index.close();
+    }
+
+    @Test
+    public final void testCompactedByTheWriterThread() throws Exception {
+        IceScrumTaskIndex index = new IceScrumTaskIndex(folder.getRoot());
+        int[] tasks = new int[IceScrumTaskIndex.COMPACT_THRESHOLD];
+        for (int i = 0; i < tasks.length; i++) {
+            tasks[i] = i + 1;
+        }
+        index.addLater(P1, "a", 1, tasks);
+        // the records, then the compaction they triggered
+        IceScrumTaskIndex.awaitWriter();
+        IceScrumTaskIndex.awaitWriter();
+        Assert.assertEquals(0, new File(folder.getRoot(), "pending.log").length());
+        Assert.assertEquals(tasks.length, index.size());
+        index.add(P1, "b", 2, new int[]{tasks.length});
+        assertHits(index.lookup(P1, tasks.length), "a#1", "b#2");
+        index.close();
+    }
+
+    @Test
+    public final void testOldFormatIsRebuilt() throws Exception {
+        File directory = folder.getRoot();
+        // an index of (task, job, build) triples, without format file
+        Assert.assertTrue(new File(directory, "jobs.txt").createNewFile());
+        Assert.assertTrue(new File(directory, "pending.log").createNewFile());
+        Assert.assertTrue(new File(directory, "rebuilt").createNewFile());
+        IceScrumTaskIndex index = new IceScrumTaskIndex(directory);
+        Assert.assertTrue(index.needsRebuild());
+        Assert.assertEquals(0, index.size());
+        index.close();
+    }
+
+    @Test
+    public final void testParseTask() {
+        Assert.assertEquals(671, IceScrumTaskIndexAction.parseTask("T671"));
+        Assert.assertEquals(671, IceScrumTaskIndexAction.parseTask(" 671 "));
+        Assert.assertEquals(-1, IceScrumTaskIndexAction.parseTask("T"));
+        Assert.assertEquals(-1, IceScrumTaskIndexAction.parseTask("T67a"));
+        Assert.assertEquals(-1, IceScrumTaskIndexAction.parseTask("T99999999999"));
+        Assert.assertEquals(-1, IceScrumTaskIndexAction.parseTask(null));
+    }
+
+    @Test
+    public final void testProjectToLookIn() {
+        Assert.assertEquals(Arrays.asList(P1), IceScrumTaskIndexAction.projectsOf(null, " " + P1 + "/"));
+        Assert.assertTrue(IceScrumTaskIndexAction.projectsOf(null, "").isEmpty());
+        Assert.assertNull(new IceScrumTaskIndexAction().find("T671", null, null));
+    }
+
+    private static void assertHits(List<IceScrumTaskIndex.Hit> hits, String... expected) {
+        Assert.assertEquals(expected.length, hits.size());
+        for (int i = 0; i < expected.length; i++) {
+            Assert.assertEquals(expected[i], hits.get(i).getJobName() + "#" + hits.get(i).getNumber());
+        }
+    }
+}
@@ -0,0 +1,62 @@
+/*
+ * Copyright 2013 Kagilum SAS.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Author(s):
+ *
+ * Vincent Barrier (vbarrier@kagilum.com)
+ */
+package com.kagilum.plugins.icescrum;
+
+import junit.framework.Assert;
+import org.junit.Test;
+
+public class IceScrumTraceTest {
+
+    @Test
+    public final void testPhasesAddUp() {
+        IceScrumTrace trace = new IceScrumTrace("job", 12);
+        long now = System.nanoTime();
+        trace.record(IceScrumTrace.Phase.EXCHANGE, now, now + 2000000);
+        trace.record(IceScrumTrace.Phase.EXCHANGE, now + 5000000, now + 6000000);
+        trace.setHost("http://localhost:80");
+        trace.setPayloadBytes(512);
+        trace.setStatus(201);
+        Assert.assertEquals(3000000, trace.getDuration(IceScrumTrace.Phase.EXCHANGE));
+        Assert.assertEquals(0, trace.getDuration(IceScrumTrace.Phase.RESPONSE));
+        String line = trace.format(10000000);
+        Assert.assertTrue(line, line.startsWith("job #12 host=http://localhost:80 payload=512B status=201 total=10.0ms"));
+        Assert.assertTrue(line, line.endsWith("ms/3.0ms"));
+        Assert.assertFalse(line, line.contains("RESPONSE"));
+    }
+
+    @Test
+    public final void testSessionPhases() throws Exception {
+        IceScrumStandInServer server = new IceScrumStandInServer("7.12.1");
+        try {
+            server.setLatency(50);
+            IceScrumTrace trace = new IceScrumTrace("job", 1);
+            IceScrumSession session = new IceScrumSession(server.tokenSettings());
+            session.trace(trace);
+            Assert.assertTrue(session.sendBuildStatut(IceScrumSessionTest.payload("job", 1)));
+            Assert.assertEquals(201, trace.getStatus());
+            Assert.assertTrue(trace.getPayloadBytes() > 0);
+            Assert.assertTrue(trace.toString(), trace.toString().contains(" SERIALIZATION="));
+            Assert.assertTrue(trace.toString(), trace.toString().contains(" CONNECTION="));
+            Assert.assertTrue(trace.getDuration(IceScrumTrace.Phase.EXCHANGE) >= 50 * 1000000L);
+        } finally {
+            server.stop();
+        }
+    }
+}
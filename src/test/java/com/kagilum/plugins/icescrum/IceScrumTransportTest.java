@@ -0,0 +1,148 @@
+/*
+ * Copyright 2013 Kagilum SAS.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Author(s):
+ *
+ * Vincent Barrier (vbarrier@kagilum.com)
+ */
+package com.kagilum.plugins.icescrum;
+
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import junit.framework.Assert;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class IceScrumTransportTest {
+
+    private IceScrumStandInServer server;
+    private IceScrumTransport async;
+    private IceScrumTransport blocking;
+
+    @Before
+    public void start() throws Exception {
+        server = new IceScrumStandInServer("7.12.1");
+        async = IceScrumTransport.create("async");
+        blocking = IceScrumTransport.create("blocking");
+    }
+
+    @After
+    public void stop() {
+        async.close();
+        blocking.close();
+        server.stop();
+    }
+
+    @Test
+    public final void testTransports() {
+        Assert.assertFalse(async.isBlocking());
+        Assert.assertTrue(blocking.isBlocking());
+        Assert.assertTrue(IceScrumTransport.create("unknown").isBlocking());
+    }
+
+    @Test
+    public final void testSameOutcomeOnBothTransports() {
+        for (IceScrumTransport transport : new IceScrumTransport[]{async, blocking}) {
+            IceScrumSession session = new IceScrumSession(server.tokenSettings(), transport);
+            Assert.assertTrue(transport.toString(), session.isConnect());
+            Assert.assertTrue(transport.toString(), session.sendBuildStatut(IceScrumSessionTest.payload("job", 1)));
+            Assert.assertEquals(201, session.getLastStatusCode());
+
+            IceScrumProjectSettings wrong = new IceScrumProjectSettings(server.getUrl() + "/p/" + IceScrumStandInServer.PKEY, "wrong");
+            session = new IceScrumSession(wrong, transport);
+            Assert.assertFalse(session.sendBuildStatut(IceScrumSessionTest.payload("job", 2)));
+            Assert.assertEquals(401, session.getLastStatusCode());
+            Assert.assertFalse(session.isRetryable());
+        }
+        Assert.assertEquals(2, server.getBuilds().size());
+    }
+
+    @Test
+    public final void testManyRequestsInFlight() throws Exception {
+        server.setLatency(200);
+        List<ListenableFuture<Boolean>> results = new ArrayList<ListenableFuture<Boolean>>();
+        long start = System.currentTimeMillis();
+        for (int i = 0; i < 40; i++) {
+            results.add(new IceScrumSession(server.tokenSettings(), async).sendBuildStatutAsync(IceScrumSessionTest.payload("job", i)));
+        }
+        for (ListenableFuture<Boolean> result : results) {
+            Assert.assertTrue(result.get());
+        }
+        Assert.assertEquals(40, server.getBuilds().size());
+        Assert.assertTrue(server.getMaxInFlight() > 1);
+        // one request at a time would take 8 seconds
+        Assert.assertTrue(System.currentTimeMillis() - start < 8000);
+    }
+
+    @Test
+    public final void testChunksAreNotSentFromIoThreads() throws Exception {
+        final Set<Thread> senders = Collections.synchronizedSet(new HashSet<Thread>());
+        final Set<Thread> completions = Collections.synchronizedSet(new HashSet<Thread>());
+        IceScrumTransport recording = new IceScrumTransport() {
+            @Override
+            public ListenableFuture<IceScrumResponse> execute(IceScrumRequest request) {
+                senders.add(Thread.currentThread());
+                ListenableFuture<IceScrumResponse> response = async.execute(request);
+                response.addListener(new Runnable() {
+                    public void run() {
+                        completions.add(Thread.currentThread());
+                    }
+                }, MoreExecutors.sameThreadExecutor());
+                return response;
+            }
+
+            @Override
+            public boolean isBlocking() {
+                return false;
+            }
+        };
+        final AtomicInteger executed = new AtomicInteger();
+        IceScrumSession session = new IceScrumSession(server.tokenSettings(), recording);
+        session.setChunkSize(2);
+        session.setExecutor(new Executor() {
+            public void execute(Runnable command) {
+                executed.incrementAndGet();
+                new Thread(command, "chunk sender").start();
+            }
+        });
+        server.setLatency(50);
+        IceScrumBuildPayload payload = new IceScrumBuildPayload("job", "job #1", 1, 1000L, "job/job/1/", null,
+                IceScrumSession.BUILD_SUCCESS, new int[]{1, 2, 3, 4, 5});
+        Assert.assertTrue(session.sendBuildStatutAsync(payload).get());
+        Assert.assertEquals(3, server.getBuilds().size());
+        Assert.assertEquals(2, executed.get());
+        senders.retainAll(completions);
+        Assert.assertTrue(senders.isEmpty());
+    }
+
+    @Test
+    public final void testUnreachableServer() throws Exception {
+        String url = server.getUrl();
+        server.stop();
+        IceScrumSession session = new IceScrumSession(new IceScrumProjectSettings(url + "/p/" + IceScrumStandInServer.PKEY, IceScrumStandInServer.TOKEN), async);
+        Assert.assertFalse(session.sendBuildStatutAsync(IceScrumSessionTest.payload("job", 1)).get());
+        Assert.assertTrue(session.isRetryable());
+        Assert.assertNotNull(session.getLastError());
+    }
+}